@@ -1,7 +1,5 @@
 package com.google.location.nearby.apps.walkietalkie;
 
-import static com.google.android.gms.common.util.IOUtils.copyStream;
-
 import android.Manifest;
 import android.animation.Animator;
 import android.animation.ObjectAnimator;
@@ -10,6 +8,8 @@ import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Build;
@@ -30,17 +30,15 @@ import androidx.core.content.ContextCompat;
 import androidx.core.view.ViewCompat;
 
 import android.provider.MediaStore;
-import android.text.SpannableString;
-import android.text.format.DateFormat;
 import android.text.method.ScrollingMovementMethod;
-import android.text.style.ForegroundColorSpan;
-//import android.util.Log;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.ViewAnimationUtils;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -49,11 +47,13 @@ import com.google.android.gms.nearby.connection.Payload;
 import com.google.android.gms.nearby.connection.Strategy;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 /**
  * Our WalkieTalkie Activity. This Activity has 3 {@link State}s.
@@ -71,6 +71,9 @@ public class MainActivity extends ConnectionsActivity {
   /** If true, debug logs are shown on the device. */
   private static final boolean DEBUG = true;
 
+  /** If true, we measure how long what others say takes to reach our speaker, and log it. */
+  private static final boolean MEASURE_LATENCY = DEBUG;
+
   /**
    * The connection strategy we'll use for Nearby Connections. In this case, we've decided on
    * P2P_STAR, which is a combination of Bluetooth Classic and WiFi Hotspots.
@@ -80,6 +83,35 @@ public class MainActivity extends ConnectionsActivity {
   /** Length of state change animations. */
   private static final long ANIMATION_DURATION = 600;
 
+  /** How often the debug log shows what the metrics have counted, in ms. Only when DEBUG=true. */
+  private static final long METRICS_DUMP_INTERVAL = 30000;
+
+  /** How much audio from just before the talk key goes down to send along with the rest, in ms. */
+  private static final int PRE_ROLL_DURATION = 300;
+
+  /** The most memory to spend remembering pre-roll, in bytes. */
+  private static final int PRE_ROLL_MAX_BYTES = 64 * 1024;
+
+  /** How big a picture we send. Camera pictures are shrunk to fit before they go. */
+  private static final ImageEncoder.Profile IMAGE_PROFILE = ImageEncoder.Profile.MEDIUM;
+
+  /**
+   * If true, files we send are compressed on the way when that would make them much smaller.
+   * For now, though, the only files we send are the JPEGs from {@link ImageEncoder}, which
+   * {@link FileCompressor} always sends as they are, so nothing is ever compressed. It's here for
+   * when we send other kinds of file.
+   */
+  private static final boolean COMPRESS_FILES = true;
+
+  /** The most pixels along either side of a picture we show, however big it was sent. */
+  private static final int MAX_PICTURE_DIMENSION = 1024;
+
+  /**
+   * The most space the pictures we're sent may take up, in bytes. Past this, those we've looked at
+   * least recently are deleted.
+   */
+  private static final long MAX_STORED_PICTURE_BYTES = 128 * 1024 * 1024;
+
   /**
    * A set of background colors. We'll hash the authentication token we get from connecting to a
    * device to pick a color randomly from this list. Devices with the same background color are
@@ -132,6 +164,21 @@ public class MainActivity extends ConnectionsActivity {
   /** A running log of debug messages. Only visible when DEBUG=true. */
   private TextView mDebugLogView;
 
+  /** Keeps {@link #mDebugLogView} up to date. Null unless DEBUG=true. */
+  @Nullable private LogSink mLogSink;
+
+  /**
+   * Shows the last picture we were sent, or a preview of it while it's on its way. Tap to open the
+   * picture once it's arrived.
+   */
+  private ImageView mPictureView;
+
+  /** The transfer of the picture shown in {@link #mPictureView}, in full or as a preview. */
+  private long mPictureTransferId;
+
+  /** The picture shown in {@link #mPictureView}, or null if it's still a preview. */
+  @Nullable private File mPictureFile;
+
   /** Buttons and dropdowns to send pictures and test features. */
   private Button mSendPictureButton;
   private Button mTest01Button;
@@ -146,7 +193,7 @@ public class MainActivity extends ConnectionsActivity {
         @Override
         protected void onHold() {
           logV("onHold");
-          startRecording();
+          startRecording(getHoldTime());
         }
 
         @Override
@@ -156,11 +203,17 @@ public class MainActivity extends ConnectionsActivity {
         }
       };
 
-  /** For recording audio as the user speaks. */
-  @Nullable private AudioRecorder mRecorder;
+  /** Keeps the microphone open while we're connected, so talking starts without a delay. */
+  private final CaptureEngine mCaptureEngine = new CaptureEngine();
+
+  /** Sends audio to everyone we're connected to as the user speaks. */
+  private final AudioRecorder mRecorder = new AudioRecorder(mCaptureEngine);
 
   /** For playing audio from other users nearby. */
-  @Nullable private AudioPlayer mAudioPlayer;
+  private final Set<AudioPlayer> mAudioPlayers = new HashSet<>();
+
+  /** Mixes everyone who is talking into a single output. */
+  private final AudioMixer mAudioMixer = new AudioMixer();
 
   /** The phone's original media volume. */
   private int mOriginalVolume;
@@ -172,6 +225,7 @@ public class MainActivity extends ConnectionsActivity {
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.activity_main);
+    mCaptureEngine.setPreRoll(PRE_ROLL_DURATION, PRE_ROLL_MAX_BYTES);
     getSupportActionBar()
         .setBackgroundDrawable(ContextCompat.getDrawable(this, R.drawable.actionBar));
 
@@ -180,6 +234,25 @@ public class MainActivity extends ConnectionsActivity {
     mDebugLogView = (TextView) findViewById(R.id.debug_log);
     mDebugLogView.setVisibility(DEBUG ? View.VISIBLE : View.GONE);
     mDebugLogView.setMovementMethod(new ScrollingMovementMethod());
+    if (DEBUG) {
+      mLogSink =
+          new LogSink(
+              mDebugLogView,
+              getResources().getColor(R.color.log_verbose),
+              getResources().getColor(R.color.log_debug),
+              getResources().getColor(R.color.log_warning),
+              getResources().getColor(R.color.log_error));
+      mLogSink.dumpMetricsEvery(METRICS_DUMP_INTERVAL);
+    }
+    mImageEncoder = new ImageEncoder(new File(getCacheDir(), "outgoing"));
+    mContentStore =
+        new ContentStore(
+            new File("sdcard/Pictures", "WalkieTalkie"), ".jpg", MAX_STORED_PICTURE_BYTES);
+    mResumableTransfers =
+        new ResumableTransfers(
+            new File(getCacheDir(), "incoming"), mContentStore, new TransferListener());
+    mPictureView = (ImageView) findViewById(R.id.picture);
+    mPictureView.setOnClickListener(new PictureListener());
     mName = generateRandomName();
     ((TextView) findViewById(R.id.name)).setText(mName);
 
@@ -430,30 +503,39 @@ public class MainActivity extends ConnectionsActivity {
       Uri uriObj = (Uri)uri;
       logD("uriObj: " + uriObj);
 
-      ParcelFileDescriptor pfd;
-      try {
-        pfd = getContentResolver().openFileDescriptor(uriObj, "r");
-      } catch(Exception e) {
-        logE("couldn't make pfd", e);
-        return;
-      }
-      Payload filePayload;
-      try {
-        filePayload = Payload.fromFile(pfd);
-      } catch(Exception e) {
-        logE("couldn't make payload from pfd", e);
-        return;
-      }
-      String payloadTypeStr = "unassigned";
-      switch (filePayload.getType()) {
-        case Payload.Type.BYTES: payloadTypeStr = "bytes"; break;
-        case Payload.Type.FILE: payloadTypeStr = "file"; break;
-        case Payload.Type.STREAM: payloadTypeStr = "stream"; break;
-        default: payloadTypeStr = "unknown";
-      }
-      logD("sending payload: " + filePayload);
-      logD("payload type: " + filePayload.getType() + ": " + payloadTypeStr);
-      send(filePayload);
+      // Shrink the picture off the UI thread, and send it once it's ready.
+      mImageEncoder.encode(
+          getContentResolver(),
+          uriObj,
+          IMAGE_PROFILE,
+          new ImageEncoder.Callback() {
+            @UiThread
+            @Override
+            public void onEncoded(File file, @Nullable byte[] thumbnail, long durationMs) {
+              logD("encoded " + file.length() + " bytes in " + durationMs + "ms");
+              if (getState() != State.CONNECTED) {
+                logW("no longer connected, not sending " + file);
+                return;
+              }
+              List<String> peers = new ArrayList<>();
+              for (Endpoint endpoint : getConnectedEndpoints()) {
+                peers.add(endpoint.getName());
+              }
+              // Sent in chunks, so it can pick up where it left off if the connection drops.
+              long transferId = mResumableTransfers.send(file, peers, COMPRESS_FILES);
+              // The thumbnail goes first, so there's something to look at while the rest arrives.
+              if (thumbnail != null) {
+                send(Payload.fromBytes(FileMessage.thumbnail(transferId, thumbnail)));
+              }
+              logD("sending transfer " + transferId + " to " + peers);
+            }
+
+            @UiThread
+            @Override
+            public void onEncodeFailed(Uri source, IOException e) {
+              logE("couldn't encode " + source, e);
+            }
+          });
     }
   }
 
@@ -527,6 +609,17 @@ public class MainActivity extends ConnectionsActivity {
     super.onStop();
   }
 
+  @Override
+  protected void onDestroy() {
+    mResumableTransfers.shutdown();
+    mImageEncoder.shutdown();
+    mFileCopier.shutdown();
+    if (mLogSink != null) {
+      mLogSink.release();
+    }
+    super.onDestroy();
+  }
+
   @Override
   public void onBackPressed() {
     if (getState() == State.CONNECTED) {
@@ -556,6 +649,8 @@ public class MainActivity extends ConnectionsActivity {
 
   @Override
   protected void onEndpointConnected(Endpoint endpoint) {
+    openStreamSession(endpoint);
+    mResumableTransfers.onConnected(endpoint.getName(), endpoint.getId());
     Toast.makeText(
             this, getString(R.string.toast_connected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
@@ -564,6 +659,8 @@ public class MainActivity extends ConnectionsActivity {
 
   @Override
   protected void onEndpointDisconnected(Endpoint endpoint) {
+    mRecorder.removeSession(endpoint.getId());
+    mResumableTransfers.onDisconnected(endpoint.getName());
     Toast.makeText(
             this, getString(R.string.toast_disconnected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
@@ -611,6 +708,17 @@ public class MainActivity extends ConnectionsActivity {
       mCurrentAnimator.cancel();
     }
 
+    // Keep the microphone and speaker warm for as long as there's someone to talk to.
+    if (newState == State.CONNECTED) {
+      mCaptureEngine.start();
+      mRecorder.start();
+      mAudioMixer.start();
+    } else if (oldState == State.CONNECTED) {
+      mAudioMixer.stop();
+      mRecorder.stop();
+      mCaptureEngine.stop();
+    }
+
     // Update Nearby Connections to the new state.
     switch (newState) {
       case SEARCHING:
@@ -781,82 +889,151 @@ public class MainActivity extends ConnectionsActivity {
     logD("receive type " + payload.getType() + ": " + payloadTypeStr);
 
     if (payload.getType() == Payload.Type.STREAM) {
-      if (mAudioPlayer != null) {
-        mAudioPlayer.stop();
-        mAudioPlayer = null;
-      }
-
-      AudioPlayer player = new AudioPlayer(payload.asStream().asInputStream()) {
+      AudioPlayer player = new AudioPlayer(payload.asStream().asInputStream(), mAudioMixer) {
         @WorkerThread
         @Override
         protected void onFinish() {
+          final AudioPlayer audioPlayer = this;
           runOnUiThread(new Runnable() {
             @UiThread
             @Override
             public void run() {
-              mAudioPlayer = null;
+              mAudioPlayers.remove(audioPlayer);
             }
           });
         }
       };
       logD("receiving stream: starting audio player");
-      mAudioPlayer = player;
+      if (MEASURE_LATENCY) {
+        player.setLatencyMonitor(new LatencyMonitor());
+      }
+      mAudioPlayers.add(player);
       player.start();
     }
     else if (payload.getType() == Payload.Type.FILE) {
       Uri payloadUri = payload.asFile().asUri();
       logD("file payload started: " + payloadUri);
-      mCurrentEndpoint = endpoint;
-      mCurrentPayload = payload;
+    }
+    else if (payload.getType() == Payload.Type.BYTES
+        && FileMessage.isMessage(payload.asBytes())) {
+      onFileMessage(endpoint, payload.asBytes());
     }
     else {
       logD("ignoring payload of type: " + payload.getType());
     }
   }
 
-  private Endpoint mCurrentEndpoint = null;
-  private Payload mCurrentPayload = null;
+  /** Handles a message about a file that's on its way, or has arrived. */
+  private void onFileMessage(Endpoint endpoint, byte[] message) {
+    long transferId = FileMessage.getTransferId(message);
+    switch (FileMessage.getType(message)) {
+      case FileMessage.TYPE_THUMBNAIL:
+        // The picture itself may have beaten its thumbnail here.
+        if (transferId == mPictureTransferId && mPictureFile != null) {
+          return;
+        }
+        Bitmap thumbnail =
+            BitmapFactory.decodeByteArray(
+                message, FileMessage.HEADER_SIZE, FileMessage.getBodyLength(message));
+        if (thumbnail == null) {
+          logW("couldn't decode thumbnail of transfer " + transferId);
+          return;
+        }
+        logD("showing thumbnail of transfer " + transferId);
+        showPicture(transferId, thumbnail, null);
+        break;
+      default:
+        mResumableTransfers.onMessage(endpoint.getName(), endpoint.getId(), message);
+        break;
+    }
+  }
 
-  /** {@see ConnectionsActivity#onTransferComplete(Endpoint)} */
-  @Override
-  protected void onTransferComplete(Endpoint endpoint) {
-    Payload payload = mCurrentPayload;
-    boolean mismatch = (endpoint != mCurrentEndpoint || payload == null);
-    mCurrentEndpoint = null;
-    mCurrentPayload = null;
-    if (mismatch) {
-      logW("payload transfer mismatch");
-      return;
+  /**
+   * Shows a picture we've been sent.
+   *
+   * @param transferId The transfer the picture came in.
+   * @param bitmap The picture, or a preview of it.
+   * @param file The picture, or null if we've only a preview of it so far.
+   */
+  private void showPicture(long transferId, Bitmap bitmap, @Nullable File file) {
+    mPictureTransferId = transferId;
+    mPictureFile = file;
+    mPictureView.setImageBitmap(bitmap);
+    mPictureView.setVisibility(View.VISIBLE);
+  }
+
+  class PictureListener implements View.OnClickListener {
+    public void onClick(View v) {
+      mPictureView.setVisibility(View.GONE);
+      if (mPictureFile != null) {
+        openFile(mPictureFile.toString());
+      }
     }
-    Uri payloadUri = payload.asFile().asUri();
-    logD("file payload complete: " + payloadUri);
+  }
 
-    String fileName = "Wt_" + System.currentTimeMillis() + ".jpg";
-    logD("local file name: " + fileName);
+  /** Moves pictures we've been sent into place, and sends the messages that carry pictures. */
+  class TransferListener implements ResumableTransfers.Listener {
+    @Override
+    public void sendMessage(String endpointId, byte[] message) {
+      for (Endpoint endpoint : getConnectedEndpoints()) {
+        if (endpoint.getId().equals(endpointId)) {
+          send(Payload.fromBytes(message), endpoint);
+          return;
+        }
+      }
+    }
 
-    // Write payload to a local file.
-    File fileObj = null;
-    try {
-      //File cacheFile = new File(this.getCacheDir(), fileName);
-      fileObj = new File("sdcard/Pictures", fileName);
-      logD("local file path: " + fileObj);
-      InputStream in = this.getContentResolver().openInputStream(payloadUri);
-      logD("starting stream copy");
-      copyStream(in, new FileOutputStream(fileObj));
-      logD("done stream copy");
-    } catch (Exception e) {
-      logW("error: " + e.getMessage());
-    } finally {
-      this.getContentResolver().delete(payloadUri, null, null);
+    @Override
+    public void onReceived(
+        String peer, long transferId, File file, int encoding, byte[] contentHash) {
+      logD("transfer " + transferId + " from " + peer + " complete: " + file);
+      savePicture(transferId, file, encoding, contentHash);
     }
 
-    if (fileObj == null || !fileObj.exists()){
-      logW("file creation failed: " + fileObj);
+    @Override
+    public void onAlreadyHave(String peer, long transferId, File file) {
+      logD("transfer " + transferId + " from " + peer + " declined, already have " + file);
+      loadPicture(transferId, file);
+    }
+
+    @Override
+    public void onSent(String peer, long transferId) {
+      logD("transfer " + transferId + " to " + peer + " complete");
+    }
+
+    @Override
+    public void onFailed(String peer, long transferId) {
+      logW("transfer " + transferId + " with " + peer + " failed");
+    }
+  }
+
+  /** Sends and receives pictures a chunk at a time, so they survive the connection dropping. */
+  private ResumableTransfers mResumableTransfers;
+
+  /** The pictures we've been sent, by hash, so we're only sent each one once. */
+  private ContentStore mContentStore;
+
+  /** Shrinks pictures before we send them, and loads the ones we're sent. */
+  private ImageEncoder mImageEncoder;
+
+  /** Moves received files into place in the background. */
+  private final FileCopier mFileCopier = new FileCopier();
+
+  /** {@see ConnectionsActivity#onTransferComplete(Endpoint, Payload)} */
+  @Override
+  protected void onTransferComplete(@Nullable Endpoint endpoint, Payload payload) {
+    if (payload.getType() != Payload.Type.FILE) {
       return;
     }
-    logD("file written: " + fileObj);
-    logD("file size: " + fileObj.length());
-    openFile(fileObj.toString());
+    Uri payloadUri = payload.asFile().asUri();
+    logD("file payload complete: " + payloadUri);
+
+    // Move the payload to a local file, off the UI thread.
+    mFileCopier.move(
+        getContentResolver(),
+        payloadUri,
+        newPictureFile(),
+        newPictureCallback(payload.getId(), null));
 
     /*
     Uri fileUri = Uri.parse(fileObj.toString());
@@ -873,49 +1050,134 @@ public class MainActivity extends ConnectionsActivity {
     */
   }
 
+  /**
+   * Moves a picture that's come in chunks into the store, decoding it on the way, off the UI
+   * thread.
+   */
+  private void savePicture(long transferId, File file, int encoding, byte[] contentHash) {
+    mFileCopier.move(
+        file,
+        mContentStore.getFile(contentHash),
+        encoding,
+        newPictureCallback(transferId, contentHash));
+  }
+
+  /** Returns where to put the next picture we're sent. */
+  private File newPictureFile() {
+    String fileName = "Wt_" + System.currentTimeMillis() + ".jpg";
+    //File cacheFile = new File(this.getCacheDir(), fileName);
+    File fileObj = new File("sdcard/Pictures", fileName);
+    logD("local file path: " + fileObj);
+    return fileObj;
+  }
+
+  /**
+   * Returns a callback that shows a picture once it's been moved into place.
+   *
+   * @param contentHash If the picture's being moved into the store, its hash. Null otherwise.
+   */
+  private FileCopier.Callback newPictureCallback(
+      final long transferId, @Nullable final byte[] contentHash) {
+    return new FileCopier.Callback() {
+      @UiThread
+      @Override
+      public void onCopied(File destination, long bytes, long durationMs) {
+        logD("file written: " + destination);
+        logD("file size: " + bytes + " (copied in " + durationMs + "ms)");
+        if (contentHash != null) {
+          mContentStore.put(contentHash);
+        }
+        loadPicture(transferId, destination);
+      }
+
+      @UiThread
+      @Override
+      public void onCopyFailed(File destination, IOException e) {
+        logW("file creation failed: " + destination, e);
+      }
+    };
+  }
+
+  /** Loads a picture we've been sent, and swaps it in for its preview. */
+  private void loadPicture(final long transferId, File picture) {
+    mImageEncoder.load(
+        picture,
+        MAX_PICTURE_DIMENSION,
+        new ImageEncoder.LoadCallback() {
+          @UiThread
+          @Override
+          public void onLoaded(File file, @Nullable Bitmap bitmap) {
+            if (bitmap != null && !isFinishing()) {
+              showPicture(transferId, bitmap, file);
+            }
+          }
+        });
+  }
+
+  /** {@see ConnectionsActivity#onTransferFailed(Endpoint, Payload)} */
+  @Override
+  protected void onTransferFailed(@Nullable Endpoint endpoint, Payload payload) {
+    if (payload.getType() == Payload.Type.FILE) {
+      logW("file payload failed: " + payload.asFile().asUri());
+      // Don't leave the partial file lying around.
+      getContentResolver().delete(payload.asFile().asUri(), null, null);
+    }
+  }
+
   /** Stops all currently streaming audio tracks. */
   private void stopPlaying() {
     logV("stopPlaying()");
-    if (mAudioPlayer != null) {
-      mAudioPlayer.stop();
-      mAudioPlayer = null;
+    // Copy the players first. Stopping one removes it from the set.
+    for (AudioPlayer player : new ArrayList<>(mAudioPlayers)) {
+      player.stop();
     }
+    mAudioPlayers.clear();
+    mAudioMixer.stop();
   }
 
   /** @return True if currently playing. */
   private boolean isPlaying() {
-    return mAudioPlayer != null;
+    return !mAudioPlayers.isEmpty();
   }
 
-  /** Starts recording sound from the microphone and streaming it to all connected devices. */
-  private void startRecording() {
-    logV("startRecording()");
+  /**
+   * Opens the stream our audio will reach a newly connected endpoint through. It stays open until
+   * the endpoint disconnects, and carries everything we say in the meantime.
+   */
+  private void openStreamSession(Endpoint endpoint) {
     try {
       ParcelFileDescriptor[] payloadPipe = ParcelFileDescriptor.createPipe();
 
       // Send the first half of the payload (the read side) to Nearby Connections.
-      send(Payload.fromStream(payloadPipe[0]));
+      send(Payload.fromStream(payloadPipe[0]), endpoint);
 
       // Use the second half of the payload (the write side) in AudioRecorder.
-      mRecorder = new AudioRecorder(payloadPipe[1]);
-      mRecorder.start();
+      mRecorder.addSession(endpoint.getId(), payloadPipe[1]);
     } catch (IOException e) {
-      logE("startRecording() failed", e);
+      logE("openStreamSession() failed", e);
     }
   }
 
+  /**
+   * Starts streaming sound from the microphone to all connected devices.
+   *
+   * @param pressedAtMs When the user asked to talk, on the {@link
+   *     android.os.SystemClock#elapsedRealtime()} clock.
+   */
+  private void startRecording(long pressedAtMs) {
+    logV("startRecording()");
+    mRecorder.startTalking(pressedAtMs);
+  }
+
   /** Stops streaming sound from the microphone. */
   private void stopRecording() {
     logV("stopRecording()");
-    if (mRecorder != null) {
-      mRecorder.stop();
-      mRecorder = null;
-    }
+    mRecorder.stopTalking();
   }
 
   /** @return True if currently streaming from the microphone. */
   private boolean isRecording() {
-    return mRecorder != null && mRecorder.isRecording();
+    return mRecorder.isTalking();
   }
 
   /** {@see ConnectionsActivity#getRequiredPermissions()} */
@@ -958,43 +1220,37 @@ public class MainActivity extends ConnectionsActivity {
   @Override
   protected void logV(String msg) {
     super.logV(msg);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_verbose)));
+    appendToLogs(Log.VERBOSE, msg);
   }
 
   @Override
   protected void logD(String msg) {
     super.logD(msg);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_debug)));
+    appendToLogs(Log.DEBUG, msg);
   }
 
   @Override
   protected void logW(String msg) {
     super.logW(msg);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_warning)));
+    appendToLogs(Log.WARN, msg);
   }
 
   @Override
   protected void logW(String msg, Throwable e) {
     super.logW(msg, e);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_warning)));
+    appendToLogs(Log.WARN, msg);
   }
 
   @Override
   protected void logE(String msg, Throwable e) {
     super.logE(msg, e);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_error)));
-  }
-
-  private void appendToLogs(CharSequence msg) {
-    mDebugLogView.append("\n");
-    mDebugLogView.append(DateFormat.format("hh:mm", System.currentTimeMillis()) + ": ");
-    mDebugLogView.append(msg);
+    appendToLogs(Log.ERROR, msg);
   }
 
-  private static CharSequence toColor(String msg, int color) {
-    SpannableString spannable = new SpannableString(msg);
-    spannable.setSpan(new ForegroundColorSpan(color), 0, msg.length(), 0);
-    return spannable;
+  private void appendToLogs(int level, String msg) {
+    if (mLogSink != null) {
+      mLogSink.add(level, msg);
+    }
   }
 
   private static String generateRandomName() {
@@ -0,0 +1,133 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * A pure Java IMA ADPCM codec. Each 16-bit sample is packed into a 4-bit code, so a frame is a
+ * quarter of the size of the PCM it came from.
+ *
+ * <p>Every frame starts with a 4 byte header holding the predictor and step index the encoder had
+ * when it began the frame, followed by two codes per byte (high nibble first). Because of the
+ * header, each frame can be decoded on its own even if the frames before it never arrived.
+ */
+public class AdpcmCodec implements AudioCodec {
+  /** Bytes at the start of each frame: predictor (2), step index (1), reserved (1). */
+  private static final int HEADER_SIZE = 4;
+
+  private static final int[] INDEX_TABLE = {
+    -1, -1, -1, -1, 2, 4, 6, 8,
+    -1, -1, -1, -1, 2, 4, 6, 8
+  };
+
+  private static final int[] STEP_TABLE = {
+    7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66,
+    73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371, 408, 449,
+    494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272,
+    2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493,
+    10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+  };
+
+  /** The encoder's predicted value of the next sample. */
+  private int mPredictor;
+
+  /** The encoder's position in {@link #STEP_TABLE}. */
+  private int mIndex;
+
+  @Override
+  public int getMaxEncodedSize(int samples) {
+    return HEADER_SIZE + (samples + 1) / 2;
+  }
+
+  @Override
+  public int encode(short[] pcm, int offset, int samples, byte[] out, int outOffset) {
+    out[outOffset] = (byte) (mPredictor >> 8);
+    out[outOffset + 1] = (byte) mPredictor;
+    out[outOffset + 2] = (byte) mIndex;
+    out[outOffset + 3] = 0;
+
+    int predictor = mPredictor;
+    int index = mIndex;
+    int pos = outOffset + HEADER_SIZE;
+    for (int i = 0; i < samples; i++) {
+      int step = STEP_TABLE[index];
+      int diff = pcm[offset + i] - predictor;
+      int code = 0;
+      if (diff < 0) {
+        code = 8;
+        diff = -diff;
+      }
+
+      // Quantize the difference against the current step, one bit at a time.
+      int delta = step >> 3;
+      if (diff >= step) {
+        code |= 4;
+        diff -= step;
+        delta += step;
+      }
+      step >>= 1;
+      if (diff >= step) {
+        code |= 2;
+        diff -= step;
+        delta += step;
+      }
+      step >>= 1;
+      if (diff >= step) {
+        code |= 1;
+        delta += step;
+      }
+
+      predictor = clamp((code & 8) != 0 ? predictor - delta : predictor + delta);
+      index = clampIndex(index + INDEX_TABLE[code]);
+
+      if ((i & 1) == 0) {
+        out[pos] = (byte) (code << 4);
+      } else {
+        out[pos++] |= (byte) code;
+      }
+    }
+
+    mPredictor = predictor;
+    mIndex = index;
+    return HEADER_SIZE + (samples + 1) / 2;
+  }
+
+  @Override
+  public int getDecodedSamples(int length) {
+    return length < HEADER_SIZE ? -1 : (length - HEADER_SIZE) * 2;
+  }
+
+  @Override
+  public int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset) {
+    int predictor = (short) (((in[offset] & 0xFF) << 8) | (in[offset + 1] & 0xFF));
+    int index = clampIndex(in[offset + 2] & 0xFF);
+
+    int samples = getDecodedSamples(length);
+    for (int i = 0; i < samples; i++) {
+      int b = in[offset + HEADER_SIZE + i / 2];
+      int code = (i & 1) == 0 ? (b >> 4) & 0x0F : b & 0x0F;
+
+      int step = STEP_TABLE[index];
+      int delta = step >> 3;
+      if ((code & 4) != 0) {
+        delta += step;
+      }
+      if ((code & 2) != 0) {
+        delta += step >> 1;
+      }
+      if ((code & 1) != 0) {
+        delta += step >> 2;
+      }
+
+      predictor = clamp((code & 8) != 0 ? predictor - delta : predictor + delta);
+      index = clampIndex(index + INDEX_TABLE[code]);
+      pcm[pcmOffset + i] = (short) predictor;
+    }
+    return samples;
+  }
+
+  private static int clamp(int sample) {
+    return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+  }
+
+  private static int clampIndex(int index) {
+    return Math.max(0, Math.min(STEP_TABLE.length - 1, index));
+  }
+}
@@ -8,9 +8,21 @@ public abstract class AudioBuffer {
   private static final int[] POSSIBLE_SAMPLE_RATES =
       new int[] {8000, 11025, 16000, 22050, 44100, 48000};
 
+  /** How much audio goes into each encoded frame. */
+  static final int FRAME_DURATION_MS = 20;
+
+  /** The highest sample rate we support. */
+  static final int MAX_SAMPLE_RATE = 48000;
+
+  /**
+   * The most samples a frame can hold, at the highest sample rate we support. There's a little
+   * room to spare for the odd extra sample a {@link Resampler} produces.
+   */
+  static final int MAX_FRAME_SAMPLES = MAX_SAMPLE_RATE * FRAME_DURATION_MS / 1000 + 2;
+
   final int size;
   final int sampleRate;
-  final byte[] data;
+  final int frameSamples;
 
   protected AudioBuffer() {
     int size = -1;
@@ -33,7 +45,9 @@ public abstract class AudioBuffer {
 
     this.size = size;
     this.sampleRate = sampleRate;
-    data = new byte[size];
+
+    // Keep frames an even number of samples long so they pack neatly into 4-bit codecs.
+    frameSamples = (sampleRate * FRAME_DURATION_MS / 1000) & ~1;
   }
 
   protected abstract boolean validSize(int size);
@@ -0,0 +1,46 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * Compresses 16-bit mono PCM into self-contained frames and back again. {@link AudioRecorder}
+ * encodes every frame it captures and {@link AudioPlayer} decodes them as they arrive, so the two
+ * ends of a stream must agree on the codec.
+ *
+ * <p>Encoders may carry state from one frame to the next, so use one instance per stream.
+ */
+public interface AudioCodec {
+  /**
+   * Returns the largest number of bytes {@link #encode(short[], int, int, byte[], int)} can produce
+   * for the given number of samples.
+   */
+  int getMaxEncodedSize(int samples);
+
+  /**
+   * Encodes a frame of PCM.
+   *
+   * @param pcm The samples to encode.
+   * @param offset The first sample to encode.
+   * @param samples The number of samples to encode.
+   * @param out Where to write the encoded frame.
+   * @param outOffset The first byte to write to.
+   * @return The number of bytes written to {@code out}.
+   */
+  int encode(short[] pcm, int offset, int samples, byte[] out, int outOffset);
+
+  /**
+   * Returns the number of samples {@link #decode(byte[], int, int, short[], int)} will produce for
+   * an encoded frame of the given length, or -1 if no frame can have that length.
+   */
+  int getDecodedSamples(int length);
+
+  /**
+   * Decodes a frame produced by {@link #encode(short[], int, int, byte[], int)}.
+   *
+   * @param in The encoded frame.
+   * @param offset The first byte of the frame.
+   * @param length The length of the frame in bytes.
+   * @param pcm Where to write the decoded samples.
+   * @param pcmOffset The first sample to write to.
+   * @return The number of samples written to {@code pcm}.
+   */
+  int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset);
+}
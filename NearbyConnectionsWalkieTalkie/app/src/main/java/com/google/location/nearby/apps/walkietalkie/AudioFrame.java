@@ -0,0 +1,230 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * The layout of a frame of audio on the stream between {@link AudioRecorder} and {@link
+ * AudioPlayer}. Every frame starts with a fixed size header, followed by the encoded audio.
+ *
+ * <pre>
+ *   0      2         3       4     6                10            12       14    16
+ *   +------+---------+-------+-----+-----------------+-------------+--------+-----+---------+
+ *   | 'WT' | version | flags | seq | capture time ms | sample rate | length | crc | payload |
+ *   +------+---------+-------+-----+-----------------+-------------+--------+-----+---------+
+ * </pre>
+ *
+ * <p>Multi-byte fields are big-endian. The sequence number goes up by one every frame, so the
+ * receiver can tell a lost frame from a quiet one. The capture time is the low 32 bits of the
+ * sender's {@link android.os.SystemClock#elapsedRealtime()} when the frame was recorded. The sample
+ * rate is whatever the sender's microphone runs at, in Hz, and the receiver converts from it. The
+ * CRC-16 covers the rest of the header and the payload, and lets {@link AudioFrameParser} tell a
+ * real frame from corrupted or truncated bytes that happen to look like one.
+ *
+ * <p>While the talker is quiet, the sender stops sending audio and sends the occasional {@link
+ * #FLAG_SILENCE} frame instead. Its payload is just the number of samples in a frame, so the
+ * receiver knows how much silence to play for each sequence number it skipped.
+ *
+ * <p>The stream lasts as long as the connection, and carries every talk spurt. A spurt starts with
+ * a {@link #FLAG_TALK_START} frame and ends with a header-only {@link #FLAG_TALK_END} frame.
+ */
+public final class AudioFrame {
+  /** The size of the header, in bytes. */
+  public static final int HEADER_SIZE = 16;
+
+  /** The largest payload a frame may carry. Anything longer is treated as corruption. */
+  public static final int MAX_PAYLOAD_SIZE = 2048;
+
+  /** The largest a whole frame can be, header included. */
+  public static final int MAX_FRAME_SIZE = HEADER_SIZE + MAX_PAYLOAD_SIZE;
+
+  /** Marks a frame that carries no audio, only the news that the talker has gone quiet. */
+  public static final int FLAG_SILENCE = 0x01;
+
+  /**
+   * Marks a frame recorded just before the talker pushed to talk. Pre-roll frames are sent in a
+   * burst as the talk spurt starts, so their arrival times say nothing about the network.
+   */
+  public static final int FLAG_PRE_ROLL = 0x02;
+
+  /**
+   * Marks the first frame of a talk spurt. The stream stays open between spurts, so this tells the
+   * receiver that the gap before it was the talker letting go, not the network.
+   */
+  public static final int FLAG_TALK_START = 0x04;
+
+  /** Marks an empty frame sent when the talker lets go. The receiver plays out what it has. */
+  public static final int FLAG_TALK_END = 0x08;
+
+  /** The size of a {@link #FLAG_SILENCE} frame's payload. */
+  public static final int SILENCE_PAYLOAD_SIZE = 2;
+
+  /** The version of the header this class reads and writes. */
+  static final int VERSION = 2;
+
+  private static final int MAGIC_0 = 'W';
+  private static final int MAGIC_1 = 'T';
+
+  private static final int OFFSET_VERSION = 2;
+  private static final int OFFSET_FLAGS = 3;
+  private static final int OFFSET_SEQ = 4;
+  private static final int OFFSET_TIMESTAMP = 6;
+  private static final int OFFSET_SAMPLE_RATE = 10;
+  private static final int OFFSET_LENGTH = 12;
+  private static final int OFFSET_CRC = 14;
+
+  /** CRC-16/CCITT lookup table, for polynomial x^16 + x^12 + x^5 + 1. */
+  private static final char[] CRC_TABLE = new char[256];
+
+  static {
+    for (int i = 0; i < CRC_TABLE.length; i++) {
+      int crc = i << 8;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+      }
+      CRC_TABLE[i] = (char) crc;
+    }
+  }
+
+  private AudioFrame() {}
+
+  /**
+   * Writes a frame header. The payload must already be in place, right after it, since the
+   * checksum covers it.
+   *
+   * @param frame Where to write the header.
+   * @param offset The first byte of the frame.
+   * @param flags Flags describing the frame.
+   * @param seq The frame's sequence number. Only the low 16 bits are sent.
+   * @param timestampMs When the frame was captured. Only the low 32 bits are sent.
+   * @param sampleRate The sample rate of the audio, in Hz.
+   * @param length The length of the payload.
+   */
+  public static void writeHeader(
+      byte[] frame,
+      int offset,
+      int flags,
+      int seq,
+      long timestampMs,
+      int sampleRate,
+      int length) {
+    frame[offset] = (byte) MAGIC_0;
+    frame[offset + 1] = (byte) MAGIC_1;
+    frame[offset + OFFSET_VERSION] = (byte) VERSION;
+    frame[offset + OFFSET_FLAGS] = (byte) flags;
+    frame[offset + OFFSET_SEQ] = (byte) (seq >> 8);
+    frame[offset + OFFSET_SEQ + 1] = (byte) seq;
+    frame[offset + OFFSET_TIMESTAMP] = (byte) (timestampMs >> 24);
+    frame[offset + OFFSET_TIMESTAMP + 1] = (byte) (timestampMs >> 16);
+    frame[offset + OFFSET_TIMESTAMP + 2] = (byte) (timestampMs >> 8);
+    frame[offset + OFFSET_TIMESTAMP + 3] = (byte) timestampMs;
+    frame[offset + OFFSET_SAMPLE_RATE] = (byte) (sampleRate >> 8);
+    frame[offset + OFFSET_SAMPLE_RATE + 1] = (byte) sampleRate;
+    frame[offset + OFFSET_LENGTH] = (byte) (length >> 8);
+    frame[offset + OFFSET_LENGTH + 1] = (byte) length;
+
+    int crc = crc16(frame, offset, length);
+    frame[offset + OFFSET_CRC] = (byte) (crc >> 8);
+    frame[offset + OFFSET_CRC + 1] = (byte) crc;
+  }
+
+  /**
+   * Writes a {@link #FLAG_SILENCE} frame.
+   *
+   * @param frame Where to write the frame.
+   * @param offset The first byte of the frame.
+   * @param flags Flags to set alongside {@link #FLAG_SILENCE}.
+   * @param seq The frame's sequence number.
+   * @param timestampMs When the frame was captured.
+   * @param sampleRate The sample rate of the stream, in Hz.
+   * @param samples The number of samples in each frame of the stream.
+   * @return The length of the frame.
+   */
+  public static int writeSilence(
+      byte[] frame,
+      int offset,
+      int flags,
+      int seq,
+      long timestampMs,
+      int sampleRate,
+      int samples) {
+    frame[offset + HEADER_SIZE] = (byte) (samples >> 8);
+    frame[offset + HEADER_SIZE + 1] = (byte) samples;
+    writeHeader(
+        frame,
+        offset,
+        flags | FLAG_SILENCE,
+        seq,
+        timestampMs,
+        sampleRate,
+        SILENCE_PAYLOAD_SIZE);
+    return HEADER_SIZE + SILENCE_PAYLOAD_SIZE;
+  }
+
+  /** Returns the samples per frame carried in the payload of a {@link #FLAG_SILENCE} frame. */
+  public static int getSilenceSamples(byte[] payload, int offset) {
+    return readUnsignedShort(payload, offset);
+  }
+
+  /**
+   * Returns true if the header at the given offset could be the start of a frame. The checksum
+   * can't be checked until the whole frame has arrived; see {@link #hasValidChecksum(byte[], int)}.
+   */
+  public static boolean isPlausibleHeader(byte[] frame, int offset) {
+    return frame[offset] == MAGIC_0
+        && frame[offset + 1] == MAGIC_1
+        && frame[offset + OFFSET_VERSION] == VERSION
+        && getSampleRate(frame, offset) > 0
+        && getSampleRate(frame, offset) <= AudioBuffer.MAX_SAMPLE_RATE
+        && getLength(frame, offset) <= MAX_PAYLOAD_SIZE;
+  }
+
+  /** Returns true if the complete frame at the given offset matches its checksum. */
+  public static boolean hasValidChecksum(byte[] frame, int offset) {
+    return readUnsignedShort(frame, offset + OFFSET_CRC)
+        == crc16(frame, offset, getLength(frame, offset));
+  }
+
+  /** Returns the flags of the frame at the given offset. */
+  public static int getFlags(byte[] frame, int offset) {
+    return frame[offset + OFFSET_FLAGS] & 0xFF;
+  }
+
+  /** Returns the 16-bit sequence number of the frame at the given offset. */
+  public static int getSeq(byte[] frame, int offset) {
+    return readUnsignedShort(frame, offset + OFFSET_SEQ);
+  }
+
+  /** Returns the low 32 bits of the capture time of the frame at the given offset. */
+  public static int getTimestamp(byte[] frame, int offset) {
+    int pos = offset + OFFSET_TIMESTAMP;
+    return (frame[pos] & 0xFF) << 24
+        | (frame[pos + 1] & 0xFF) << 16
+        | (frame[pos + 2] & 0xFF) << 8
+        | (frame[pos + 3] & 0xFF);
+  }
+
+  /** Returns the sample rate, in Hz, of the frame at the given offset. */
+  public static int getSampleRate(byte[] frame, int offset) {
+    return readUnsignedShort(frame, offset + OFFSET_SAMPLE_RATE);
+  }
+
+  /** Returns the payload length of the frame at the given offset. */
+  public static int getLength(byte[] frame, int offset) {
+    return readUnsignedShort(frame, offset + OFFSET_LENGTH);
+  }
+
+  private static int readUnsignedShort(byte[] data, int pos) {
+    return (data[pos] & 0xFF) << 8 | (data[pos + 1] & 0xFF);
+  }
+
+  /** Returns the CRC of a frame's header, minus the CRC field itself, followed by its payload. */
+  private static int crc16(byte[] frame, int offset, int length) {
+    int crc = update(0xFFFF, frame, offset, OFFSET_CRC);
+    return update(crc, frame, offset + HEADER_SIZE, length);
+  }
+
+  private static int update(int crc, byte[] data, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      crc = ((crc << 8) ^ CRC_TABLE[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+    }
+    return crc;
+  }
+}
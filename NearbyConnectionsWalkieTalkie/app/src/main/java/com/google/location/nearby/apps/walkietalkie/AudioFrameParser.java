@@ -0,0 +1,163 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pulls {@link AudioFrame}s off a stream one at a time. If the bytes at the read position don't
+ * form a valid frame, the parser steps forward a byte at a time until they do, so a corrupted or
+ * truncated frame costs at most that frame.
+ *
+ * <p>After {@link #next()} returns true, the getters describe the frame that was just read. Its
+ * payload is only valid until the next call. The parser reuses one buffer and doesn't allocate.
+ */
+public class AudioFrameParser {
+  /** The stream we're reading from. */
+  private final InputStream mInputStream;
+
+  /** Bytes read from the stream but not yet parsed live between mStart and mEnd. */
+  private final byte[] mBuffer = new byte[2 * AudioFrame.MAX_FRAME_SIZE];
+
+  private int mStart;
+  private int mEnd;
+
+  /** True once the stream has ended. Whatever is still buffered may hold frames. */
+  private boolean mEndOfStream;
+
+  /** The full sequence number of the last frame, unwrapped from the 16 bits on the wire. */
+  private int mSeq;
+
+  private boolean mHasSeq;
+  private int mFlags;
+  private int mTimestamp;
+  private int mSampleRate;
+  private int mPayloadOffset;
+  private int mPayloadLength;
+
+  private long mSkippedBytes;
+  private long mResyncs;
+
+  /**
+   * Creates a parser.
+   *
+   * @param inputStream The stream to read frames from.
+   */
+  public AudioFrameParser(InputStream inputStream) {
+    mInputStream = inputStream;
+  }
+
+  /**
+   * Reads the next frame, blocking until it has fully arrived.
+   *
+   * @return False if the stream ended before another frame could be read.
+   */
+  public boolean next() throws IOException {
+    boolean skipped = false;
+    while (true) {
+      if (!fill(AudioFrame.HEADER_SIZE)) {
+        return false;
+      }
+
+      if (AudioFrame.isPlausibleHeader(mBuffer, mStart)
+          && fillFrame()
+          && AudioFrame.hasValidChecksum(mBuffer, mStart)) {
+        int length = AudioFrame.getLength(mBuffer, mStart);
+
+        int wireSeq = AudioFrame.getSeq(mBuffer, mStart);
+        mSeq = mHasSeq ? mSeq + (short) (wireSeq - mSeq) : wireSeq;
+        mHasSeq = true;
+        mFlags = AudioFrame.getFlags(mBuffer, mStart);
+        mTimestamp = AudioFrame.getTimestamp(mBuffer, mStart);
+        mSampleRate = AudioFrame.getSampleRate(mBuffer, mStart);
+        mPayloadOffset = mStart + AudioFrame.HEADER_SIZE;
+        mPayloadLength = length;
+        mStart += AudioFrame.HEADER_SIZE + length;
+
+        if (skipped) {
+          mResyncs++;
+        }
+        return true;
+      }
+
+      // Not a frame, or one the stream ended partway through. Either way, step forward and look
+      // again. A cut off frame can seem to run on past whole frames that are still buffered.
+      mStart++;
+      mSkippedBytes++;
+      skipped = true;
+    }
+  }
+
+  /** Makes sure the whole frame at the read position is buffered. Returns false at EOF. */
+  private boolean fillFrame() throws IOException {
+    return fill(AudioFrame.HEADER_SIZE + AudioFrame.getLength(mBuffer, mStart));
+  }
+
+  /** Makes sure at least {@code length} unparsed bytes are buffered. Returns false at EOF. */
+  private boolean fill(int length) throws IOException {
+    if (mEnd - mStart >= length) {
+      return true;
+    }
+    if (mStart + length > mBuffer.length) {
+      System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+      mEnd -= mStart;
+      mStart = 0;
+    }
+    while (mEnd - mStart < length) {
+      if (mEndOfStream) {
+        return false;
+      }
+      int read = mInputStream.read(mBuffer, mEnd, mBuffer.length - mEnd);
+      if (read < 0) {
+        mEndOfStream = true;
+        return false;
+      }
+      mEnd += read;
+    }
+    return true;
+  }
+
+  /** Returns the sequence number of the current frame, unwrapped to a full int. */
+  public int getSeq() {
+    return mSeq;
+  }
+
+  /** Returns the flags of the current frame. */
+  public int getFlags() {
+    return mFlags;
+  }
+
+  /** Returns the low 32 bits of the sender's capture time of the current frame, in milliseconds. */
+  public int getTimestamp() {
+    return mTimestamp;
+  }
+
+  /** Returns the sample rate of the current frame, in Hz. */
+  public int getSampleRate() {
+    return mSampleRate;
+  }
+
+  /** Returns the buffer holding the current frame's payload. */
+  public byte[] getPayload() {
+    return mBuffer;
+  }
+
+  /** Returns where the current frame's payload starts in {@link #getPayload()}. */
+  public int getPayloadOffset() {
+    return mPayloadOffset;
+  }
+
+  /** Returns the length of the current frame's payload. */
+  public int getPayloadLength() {
+    return mPayloadLength;
+  }
+
+  /** Returns how many bytes were skipped because they weren't part of a valid frame. */
+  public long getSkippedBytes() {
+    return mSkippedBytes;
+  }
+
+  /** Returns how many times we lost our place in the stream and found it again. */
+  public long getResyncs() {
+    return mResyncs;
+  }
+}
@@ -0,0 +1,241 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static android.os.Process.THREAD_PRIORITY_AUDIO;
+import static android.os.Process.setThreadPriority;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import java.util.Arrays;
+
+/**
+ * Plays any number of {@link AudioPlayer}s at once through a single {@link AudioTrack}. Every frame,
+ * the mixer reads the next frame from each player, sums them and clips the result to 16 bits, so
+ * talkers overlap instead of cutting each other off. Players convert their audio to the mixer's
+ * sample rate, so talkers whose phones record at other rates still play at the right pitch.
+ *
+ * <p>Between {@link #start()} and {@link #stop()}, the {@link AudioTrack} is kept open and playing
+ * silence even when nobody is talking, so a talker's first words don't wait for the playback path
+ * to be set up. Otherwise the playback thread starts when the first player is added and stops once
+ * the last one has drained. We measure how long each talk spurt takes from arriving to being
+ * written to the track. Mixing reuses the same buffers every frame and doesn't allocate.
+ */
+public class AudioMixer {
+  /** The most players we'll mix at once. */
+  private static final int MAX_PLAYERS = 16;
+
+  /** The output format we play at, picked for this device's speaker. */
+  private final Buffer mBuffer = new Buffer();
+
+  /** The players currently being mixed. Guarded by {@code this}. */
+  private final AudioPlayer[] mPlayers = new AudioPlayer[MAX_PLAYERS];
+
+  /** The number of entries in {@link #mPlayers}. Guarded by {@code this}. */
+  private int mPlayerCount;
+
+  /**
+   * The background thread playing audio for us, or null if nothing is playing. It shuts down once
+   * there are no players left and we aren't being kept warm. Guarded by {@code this}.
+   */
+  private Thread mThread;
+
+  /** True between {@link #start()} and {@link #stop()}. Guarded by {@code this}. */
+  private boolean mWarm;
+
+  /** Guards the latency stats. */
+  private final Object mStatsLock = new Object();
+
+  private final MetricsRegistry.Distribution mStartLatency =
+      MetricsRegistry.get().distribution("audio.arrivalToFirstSampleMs");
+  private final MetricsRegistry.Gauge mActivePlayers =
+      MetricsRegistry.get().gauge("audio.activePlayers");
+
+  private long mSpurts;
+  private long mTotalStartLatencyMs;
+  private long mMaxStartLatencyMs;
+  private long mLastStartLatencyMs = -1;
+
+  /** Returns the sample rate we play at, in Hz. Players must convert their audio to it. */
+  public int getSampleRate() {
+    return mBuffer.sampleRate;
+  }
+
+  /**
+   * Returns roughly how long audio waits in the {@link AudioTrack}'s buffer after we write it, in
+   * ms, before it's heard.
+   */
+  public int getOutputLatencyMillis() {
+    // The buffer holds 16-bit samples.
+    return (int) ((long) mBuffer.size / 2 * 1000 / mBuffer.sampleRate);
+  }
+
+  /**
+   * Adds a player to the mix, starting playback if nothing else was playing.
+   *
+   * @return False if we're already mixing as many players as we can.
+   */
+  synchronized boolean add(AudioPlayer player) {
+    if (mPlayerCount == MAX_PLAYERS) {
+      return false;
+    }
+    mPlayers[mPlayerCount++] = player;
+    mActivePlayers.set(mPlayerCount);
+    startThread();
+    return true;
+  }
+
+  /** Opens the output and keeps it playing, silence included, until {@link #stop()}. */
+  public synchronized void start() {
+    mWarm = true;
+    startThread();
+  }
+
+  /** Starts the playback thread, if it isn't already running. Called with {@code this} held. */
+  private void startThread() {
+    if (mThread != null) {
+      return;
+    }
+    mThread =
+        new Thread() {
+          @Override
+          public void run() {
+            setThreadPriority(THREAD_PRIORITY_AUDIO);
+            mix();
+          }
+        };
+    mThread.start();
+  }
+
+  /** Removes a player from the mix. */
+  synchronized void remove(AudioPlayer player) {
+    for (int i = 0; i < mPlayerCount; i++) {
+      if (mPlayers[i] == player) {
+        mPlayers[i] = mPlayers[--mPlayerCount];
+        mPlayers[mPlayerCount] = null;
+        mActivePlayers.set(mPlayerCount);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Stops keeping the output open. Players still in the mix play out what they have, and are told
+   * they've drained as usual, then playback stops. To cut a player off, stop it instead.
+   */
+  public synchronized void stop() {
+    mWarm = false;
+  }
+
+  /** @return How long the last talk spurt took from arriving to being played, in ms, or -1. */
+  public long getLastStartLatencyMillis() {
+    synchronized (mStatsLock) {
+      return mLastStartLatencyMs;
+    }
+  }
+
+  /** @return The longest any talk spurt has taken from arriving to being played, in ms. */
+  public long getMaxStartLatencyMillis() {
+    synchronized (mStatsLock) {
+      return mMaxStartLatencyMs;
+    }
+  }
+
+  /** @return The average time talk spurts have taken from arriving to being played, in ms. */
+  public float getAverageStartLatencyMillis() {
+    synchronized (mStatsLock) {
+      return mSpurts == 0 ? 0 : (float) mTotalStartLatencyMs / mSpurts;
+    }
+  }
+
+  /**
+   * Records how long a talk spurt took from its first frame arriving to its first sample being
+   * written to the track. Called by players on the playback thread.
+   */
+  void onFirstSample(long latencyMs) {
+    synchronized (mStatsLock) {
+      mSpurts++;
+      mTotalStartLatencyMs += latencyMs;
+      mMaxStartLatencyMs = Math.max(mMaxStartLatencyMs, latencyMs);
+      mLastStartLatencyMs = latencyMs;
+    }
+    mStartLatency.record(latencyMs);
+  }
+
+  private void mix() {
+    Buffer buffer = mBuffer;
+    AudioTrack audioTrack =
+        new AudioTrack(
+            AudioManager.STREAM_MUSIC,
+            buffer.sampleRate,
+            AudioFormat.CHANNEL_OUT_MONO,
+            AudioFormat.ENCODING_PCM_16BIT,
+            buffer.size,
+            AudioTrack.MODE_STREAM);
+    audioTrack.play();
+
+    AudioPlayer[] players = new AudioPlayer[MAX_PLAYERS];
+    short[] frame = new short[buffer.frameSamples];
+    int[] sum = new int[buffer.frameSamples];
+    short[] out = new short[buffer.frameSamples];
+    try {
+      while (true) {
+        int count;
+        synchronized (this) {
+          // While warm, keep the track fed with silence rather than letting it go.
+          if (mPlayerCount == 0 && !mWarm) {
+            mThread = null;
+            break;
+          }
+          count = mPlayerCount;
+          System.arraycopy(mPlayers, 0, players, 0, count);
+        }
+
+        Arrays.fill(sum, 0);
+        for (int i = 0; i < count; i++) {
+          int samples = players[i].read(frame, frame.length);
+          if (samples > 0) {
+            for (int j = 0; j < samples; j++) {
+              sum[j] += frame[j];
+            }
+          } else if (players[i].getJitterBuffer().isDrained()) {
+            remove(players[i]);
+            players[i].onDrained();
+          }
+        }
+
+        // Clip rather than wrap when talkers add up to more than 16 bits can hold.
+        for (int j = 0; j < sum.length; j++) {
+          int sample = sum[j];
+          if (sample > Short.MAX_VALUE) {
+            sample = Short.MAX_VALUE;
+          } else if (sample < Short.MIN_VALUE) {
+            sample = Short.MIN_VALUE;
+          }
+          out[j] = (short) sample;
+        }
+        audioTrack.write(out, 0, out.length);
+      }
+    } finally {
+      synchronized (this) {
+        if (mThread == Thread.currentThread()) {
+          mThread = null;
+        }
+      }
+      Arrays.fill(players, null);
+      audioTrack.release();
+    }
+  }
+
+  private static class Buffer extends AudioBuffer {
+    @Override
+    protected boolean validSize(int size) {
+      return size != AudioTrack.ERROR && size != AudioTrack.ERROR_BAD_VALUE;
+    }
+
+    @Override
+    protected int getMinBufferSize(int sampleRate) {
+      return AudioTrack.getMinBufferSize(
+          sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+    }
+  }
+}
@@ -4,38 +4,126 @@ import static android.os.Process.THREAD_PRIORITY_AUDIO;
 import static android.os.Process.setThreadPriority;
 import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
 
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
+import android.os.SystemClock;
 import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A fire-once class. When created, you must pass a {@link InputStream}. Once {@link #start()} is
  * called, the input stream will be read from until either {@link #stop()} is called or the stream
- * ends.
+ * ends. The stream is expected to hold the {@link AudioFrame}s written by {@link AudioRecorder},
+ * and lasts as long as the connection, carrying each talk spurt in turn.
+ *
+ * <p>A background thread reads and decodes frames into a {@link JitterBuffer}, and an {@link
+ * AudioMixer} shared by every player plays them out of it, so hiccups on the link don't reach the
+ * speaker and several people can talk at once. Frames that never arrive are filled in by a {@link
+ * PacketLossConcealer}. If the sender records at a different sample rate to the mixer's, a {@link
+ * Resampler} converts the audio as it's decoded.
+ *
+ * <p>With a {@link LatencyMonitor}, we also measure how long each frame takes from the talker's
+ * microphone to our speaker.
  */
 public class AudioPlayer {
+  /** How many recent frames we remember the capture times of. Must be a power of 2. */
+  private static final int CAPTURE_HISTORY = 64;
+
   /** The audio stream we're reading from. */
   private final InputStream mInputStream;
 
+  /** Plays our audio alongside everyone else's. */
+  private final AudioMixer mMixer;
+
+  /** Decompresses the frames we read. */
+  private final AudioCodec mCodec;
+
+  private final MetricsRegistry.Counter mUnderruns =
+      MetricsRegistry.get().counter("audio.underruns");
+  private final MetricsRegistry.Counter mLostFrames =
+      MetricsRegistry.get().counter("audio.lostFrames");
+  private final MetricsRegistry.Counter mConcealedFrames =
+      MetricsRegistry.get().counter("audio.concealedFrames");
+  private final MetricsRegistry.Counter mLateDrops =
+      MetricsRegistry.get().counter("audio.lateDrops");
+
+  /** Holds decoded frames between the reader thread and the mixer. */
+  private final JitterBuffer mJitterBuffer = new JitterBuffer(AudioBuffer.FRAME_DURATION_MS);
+
+  /** Makes up audio for frames that never arrive. Only used by the mixer's thread. */
+  private final PacketLossConcealer mConcealer =
+      new PacketLossConcealer(AudioBuffer.FRAME_DURATION_MS);
+
+  /**
+   * Audio taken from the jitter buffer but not yet handed to the mixer. Resampled frames don't
+   * always line up with the mixer's, so we hand it exactly as much as it asks for and keep the
+   * rest. Only used by the mixer's thread.
+   */
+  private final short[] mPending = new short[2 * AudioBuffer.MAX_FRAME_SAMPLES];
+
+  private int mPendingSamples;
+
   /**
-   * If true, the background thread will continue to loop and play audio. Once false, the thread
+   * When the first frame of the latest talk spurt arrived, or -1 once the mixer has played some of
+   * it. Set by the reader thread, cleared by the mixer's.
+   */
+  private final AtomicLong mSpurtArrivalMs = new AtomicLong(-1);
+
+  /** True once the talker has let go, until the mixer has played out what they said. */
+  private final AtomicBoolean mSpurtEnded = new AtomicBoolean();
+
+  /** Measures mouth-to-ear delay, or null if we aren't. */
+  private volatile LatencyMonitor mLatencyMonitor;
+
+  /**
+   * The capture times of recent frames of audio, by sequence number, for the latency monitor. The
+   * reader thread writes them before handing the frame to the jitter buffer, and the mixer's
+   * thread reads them after taking it out, so the buffer's lock keeps them in step.
+   */
+  private final int[] mCaptureSeqs = new int[CAPTURE_HISTORY];
+
+  private final int[] mCaptureTimes = new int[CAPTURE_HISTORY];
+
+  /** A frame taken from the jitter buffer. Only used by the mixer's thread. */
+  private final short[] mFrame = new short[AudioBuffer.MAX_FRAME_SAMPLES];
+
+  /**
+   * If true, the background thread will continue to loop and read audio. Once false, the thread
    * will shut down.
    */
   private volatile boolean mAlive;
 
-  /** The background thread recording audio for us. */
+  /** True once {@link #onFinish()} has been called. Guarded by {@code this}. */
+  private boolean mFinished;
+
+  /** The background thread reading frames off the stream for us. */
   private Thread mThread;
 
+  /**
+   * A simple audio player, decompressing with {@link AdpcmCodec}.
+   *
+   * @param inputStream The input stream of the recording.
+   * @param mixer The mixer to play the recording through.
+   */
+  public AudioPlayer(InputStream inputStream, AudioMixer mixer) {
+    this(inputStream, mixer, new AdpcmCodec());
+  }
+
   /**
    * A simple audio player.
    *
    * @param inputStream The input stream of the recording.
+   * @param mixer The mixer to play the recording through.
+   * @param codec The codec the recording was compressed with.
    */
-  public AudioPlayer(InputStream inputStream) {
+  public AudioPlayer(InputStream inputStream, AudioMixer mixer, AudioCodec codec) {
     mInputStream = inputStream;
+    mMixer = mixer;
+    mCodec = codec;
+    // No frame has a capture time yet.
+    Arrays.fill(mCaptureSeqs, -1);
   }
 
   /** @return True if currently playing. */
@@ -43,43 +131,134 @@ public class AudioPlayer {
     return mAlive;
   }
 
+  /**
+   * Starts measuring mouth-to-ear delay. Call before {@link #start()}.
+   *
+   * @param monitor Where to record the delays, or null to stop measuring.
+   */
+  public void setLatencyMonitor(LatencyMonitor monitor) {
+    mLatencyMonitor = monitor;
+  }
+
+  /** @return The buffer smoothing out this stream, for its depth, underruns and drops. */
+  public JitterBuffer getJitterBuffer() {
+    return mJitterBuffer;
+  }
+
   /** Starts playing the stream. */
   public void start() {
     mAlive = true;
+    if (!mMixer.add(this)) {
+      Log.w(TAG, "Too many people talking at once. Ignoring a stream.");
+      stopInternal();
+      finish();
+      return;
+    }
+
     mThread =
         new Thread() {
           @Override
           public void run() {
             setThreadPriority(THREAD_PRIORITY_AUDIO);
-
-            Buffer buffer = new Buffer();
-            AudioTrack audioTrack =
-                new AudioTrack(
-                    AudioManager.STREAM_MUSIC,
-                    buffer.sampleRate,
-                    AudioFormat.CHANNEL_OUT_MONO,
-                    AudioFormat.ENCODING_PCM_16BIT,
-                    buffer.size,
-                    AudioTrack.MODE_STREAM);
-            audioTrack.play();
-
-            int len;
-            try {
-              while (isPlaying() && (len = mInputStream.read(buffer.data)) > 0) {
-                audioTrack.write(buffer.data, 0, len);
-              }
-            } catch (IOException e) {
-              Log.e(TAG, "Exception with playing stream", e);
-            } finally {
-              stopInternal();
-              audioTrack.release();
-              onFinish();
-            }
+            readFrames();
           }
         };
     mThread.start();
   }
 
+  /** Reads and decodes frames into the jitter buffer until the stream ends or we're stopped. */
+  private void readFrames() {
+    AudioFrameParser parser = new AudioFrameParser(mInputStream);
+    short[] pcm = new short[AudioBuffer.MAX_FRAME_SAMPLES];
+    short[] resampled = new short[AudioBuffer.MAX_FRAME_SAMPLES];
+    int outputRate = mMixer.getSampleRate();
+    Resampler resampler = null;
+    try {
+      // Once the stream ends, the sender has disconnected.
+      while (isPlaying() && parser.next()) {
+        if ((parser.getFlags() & AudioFrame.FLAG_TALK_END) != 0) {
+          mJitterBuffer.endTalkSpurt();
+          mSpurtEnded.set(true);
+          continue;
+        }
+        if ((parser.getFlags() & AudioFrame.FLAG_TALK_START) != 0) {
+          mJitterBuffer.startTalkSpurt();
+          mSpurtArrivalMs.set(elapsedRealtime());
+        }
+
+        int inputRate = parser.getSampleRate();
+        if (inputRate == outputRate) {
+          resampler = null;
+        } else if (resampler == null || resampler.getInputRate() != inputRate) {
+          Log.d(TAG, "Resampling a stream from " + inputRate + "Hz to " + outputRate + "Hz");
+          resampler = new Resampler(inputRate, outputRate);
+        }
+
+        int len = parser.getPayloadLength();
+        boolean preRoll = (parser.getFlags() & AudioFrame.FLAG_PRE_ROLL) != 0;
+        if ((parser.getFlags() & AudioFrame.FLAG_SILENCE) != 0) {
+          int samples =
+              len == AudioFrame.SILENCE_PAYLOAD_SIZE
+                  ? AudioFrame.getSilenceSamples(parser.getPayload(), parser.getPayloadOffset())
+                  : -1;
+          if (samples > 0) {
+            samples = (int) ((long) samples * outputRate / inputRate);
+          }
+          if (samples <= 0 || samples > pcm.length) {
+            Log.w(TAG, "Dropping malformed silence frame of " + len + " bytes");
+            continue;
+          }
+          mJitterBuffer.putSilence(parser.getSeq(), samples, elapsedRealtime(), preRoll);
+          continue;
+        }
+
+        int samples = mCodec.getDecodedSamples(len);
+        if (samples < 0
+            || samples > pcm.length
+            || (resampler != null && resampler.getMaxOutputSamples(samples) > resampled.length)) {
+          Log.w(TAG, "Dropping malformed frame of " + len + " bytes");
+          continue;
+        }
+        mCodec.decode(parser.getPayload(), parser.getPayloadOffset(), len, pcm, 0);
+        LatencyMonitor monitor = mLatencyMonitor;
+        if (monitor != null) {
+          int slot = parser.getSeq() & (CAPTURE_HISTORY - 1);
+          mCaptureSeqs[slot] = parser.getSeq();
+          mCaptureTimes[slot] = parser.getTimestamp();
+          if (!preRoll) {
+            monitor.onArrival(parser.getTimestamp(), elapsedRealtime());
+          }
+        }
+        if (resampler == null) {
+          mJitterBuffer.put(parser.getSeq(), pcm, 0, samples, elapsedRealtime(), preRoll);
+        } else {
+          int resampledSamples = resampler.process(pcm, 0, samples, resampled, 0);
+          mJitterBuffer.put(
+              parser.getSeq(), resampled, 0, resampledSamples, elapsedRealtime(), preRoll);
+        }
+      }
+    } catch (IOException e) {
+      if (isPlaying()) {
+        Log.e(TAG, "Exception with playing stream", e);
+      }
+    } finally {
+      mJitterBuffer.finish();
+      LatencyMonitor monitor = mLatencyMonitor;
+      if (monitor != null) {
+        monitor.onTransmissionEnd();
+      }
+      if (parser.getResyncs() > 0) {
+        Log.w(
+            TAG,
+            "Resynchronized "
+                + parser.getResyncs()
+                + " times, skipping "
+                + parser.getSkippedBytes()
+                + " bytes");
+      }
+    }
+  }
+
   private void stopInternal() {
     mAlive = false;
     try {
@@ -92,27 +271,129 @@ public class AudioPlayer {
   /** Stops playing the stream. */
   public void stop() {
     stopInternal();
-    try {
-      mThread.join();
-    } catch (InterruptedException e) {
-      Log.e(TAG, "Interrupted while joining AudioRecorder thread", e);
-      Thread.currentThread().interrupt();
+    mMixer.remove(this);
+    if (mThread != null) {
+      try {
+        mThread.join();
+      } catch (InterruptedException e) {
+        Log.e(TAG, "Interrupted while joining AudioPlayer thread", e);
+        Thread.currentThread().interrupt();
+      }
     }
+    finish();
   }
 
-  /** The stream has now ended. */
-  protected void onFinish() {}
+  /**
+   * Called by the mixer for the next stretch of audio to play. Missing frames are concealed.
+   *
+   * @param out Where to write the audio.
+   * @param samples How many samples the mixer wants. At most {@link AudioBuffer#MAX_FRAME_SAMPLES}.
+   * @return The number of samples written. Fewer than asked for, or none, if we've run out.
+   */
+  int read(short[] out, int samples) {
+    while (mPendingSamples < samples) {
+      int len = mJitterBuffer.take(mFrame, 0);
+      if (len == JitterBuffer.LOST) {
+        len = mConcealer.conceal(mFrame, 0);
+      } else {
+        mConcealer.onFrame(mFrame, 0, len);
+      }
+      if (len <= 0) {
+        if (mSpurtEnded.compareAndSet(true, false)) {
+          onSpurtPlayed();
+        }
+        break;
+      }
+      onFramePlayed(mPendingSamples);
+      System.arraycopy(mFrame, 0, mPending, mPendingSamples, len);
+      mPendingSamples += len;
+    }
 
-  private static class Buffer extends AudioBuffer {
-    @Override
-    protected boolean validSize(int size) {
-      return size != AudioTrack.ERROR && size != AudioTrack.ERROR_BAD_VALUE;
+    int read = Math.min(samples, mPendingSamples);
+    if (read > 0) {
+      long arrivalMs = mSpurtArrivalMs.getAndSet(-1);
+      if (arrivalMs >= 0) {
+        mMixer.onFirstSample(elapsedRealtime() - arrivalMs);
+      }
     }
+    System.arraycopy(mPending, 0, out, 0, read);
+    mPendingSamples -= read;
+    System.arraycopy(mPending, read, mPending, 0, mPendingSamples);
+    return read;
+  }
 
-    @Override
-    protected int getMinBufferSize(int sampleRate) {
-      return AudioTrack.getMinBufferSize(
-          sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+  /**
+   * Tells the latency monitor the frame just taken from the jitter buffer is about to be played.
+   *
+   * @param queuedSamples How much audio is ahead of it in {@link #mPending}.
+   */
+  private void onFramePlayed(int queuedSamples) {
+    LatencyMonitor monitor = mLatencyMonitor;
+    if (monitor == null) {
+      return;
+    }
+    int seq = mJitterBuffer.getLastTakenSeq();
+    int slot = seq & (CAPTURE_HISTORY - 1);
+    // Concealed frames and silence never arrived, so have no capture time.
+    if (mCaptureSeqs[slot] != seq) {
+      return;
+    }
+    long playoutMs =
+        elapsedRealtime()
+            + mMixer.getOutputLatencyMillis()
+            + queuedSamples * 1000L / mMixer.getSampleRate();
+    monitor.onPlayout(mCaptureTimes[slot], playoutMs);
+  }
+
+  /** Called on the mixer's thread once a talk spurt has played out. */
+  private void onSpurtPlayed() {
+    LatencyMonitor monitor = mLatencyMonitor;
+    if (monitor != null) {
+      monitor.onTransmissionEnd();
+    }
+  }
+
+  /** Returns the time now, in ms since boot. Tests override it to run the player on their clock. */
+  long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  /** Called by the mixer once every frame of the stream has been played. */
+  void onDrained() {
+    stopInternal();
+    finish();
+  }
+
+  private void finish() {
+    synchronized (this) {
+      if (mFinished) {
+        return;
+      }
+      mFinished = true;
     }
+    mUnderruns.add(mJitterBuffer.getUnderruns());
+    mLostFrames.add(mJitterBuffer.getLostFrames());
+    mConcealedFrames.add(mConcealer.getConcealedFrames());
+    mLateDrops.add(mJitterBuffer.getLateDrops());
+    Log.d(
+        TAG,
+        "Jitter buffer: underruns="
+            + mJitterBuffer.getUnderruns()
+            + ", lost="
+            + mJitterBuffer.getLostFrames()
+            + ", concealed="
+            + mConcealer.getConcealedFrames()
+            + ", silent="
+            + mJitterBuffer.getSilentFrames()
+            + ", lateDrops="
+            + mJitterBuffer.getLateDrops()
+            + ", discards="
+            + mJitterBuffer.getDiscards()
+            + ", targetDepth="
+            + mJitterBuffer.getTargetDepth());
+    onFinish();
   }
+
+  /** The stream has now ended. */
+  protected void onFinish() {}
 }
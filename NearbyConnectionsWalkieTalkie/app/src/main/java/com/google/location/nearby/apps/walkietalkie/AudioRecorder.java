@@ -4,135 +4,325 @@ import static android.os.Process.THREAD_PRIORITY_AUDIO;
 import static android.os.Process.setThreadPriority;
 import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
 
-import android.annotation.SuppressLint;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
-import java.io.IOException;
-import java.io.OutputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * When created, you must pass a {@link ParcelFileDescriptor}. Once {@link #start()} is called, the
- * file descriptor will be written to until {@link #stop()} is called.
+ * Sends what the user says to everyone we're connected to. When created, you must pass the {@link
+ * CaptureEngine} holding the microphone open. Each connected endpoint gets a {@link StreamSession},
+ * added with {@link #addSession(String, ParcelFileDescriptor)} when it connects, and every talk
+ * spurt goes down all of them. Pushing to talk only calls {@link #startTalking(long)} and {@link
+ * #stopTalking()}, which mark the start and end of a spurt on the streams that are already open.
+ *
+ * <p>Audio is compressed with an {@link AudioCodec} and written as {@link AudioFrame}s. The first
+ * frame of a talk spurt carries {@link AudioFrame#FLAG_TALK_START}, and the spurt ends with an
+ * empty {@link AudioFrame#FLAG_TALK_END} frame.
+ *
+ * <p>Frames a {@link VoiceActivityDetector} judges to be background noise aren't sent. While the
+ * talker is quiet we send a small {@link AudioFrame#FLAG_SILENCE} frame every so often instead, and
+ * the receiver plays silence in place of what we skipped.
+ *
+ * <p>The engine's capture thread encodes audio into a {@link FrameRing}, and our own thread hands
+ * frames from the ring to each session's queue, without waiting. Each session writes to its
+ * stream on its own thread, so if a receiver can't keep up, only its frames are dropped, and
+ * neither the microphone nor anyone else's stream stalls. A slot is kept free in every queue for
+ * the end of the talk spurt, so receivers hear it end even when frames before it were dropped.
  */
-public class AudioRecorder {
-  /** The stream to write to. */
-  private final OutputStream mOutputStream;
+public class AudioRecorder implements CaptureEngine.Listener {
+  /** How many frames we'll queue for the sender thread before dropping them. */
+  private static final int RING_CAPACITY = 64;
+
+  /** How long {@link #stop()} waits for queued frames to be sent before giving up on them. */
+  private static final long DRAIN_TIMEOUT_MS = 250;
+
+  /** How often we remind the receiver that we're still quiet, in frames. */
+  private static final int SILENCE_INTERVAL_FRAMES = 10;
+
+  /** How many slots every queue keeps free for {@link AudioFrame#FLAG_TALK_END} frames. */
+  private static final int END_RESERVE = 1;
+
+  /** Holds the microphone open and hands us its frames. */
+  private final CaptureEngine mEngine;
+
+  /** Compresses audio before it's written to the streams. */
+  private final AudioCodec mCodec;
+
+  /**
+   * Encoded frames waiting to be written to the streams. The capture thread adds frames while
+   * we're attached to the engine, and {@link #stopTalking()} adds the end marker once we've
+   * detached, so there's only ever one producer at a time.
+   */
+  private final FrameRing mRing;
+
+  /** The streams we send to, one per connected endpoint. */
+  private final CopyOnWriteArrayList<StreamSession> mSessions =
+      new CopyOnWriteArrayList<>();
+
+  private final MetricsRegistry.Counter mFramesSent =
+      MetricsRegistry.get().counter("audio.framesSent");
+  private final MetricsRegistry.Counter mFramesSuppressed =
+      MetricsRegistry.get().counter("audio.framesSuppressed");
+  private final MetricsRegistry.Counter mFramesDropped =
+      MetricsRegistry.get().counter("audio.framesDropped");
+
+  /** Decides which frames are worth sending. Only used by the capture thread. */
+  private final VoiceActivityDetector mVad = new VoiceActivityDetector();
+
+  /** The frame being encoded. Only used by the ring's producer. */
+  private final byte[] mFrame;
+
+  /** The sequence number of the next frame. Only used by the ring's producer. */
+  private int mSeq;
+
+  /** How many frames in a row have been quiet. Only used by the ring's producer. */
+  private int mQuietFrames;
+
+  /** How many frames weren't sent because they were quiet. Only used by the ring's producer. */
+  private long mSuppressedFrames;
+
+  /** True once the current talk spurt has queued a frame. Only used by the ring's producer. */
+  private boolean mSpurtStarted;
+
+  /** The sample rate of the last frame we recorded. Only used by the ring's producer. */
+  private int mSampleRate;
 
   /**
-   * If true, the background thread will continue to loop and record audio. Once false, the thread
+   * If true, the background thread will continue to loop and send audio. Once false, the thread
    * will shut down.
    */
   private volatile boolean mAlive;
 
-  /** The background thread recording audio for us. */
-  private Thread mThread;
+  /** True while the user is talking. */
+  private volatile boolean mTalking;
+
+  /** The background thread writing recorded audio to the streams for us. */
+  private Thread mSenderThread;
+
+  /**
+   * A simple audio recorder, compressing with {@link AdpcmCodec}.
+   *
+   * @param engine The engine to take audio from.
+   */
+  public AudioRecorder(CaptureEngine engine) {
+    this(engine, new AdpcmCodec());
+  }
 
   /**
    * A simple audio recorder.
    *
-   * @param file The output stream of the recording.
+   * @param engine The engine to take audio from.
+   * @param codec The codec to compress the recording with. It must match the receiver's.
    */
-  public AudioRecorder(ParcelFileDescriptor file) {
-    mOutputStream = new ParcelFileDescriptor.AutoCloseOutputStream(file);
+  public AudioRecorder(CaptureEngine engine, AudioCodec codec) {
+    mEngine = engine;
+    mCodec = codec;
+    mFrame =
+        new byte[AudioFrame.HEADER_SIZE + codec.getMaxEncodedSize(AudioBuffer.MAX_FRAME_SAMPLES)];
+    mRing = new FrameRing(RING_CAPACITY, mFrame.length);
   }
 
-  /** @return True if actively recording. False otherwise. */
-  public boolean isRecording() {
+  /** @return True if the sender thread is running. */
+  public boolean isRunning() {
     return mAlive;
   }
 
-  /** Starts recording audio. */
+  /** @return True if the user is talking. False otherwise. */
+  public boolean isTalking() {
+    return mTalking;
+  }
+
+  /** @return The queue between capture and the streams, for its overflow counts. */
+  public FrameRing getFrameRing() {
+    return mRing;
+  }
+
+  /**
+   * Starts sending to a newly connected endpoint. Any earlier session with the same endpoint is
+   * closed.
+   *
+   * @param endpointId The endpoint.
+   * @param file The write side of a stream whose read side has been sent to the endpoint.
+   */
+  public void addSession(String endpointId, ParcelFileDescriptor file) {
+    removeSession(endpointId);
+    StreamSession session = new StreamSession(endpointId, file, mFrame.length);
+    session.start();
+    mSessions.add(session);
+  }
+
+  /** Stops sending to an endpoint, and closes its stream. */
+  public void removeSession(String endpointId) {
+    for (StreamSession session : mSessions) {
+      if (session.getEndpointId().equals(endpointId)) {
+        mSessions.remove(session);
+        session.close();
+      }
+    }
+  }
+
+  /** Starts the thread that writes to the streams. Nothing is sent until the user talks. */
   public void start() {
-    if (isRecording()) {
+    if (isRunning()) {
       Log.w(TAG, "Already running");
       return;
     }
 
     mAlive = true;
-    mThread =
+    mSenderThread =
         new Thread() {
           @Override
           public void run() {
             setThreadPriority(THREAD_PRIORITY_AUDIO);
-
-            Buffer buffer = new Buffer();
-            @SuppressLint("MissingPermission") AudioRecord record =
-                new AudioRecord(
-                    MediaRecorder.AudioSource.DEFAULT,
-                    buffer.sampleRate,
-                    AudioFormat.CHANNEL_IN_MONO,
-                    AudioFormat.ENCODING_PCM_16BIT,
-                    buffer.size);
-
-            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
-              Log.w(TAG, "Failed to start recording");
-              mAlive = false;
-              return;
-            }
-
-            record.startRecording();
-
-            // While we're running, we'll read the bytes from the AudioRecord and write them
-            // to our output stream.
-            try {
-              while (isRecording()) {
-                int len = record.read(buffer.data, 0, buffer.size);
-                if (len >= 0 && len <= buffer.size) {
-                  mOutputStream.write(buffer.data, 0, len);
-                  mOutputStream.flush();
-                } else {
-                  Log.w(TAG, "Unexpected length returned: " + len);
-                }
-              }
-            } catch (IOException e) {
-              Log.e(TAG, "Exception with recording stream", e);
-            } finally {
-              stopInternal();
-              try {
-                record.stop();
-              } catch (IllegalStateException e) {
-                Log.e(TAG, "Failed to stop AudioRecord", e);
-              }
-              record.release();
-            }
+            send();
           }
         };
-    mThread.start();
+    mSenderThread.start();
   }
 
-  private void stopInternal() {
-    mAlive = false;
+  /**
+   * Starts a talk spurt.
+   *
+   * @param pressedAtMs When the user asked to talk, on the {@link SystemClock#elapsedRealtime()}
+   *     clock. Any pre-roll the engine holds from after this time is sent first.
+   */
+  public void startTalking(long pressedAtMs) {
+    if (isTalking()) {
+      Log.w(TAG, "Already talking");
+      return;
+    }
+    if (!mEngine.isRunning()) {
+      Log.w(TAG, "Talking while the microphone isn't open");
+    }
+    mTalking = true;
+    mEngine.attach(this, pressedAtMs);
+  }
+
+  /**
+   * Encodes a frame from the microphone and queues it behind a header for the sender thread. Quiet
+   * frames are skipped, but still use up a sequence number so the receiver stays in step.
+   */
+  @Override
+  public void onFrame(
+      short[] pcm, int samples, long timestampMs, int sampleRate, boolean preRoll) {
+    if (!isTalking() || samples > AudioBuffer.MAX_FRAME_SAMPLES) {
+      return;
+    }
+    mSampleRate = sampleRate;
+    int flags = preRoll ? AudioFrame.FLAG_PRE_ROLL : 0;
+    if (!mSpurtStarted) {
+      mSpurtStarted = true;
+      flags |= AudioFrame.FLAG_TALK_START;
+    }
+
+    if (mVad.isSpeech(pcm, 0, samples)) {
+      mQuietFrames = 0;
+      int encoded = mCodec.encode(pcm, 0, samples, mFrame, AudioFrame.HEADER_SIZE);
+      AudioFrame.writeHeader(mFrame, 0, flags, mSeq, timestampMs, sampleRate, encoded);
+      if (mRing.offer(mFrame, 0, AudioFrame.HEADER_SIZE + encoded, END_RESERVE)) {
+        mFramesSent.increment();
+      } else {
+        mFramesDropped.increment();
+      }
+    } else {
+      mSuppressedFrames++;
+      mFramesSuppressed.increment();
+      // Always send the first frame of a spurt, so the receiver hears it start.
+      if (mQuietFrames++ % SILENCE_INTERVAL_FRAMES == 0
+          || (flags & AudioFrame.FLAG_TALK_START) != 0) {
+        int length =
+            AudioFrame.writeSilence(mFrame, 0, flags, mSeq, timestampMs, sampleRate, samples);
+        if (!mRing.offer(mFrame, 0, length, END_RESERVE)) {
+          mFramesDropped.increment();
+        }
+      }
+    }
+    mSeq++;
+  }
+
+  /** Ends the talk spurt. The streams stay open for the next one. */
+  public void stopTalking() {
+    if (!isTalking()) {
+      return;
+    }
+    mTalking = false;
+    // Once we're detached, the capture thread won't touch the ring or our state again, so we can
+    // add the end marker from here.
+    mEngine.detach(this);
+    if (mSpurtStarted) {
+      AudioFrame.writeHeader(
+          mFrame,
+          0,
+          AudioFrame.FLAG_TALK_END,
+          mSeq,
+          SystemClock.elapsedRealtime(),
+          mSampleRate,
+          0);
+      // Only fails if the sender hasn't taken a single frame since the last spurt ended.
+      if (!mRing.offer(mFrame, 0, AudioFrame.HEADER_SIZE)) {
+        mFramesDropped.increment();
+        Log.w(TAG, "Dropped the end of the talk spurt");
+      }
+    }
+    Log.d(TAG, "Suppressed " + mSuppressedFrames + " frames as silence");
+    mSpurtStarted = false;
+    mQuietFrames = 0;
+    mSuppressedFrames = 0;
+  }
+
+  /** Hands queued frames to every session until we're stopped and the queue is empty. */
+  private void send() {
+    byte[] frame = new byte[mFrame.length];
     try {
-      mOutputStream.close();
-    } catch (IOException e) {
-      Log.e(TAG, "Failed to close output stream", e);
+      while (isRunning() || !mRing.isEmpty()) {
+        int len = mRing.take(frame, 0, AudioBuffer.FRAME_DURATION_MS);
+        if (len > 0) {
+          boolean end = (AudioFrame.getFlags(frame, 0) & AudioFrame.FLAG_TALK_END) != 0;
+          for (StreamSession session : mSessions) {
+            session.offer(frame, 0, len, end ? 0 : END_RESERVE);
+          }
+        }
+      }
+    } finally {
+      if (mRing.getOverflows() > 0) {
+        Log.w(
+            TAG,
+            "Dropped "
+                + mRing.getOverflows()
+                + " frames ("
+                + mRing.getOverflowBytes()
+                + " bytes) waiting for the streams");
+      }
     }
   }
 
-  /** Stops recording audio. */
+  /** Ends any talk spurt, stops the sender thread and closes every stream. */
   public void stop() {
-    stopInternal();
+    stopTalking();
+    mAlive = false;
     try {
-      mThread.join();
+      if (mSenderThread != null) {
+        // The sender never waits on a stream, so it's quick to hand over what's left.
+        mSenderThread.join();
+        mSenderThread = null;
+      }
+      // Give the sessions a moment to flush. Any stuck on a stream are unblocked by closing it.
+      long deadlineMs = SystemClock.elapsedRealtime() + DRAIN_TIMEOUT_MS;
+      for (StreamSession session : mSessions) {
+        session.finish(Math.max(1, deadlineMs - SystemClock.elapsedRealtime()));
+      }
     } catch (InterruptedException e) {
       Log.e(TAG, "Interrupted while joining AudioRecorder thread", e);
       Thread.currentThread().interrupt();
     }
+    closeSessions();
   }
 
-  private static class Buffer extends AudioBuffer {
-    @Override
-    protected boolean validSize(int size) {
-      return size != AudioRecord.ERROR && size != AudioRecord.ERROR_BAD_VALUE;
-    }
-
-    @Override
-    protected int getMinBufferSize(int sampleRate) {
-      return AudioRecord.getMinBufferSize(
-          sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+  private void closeSessions() {
+    for (StreamSession session : mSessions) {
+      session.close();
     }
+    mSessions.clear();
   }
 }
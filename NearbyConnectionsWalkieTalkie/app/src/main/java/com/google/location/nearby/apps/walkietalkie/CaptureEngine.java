@@ -0,0 +1,303 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static android.os.Process.THREAD_PRIORITY_AUDIO;
+import static android.os.Process.setThreadPriority;
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.annotation.SuppressLint;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps the microphone open and a capture thread running for as long as we're connected, so that
+ * pushing to talk only has to start forwarding frames rather than set up an {@link AudioRecord},
+ * which can take tens of milliseconds and clip the first syllable.
+ *
+ * <p>Frames are read continuously and thrown away until a {@link Listener} is attached. From then
+ * on, every frame is handed to it on the capture thread until it's detached. We measure how long
+ * each press waits for its first frame.
+ *
+ * <p>With {@link #setPreRoll(int, int)}, we also remember the last few hundred milliseconds while
+ * nobody is talking. A newly attached listener first gets what was recorded in the pre-roll
+ * duration before its key went down, and everything since, ahead of the live frames. That covers
+ * the user starting to talk a moment before pressing, and the time it takes the press to reach us.
+ */
+public class CaptureEngine {
+  /** Receives frames from the microphone. */
+  public interface Listener {
+    /**
+     * Called on the capture thread with each frame while attached. The samples are only valid until
+     * this returns.
+     *
+     * @param pcm The frame's samples, starting at index 0.
+     * @param samples The number of samples.
+     * @param timestampMs When the frame was read, on the {@link SystemClock#elapsedRealtime()}
+     *     clock.
+     * @param sampleRate The sample rate of the microphone.
+     * @param preRoll True if the frame was recorded before the listener was attached, and is being
+     *     delivered in a burst rather than in real time.
+     */
+    void onFrame(short[] pcm, int samples, long timestampMs, int sampleRate, boolean preRoll);
+  }
+
+  /** How much audio to remember for pre-roll, in ms. Zero if pre-roll is off. */
+  private volatile int mPreRollMs;
+
+  /** The most memory pre-roll may use, in bytes. */
+  private volatile int mPreRollMaxBytes;
+
+  /** Guards the listener and the latency stats. Never held while a listener is called. */
+  private final Object mLock = new Object();
+
+  /** Where frames go, or null if nobody is talking. Guarded by {@link #mLock}. */
+  private Listener mListener;
+
+  /** When the current listener's key was pressed. Guarded by {@link #mLock}. */
+  private long mPressedAtMs;
+
+  /** True until the current listener has had its first frame. Guarded by {@link #mLock}. */
+  private boolean mWaitingForFirstFrame;
+
+  /**
+   * The listener a frame is being handed to right now, or null. Guarded by {@link #mLock}, and
+   * notified on when it's cleared.
+   */
+  private Listener mDelivering;
+
+  private final MetricsRegistry.Distribution mStartLatency =
+      MetricsRegistry.get().distribution("audio.pressToFirstFrameMs");
+
+  private long mPresses;
+  private long mTotalStartLatencyMs;
+  private long mMaxStartLatencyMs;
+  private long mLastStartLatencyMs = -1;
+
+  /**
+   * If true, the background thread will continue to loop and record audio. Once false, the thread
+   * will shut down.
+   */
+  private volatile boolean mAlive;
+
+  /** The background thread recording audio for us, or null if we're stopped. */
+  private Thread mThread;
+
+  /** Opens the microphone and starts reading from it, if we haven't already. */
+  public void start() {
+    if (isRunning()) {
+      return;
+    }
+    mAlive = true;
+    mThread =
+        new Thread() {
+          @Override
+          public void run() {
+            setThreadPriority(THREAD_PRIORITY_AUDIO);
+            capture();
+          }
+        };
+    mThread.start();
+  }
+
+  /**
+   * Turns pre-roll on or off. Takes effect the next time the engine starts.
+   *
+   * @param durationMs How much audio to remember, in ms. Zero turns pre-roll off.
+   * @param maxBytes The most memory to use remembering it. If the duration needs more, it's cut
+   *     short.
+   */
+  public void setPreRoll(int durationMs, int maxBytes) {
+    mPreRollMs = Math.max(0, durationMs);
+    mPreRollMaxBytes = Math.max(0, maxBytes);
+  }
+
+  /** Stops reading and releases the microphone. */
+  public void stop() {
+    mAlive = false;
+    if (mThread == null) {
+      return;
+    }
+    try {
+      mThread.join();
+    } catch (InterruptedException e) {
+      Log.e(TAG, "Interrupted while joining CaptureEngine thread", e);
+      Thread.currentThread().interrupt();
+    }
+    mThread = null;
+  }
+
+  /** @return True if the microphone is open. */
+  public boolean isRunning() {
+    return mAlive;
+  }
+
+  /**
+   * Starts handing frames to a listener, replacing any other.
+   *
+   * @param listener The listener.
+   * @param pressedAtMs When the user asked to talk, on the {@link SystemClock#elapsedRealtime()}
+   *     clock. Used to measure how long they waited for the first frame, and to line up pre-roll.
+   */
+  public void attach(Listener listener, long pressedAtMs) {
+    synchronized (mLock) {
+      mListener = listener;
+      mPressedAtMs = pressedAtMs;
+      mWaitingForFirstFrame = true;
+    }
+  }
+
+  /**
+   * Stops handing frames to a listener. Once this returns, the listener won't be called again. If a
+   * frame was being delivered to it at the time, we wait for that to finish.
+   */
+  public void detach(Listener listener) {
+    boolean interrupted = false;
+    synchronized (mLock) {
+      if (mListener == listener) {
+        mListener = null;
+      }
+      while (mDelivering == listener) {
+        try {
+          mLock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** @return How long the last press waited for its first frame, in ms, or -1 if none has. */
+  public long getLastStartLatencyMillis() {
+    synchronized (mLock) {
+      return mLastStartLatencyMs;
+    }
+  }
+
+  /** @return The longest any press has waited for its first frame, in ms. */
+  public long getMaxStartLatencyMillis() {
+    synchronized (mLock) {
+      return mMaxStartLatencyMs;
+    }
+  }
+
+  /** @return The average time presses have waited for their first frame, in ms. */
+  public float getAverageStartLatencyMillis() {
+    synchronized (mLock) {
+      return mPresses == 0 ? 0 : (float) mTotalStartLatencyMs / mPresses;
+    }
+  }
+
+  private void capture() {
+    Buffer buffer = new Buffer();
+    @SuppressLint("MissingPermission") AudioRecord record =
+        new AudioRecord(
+            MediaRecorder.AudioSource.DEFAULT,
+            buffer.sampleRate,
+            AudioFormat.CHANNEL_IN_MONO,
+            AudioFormat.ENCODING_PCM_16BIT,
+            buffer.size);
+
+    if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+      Log.w(TAG, "Failed to start recording");
+      mAlive = false;
+      return;
+    }
+
+    short[] pcm = new short[buffer.frameSamples];
+    PreRollBuffer preRoll = createPreRollBuffer(buffer.frameSamples);
+    int preRollMs = mPreRollMs;
+    record.startRecording();
+
+    try {
+      while (mAlive) {
+        int len = record.read(pcm, 0, pcm.length);
+        if (len <= 0 || len > pcm.length) {
+          Log.w(TAG, "Unexpected length returned: " + len);
+          continue;
+        }
+        long timestampMs = SystemClock.elapsedRealtime();
+        // Take what we need under the lock, and call the listener outside it, so attaching and
+        // detaching never wait behind its work on a frame.
+        Listener listener;
+        long pressedAtMs;
+        boolean firstFrame;
+        synchronized (mLock) {
+          listener = mListener;
+          pressedAtMs = mPressedAtMs;
+          firstFrame = mWaitingForFirstFrame;
+          if (listener != null) {
+            mWaitingForFirstFrame = false;
+            mDelivering = listener;
+          }
+        }
+        if (listener == null) {
+          if (preRoll != null) {
+            preRoll.add(pcm, len, timestampMs);
+          }
+          continue;
+        }
+
+        try {
+          if (firstFrame) {
+            onFirstFrame(timestampMs - pressedAtMs);
+            if (preRoll != null) {
+              int sent = preRoll.drain(pressedAtMs - preRollMs, listener, buffer.sampleRate);
+              Log.d(TAG, "Sent " + sent + " frames of pre-roll");
+            }
+          }
+          listener.onFrame(pcm, len, timestampMs, buffer.sampleRate, false);
+        } finally {
+          synchronized (mLock) {
+            mDelivering = null;
+            mLock.notifyAll();
+          }
+        }
+      }
+    } finally {
+      try {
+        record.stop();
+      } catch (IllegalStateException e) {
+        Log.e(TAG, "Failed to stop AudioRecord", e);
+      }
+      record.release();
+    }
+  }
+
+  /** Returns a buffer for pre-roll, as big as configured and allowed, or null if it's off. */
+  private PreRollBuffer createPreRollBuffer(int frameSamples) {
+    int frames = mPreRollMs / AudioBuffer.FRAME_DURATION_MS;
+    // Each frame is 16-bit samples.
+    frames = Math.min(frames, mPreRollMaxBytes / (2 * frameSamples));
+    return frames > 0 ? new PreRollBuffer(frames, frameSamples) : null;
+  }
+
+  /** Records how long a press waited for its first frame. */
+  private void onFirstFrame(long latencyMs) {
+    synchronized (mLock) {
+      mPresses++;
+      mTotalStartLatencyMs += latencyMs;
+      mMaxStartLatencyMs = Math.max(mMaxStartLatencyMs, latencyMs);
+      mLastStartLatencyMs = latencyMs;
+    }
+    mStartLatency.record(latencyMs);
+    Log.d(TAG, "Press to first frame: " + latencyMs + "ms");
+  }
+
+  private static class Buffer extends AudioBuffer {
+    @Override
+    protected boolean validSize(int size) {
+      return size != AudioRecord.ERROR && size != AudioRecord.ERROR_BAD_VALUE;
+    }
+
+    @Override
+    protected int getMinBufferSize(int sampleRate) {
+      return AudioRecord.getMinBufferSize(
+          sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+    }
+  }
+}
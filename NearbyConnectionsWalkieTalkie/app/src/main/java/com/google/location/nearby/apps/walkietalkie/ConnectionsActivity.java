@@ -5,6 +5,7 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -32,11 +33,9 @@ import com.google.android.gms.nearby.connection.Strategy;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
 
 import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
@@ -105,20 +104,32 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   /** Our handler to Nearby Connections. */
   private ConnectionsClient mConnectionsClient;
 
+  /*
+   * The endpoint sets below are changed on the UI thread, from Nearby Connections' callbacks, but
+   * read from anywhere, including the audio threads. Each is a copy-on-write registry, so reads
+   * take no lock and copy nothing.
+   */
+
   /** The devices we've discovered near us. */
-  private final Map<String, Endpoint> mDiscoveredEndpoints = new HashMap<>();
+  private final EndpointRegistry mDiscoveredEndpoints = new EndpointRegistry();
+
+  /**
+   * When we found each device in {@link #mDiscoveredEndpoints}, and how connecting to them has
+   * gone. The two hold the same endpoints.
+   */
+  private final DiscoveryTable mDiscoveryTable = new DiscoveryTable();
 
   /**
    * The devices we have pending connections to. They will stay pending until we call {@link
    * #acceptConnection(Endpoint)} or {@link #rejectConnection(Endpoint)}.
    */
-  private final Map<String, Endpoint> mPendingConnections = new HashMap<>();
+  private final EndpointRegistry mPendingConnections = new EndpointRegistry();
 
   /**
    * The devices we are currently connected to. For advertisers, this may be large. For discoverers,
-   * there will only be one entry in this map.
+   * there will only be one.
    */
-  private final Map<String, Endpoint> mEstablishedConnections = new HashMap<>();
+  private final EndpointRegistry mEstablishedConnections = new EndpointRegistry();
 
   /**
    * True if we are asking a discovered device to connect to us. While we ask, we cannot ask another
@@ -132,6 +143,37 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   /** True if we are advertising. */
   private boolean mIsAdvertising = false;
 
+  /** The payloads on their way to us. */
+  private final TransferTable mTransfers = new TransferTable();
+
+  /** The payloads on their way from us, and how each endpoint has done with them. */
+  private final SendTracker mSends = new SendTracker();
+
+  /** What we report about discovery, connections and payloads. */
+  private final MetricsRegistry mMetrics = MetricsRegistry.get();
+
+  private final MetricsRegistry.Counter mEndpointsFound =
+      mMetrics.counter("discovery.endpointsFound");
+  private final MetricsRegistry.Counter mEndpointsLost =
+      mMetrics.counter("discovery.endpointsLost");
+  private final MetricsRegistry.Counter mConnectionsInitiated =
+      mMetrics.counter("connections.initiated");
+  private final MetricsRegistry.Counter mConnectionsFailed = mMetrics.counter("connections.failed");
+  private final MetricsRegistry.Counter mConnectionsEstablished =
+      mMetrics.counter("connections.established");
+  private final MetricsRegistry.Counter mDisconnections = mMetrics.counter("connections.lost");
+  private final MetricsRegistry.Gauge mActiveConnections = mMetrics.gauge("connections.active");
+  private final MetricsRegistry.Counter mPayloadsSent = mMetrics.counter("payloads.sent");
+  private final MetricsRegistry.Counter mPayloadSendFailures =
+      mMetrics.counter("payloads.sendFailures");
+  private final MetricsRegistry.Counter mPayloadsReceived = mMetrics.counter("payloads.received");
+  private final MetricsRegistry.Counter mPayloadUpdates = mMetrics.counter("payloads.updates");
+  private final MetricsRegistry.Counter mPayloadsSucceeded = mMetrics.counter("payloads.succeeded");
+  private final MetricsRegistry.Counter mPayloadsFailed = mMetrics.counter("payloads.failed");
+  private final MetricsRegistry.Counter mPayloadsCanceled = mMetrics.counter("payloads.canceled");
+  private final MetricsRegistry.Gauge mBytesTransferred =
+      mMetrics.gauge("payloads.lastBytesTransferred");
+
   /** Callbacks for connections to other devices. */
   private final ConnectionLifecycleCallback mConnectionLifecycleCallback =
       new ConnectionLifecycleCallback() {
@@ -141,8 +183,9 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
               String.format(
                   "onConnectionInitiated(endpointId=%s, endpointName=%s)",
                   endpointId, connectionInfo.getEndpointName()));
+          mConnectionsInitiated.increment();
           Endpoint endpoint = new Endpoint(endpointId, connectionInfo.getEndpointName());
-          mPendingConnections.put(endpointId, endpoint);
+          mPendingConnections.put(endpoint);
           ConnectionsActivity.this.onConnectionInitiated(endpoint, connectionInfo);
         }
 
@@ -154,11 +197,12 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
           mIsConnecting = false;
 
           if (!result.getStatus().isSuccess()) {
+            mConnectionsFailed.increment();
             logW(
                 String.format(
                     "Connection failed. Received status %s.",
                     ConnectionsActivity.toString(result.getStatus())));
-            onConnectionFailed(mPendingConnections.remove(endpointId));
+            connectionFailed(mPendingConnections.remove(endpointId));
             return;
           }
           connectedToEndpoint(mPendingConnections.remove(endpointId));
@@ -166,11 +210,12 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
 
         @Override
         public void onDisconnected(String endpointId) {
-          if (!mEstablishedConnections.containsKey(endpointId)) {
+          Endpoint endpoint = mEstablishedConnections.get(endpointId);
+          if (endpoint == null) {
             logW("Unexpected disconnection from endpoint " + endpointId);
             return;
           }
-          disconnectedFromEndpoint(mEstablishedConnections.get(endpointId));
+          disconnectedFromEndpoint(endpoint);
         }
       };
 
@@ -178,28 +223,47 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   private final PayloadCallback mPayloadCallback = new PayloadCallback() {
     @Override
     public void onPayloadReceived(String endpointId, Payload payload) {
+      mPayloadsReceived.increment();
       logD("onPayloadReceived() endpointId: " + endpointId);
-      ConnectionsActivity.Endpoint endpointConnection = mEstablishedConnections.get(endpointId);
-      logD("endpoint connection: " + endpointConnection);
-      onReceive(endpointConnection, payload);
+      mTransfers.add(endpointId, payload);
+      onReceive(mEstablishedConnections.get(endpointId), payload);
     }
 
     @Override
     public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
-      logD("onPayloadTransferUpdate() endpointId: " + endpointId);
-      String statusStr = "unassigned";
-      int statusValue = update.getStatus();
-      switch (statusValue) {
-        case PayloadTransferUpdate.Status.SUCCESS: statusStr = "success"; break;
-        case PayloadTransferUpdate.Status.IN_PROGRESS: statusStr = "in progress"; break;
-        case PayloadTransferUpdate.Status.CANCELED: statusStr = "canceled"; break;
-        case PayloadTransferUpdate.Status.FAILURE: statusStr = "failure"; break;
-        default: statusStr = "(unknown)";
+      // Updates arrive many times a second while anything is streaming, so they're only counted.
+      // Anything more goes in the log once the transfer is over.
+      mPayloadUpdates.increment();
+      mBytesTransferred.set(update.getBytesTransferred());
+      // Updates on payloads we're sending only count towards the recipient's score.
+      TransferTable.Transfer transfer = mTransfers.update(update);
+      if (transfer == null) {
+        mSends.update(endpointId, update);
       }
-      logD("update status (" + endpointId + ") " + update.getStatus() + ": " + statusStr);
-      logD("bytes transferred: " + update.getBytesTransferred());
-      if (statusValue == PayloadTransferUpdate.Status.SUCCESS) {
-        onTransferComplete(mEstablishedConnections.get(endpointId));
+      switch (update.getStatus()) {
+        case PayloadTransferUpdate.Status.SUCCESS:
+          mPayloadsSucceeded.increment();
+          if (transfer != null) {
+            logD("Transfer complete: " + transfer);
+            onTransferComplete(mEstablishedConnections.get(endpointId), transfer.getPayload());
+          }
+          break;
+        case PayloadTransferUpdate.Status.FAILURE:
+          mPayloadsFailed.increment();
+          logW("Payload " + update.getPayloadId() + " from " + endpointId + " failed");
+          if (transfer != null) {
+            onTransferFailed(mEstablishedConnections.get(endpointId), transfer.getPayload());
+          }
+          break;
+        case PayloadTransferUpdate.Status.CANCELED:
+          mPayloadsCanceled.increment();
+          logD("Payload " + update.getPayloadId() + " from " + endpointId + " was canceled");
+          if (transfer != null) {
+            onTransferFailed(mEstablishedConnections.get(endpointId), transfer.getPayload());
+          }
+          break;
+        default:
+          break;
       }
     }
   };
@@ -379,6 +443,7 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   protected void startDiscovering() {
     mIsDiscovering = true;
     mDiscoveredEndpoints.clear();
+    mDiscoveryTable.onDiscoveryStarted();
     DiscoveryOptions.Builder discoveryOptions = new DiscoveryOptions.Builder();
     discoveryOptions.setStrategy(getStrategy());
     mConnectionsClient
@@ -393,8 +458,12 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
                         endpointId, info.getServiceId(), info.getEndpointName()));
 
                 if (getServiceId().equals(info.getServiceId())) {
+                  mEndpointsFound.increment();
                   Endpoint endpoint = new Endpoint(endpointId, info.getEndpointName());
-                  mDiscoveredEndpoints.put(endpointId, endpoint);
+                  long nowMs = SystemClock.elapsedRealtime();
+                  expireDiscoveredEndpoints(nowMs);
+                  mDiscoveryTable.found(endpoint, nowMs);
+                  mDiscoveredEndpoints.put(endpoint);
                   onEndpointDiscovered(endpoint);
                 }
               }
@@ -402,6 +471,10 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
               @Override
               public void onEndpointLost(String endpointId) {
                 logD(String.format("onEndpointLost(endpointId=%s)", endpointId));
+                mEndpointsLost.increment();
+                // It's gone, so don't waste a connection attempt on it.
+                mDiscoveryTable.lost(endpointId);
+                mDiscoveredEndpoints.remove(endpointId);
               }
             },
             discoveryOptions.build())
@@ -417,6 +490,7 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
               @Override
               public void onFailure(@NonNull Exception e) {
                 mIsDiscovering = false;
+                mDiscoveryTable.onDiscoveryStopped(SystemClock.elapsedRealtime());
                 logW("startDiscovering() failed: " + e.getMessage(), e);
                 onDiscoveryFailed();
               }
@@ -427,6 +501,8 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   protected void stopDiscovering() {
     mIsDiscovering = false;
     mConnectionsClient.stopDiscovery();
+    // We won't hear about endpoints being lost any more, so what we have starts to go stale.
+    mDiscoveryTable.onDiscoveryStopped(SystemClock.elapsedRealtime());
   }
 
   /** Returns {@code true} if currently discovering. */
@@ -450,14 +526,23 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   protected void disconnect(Endpoint endpoint) {
     mConnectionsClient.disconnectFromEndpoint(endpoint.getId());
     mEstablishedConnections.remove(endpoint.getId());
+    mActiveConnections.set(mEstablishedConnections.size());
+    // Whatever they were still sending us won't arrive now.
+    for (TransferTable.Transfer transfer : mTransfers.removeAll(endpoint.getId())) {
+      onTransferFailed(endpoint, transfer.getPayload());
+    }
+    mSends.removeEndpoint(endpoint.getId());
   }
 
   /** Disconnects from all currently connected endpoints. */
   protected void disconnectFromAllEndpoints() {
-    for (Endpoint endpoint : mEstablishedConnections.values()) {
+    for (Endpoint endpoint : mEstablishedConnections.getEndpoints()) {
       mConnectionsClient.disconnectFromEndpoint(endpoint.getId());
     }
+    failAllTransfers();
     mEstablishedConnections.clear();
+    mActiveConnections.set(0);
+    mSends.clear();
   }
 
   /** Resets and clears all state in Nearby Connections. */
@@ -467,8 +552,22 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
     mIsDiscovering = false;
     mIsConnecting = false;
     mDiscoveredEndpoints.clear();
+    mDiscoveryTable.clear();
     mPendingConnections.clear();
+    failAllTransfers();
     mEstablishedConnections.clear();
+    mActiveConnections.set(0);
+    mSends.clear();
+  }
+
+  /** Stops tracking every payload on its way to us, and reports each as failed. */
+  private void failAllTransfers() {
+    List<TransferTable.Transfer> transfers = mTransfers.getTransfers();
+    mTransfers.clear();
+    for (TransferTable.Transfer transfer : transfers) {
+      Endpoint endpoint = mEstablishedConnections.get(transfer.getEndpointId());
+      onTransferFailed(endpoint, transfer.getPayload());
+    }
   }
 
   /**
@@ -490,7 +589,7 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
               public void onFailure(@NonNull Exception e) {
                 logW("requestConnection() failed.", e);
                 mIsConnecting = false;
-                onConnectionFailed(endpoint);
+                connectionFailed(endpoint);
               }
             });
   }
@@ -502,16 +601,34 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
 
   private void connectedToEndpoint(Endpoint endpoint) {
     logD(String.format("connectedToEndpoint(endpoint=%s)", endpoint));
-    mEstablishedConnections.put(endpoint.getId(), endpoint);
+    mDiscoveryTable.onConnected(endpoint.getName());
+    mEstablishedConnections.put(endpoint);
+    mSends.addEndpoint(endpoint.getId(), endpoint.getName());
+    mConnectionsEstablished.increment();
+    mActiveConnections.set(mEstablishedConnections.size());
     onEndpointConnected(endpoint);
   }
 
   private void disconnectedFromEndpoint(Endpoint endpoint) {
     logD(String.format("disconnectedFromEndpoint(endpoint=%s)", endpoint));
     mEstablishedConnections.remove(endpoint.getId());
+    // Whatever they were still sending us won't arrive now.
+    for (TransferTable.Transfer transfer : mTransfers.removeAll(endpoint.getId())) {
+      onTransferFailed(endpoint, transfer.getPayload());
+    }
+    mSends.removeEndpoint(endpoint.getId());
+    mDisconnections.increment();
+    mActiveConnections.set(mEstablishedConnections.size());
     onEndpointDisconnected(endpoint);
   }
 
+  private void connectionFailed(@Nullable Endpoint endpoint) {
+    if (endpoint != null) {
+      mDiscoveryTable.onConnectionFailed(endpoint.getName());
+    }
+    onConnectionFailed(endpoint);
+  }
+
   /**
    * Called when a connection with this endpoint has failed. Override this method to act on the
    * event.
@@ -524,14 +641,40 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   /** Called when someone has disconnected. Override this method to act on the event. */
   protected void onEndpointDisconnected(Endpoint endpoint) {}
 
-  /** Returns a list of currently connected endpoints. */
+  /**
+   * Returns the endpoints we've discovered. The set can't be changed, and doesn't change as
+   * endpoints come and go, so it's safe to keep and to use from any thread.
+   */
   protected Set<Endpoint> getDiscoveredEndpoints() {
-    return new HashSet<>(mDiscoveredEndpoints.values());
+    return mDiscoveredEndpoints.getEndpoints();
+  }
+
+  /**
+   * Returns the endpoints we've discovered, best to connect to first. Those we've connected to
+   * before come before those that have failed us. While we're discovering, every endpoint that
+   * hasn't been lost counts as live. Once discovery stops, they lose ground the longer it's been,
+   * and are dropped after {@link DiscoveryTable#TTL_MS}.
+   */
+  protected List<Endpoint> getConnectionCandidates() {
+    long nowMs = SystemClock.elapsedRealtime();
+    expireDiscoveredEndpoints(nowMs);
+    return mDiscoveryTable.getCandidates(nowMs);
+  }
+
+  /** Drops the endpoints we haven't heard from in too long. */
+  private void expireDiscoveredEndpoints(long nowMs) {
+    for (Endpoint endpoint : mDiscoveryTable.expire(nowMs)) {
+      logD("Dropping stale endpoint " + endpoint);
+      mDiscoveredEndpoints.remove(endpoint.getId());
+    }
   }
 
-  /** Returns a list of currently connected endpoints. */
+  /**
+   * Returns the endpoints we're connected to. The set can't be changed, and doesn't change as
+   * endpoints come and go, so it's safe to keep and to use from any thread.
+   */
   protected Set<Endpoint> getConnectedEndpoints() {
-    return new HashSet<>(mEstablishedConnections.values());
+    return mEstablishedConnections.getEndpoints();
   }
 
   /**
@@ -540,16 +683,42 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
    * @param payload The data you want to send.
    */
   protected void send(Payload payload) {
-    send(payload, mEstablishedConnections.keySet());
+    // The list is kept up to date as endpoints come and go, so sending doesn't build one.
+    send(payload, mEstablishedConnections.getIdList());
   }
 
-  private void send(Payload payload, Set<String> endpoints) {
+  /**
+   * Sends a {@link Payload} to one connected endpoint.
+   *
+   * @param payload The data you want to send.
+   * @param endpoint The endpoint to send it to.
+   */
+  protected void send(Payload payload, Endpoint endpoint) {
+    send(payload, endpoint.idList);
+  }
+
+  /**
+   * Sends a {@link Payload} to the given endpoints, and follows how it goes for each.
+   *
+   * @param endpoints Who to send it to. Must not be changed afterwards.
+   */
+  private void send(final Payload payload, List<String> endpoints) {
+    if (endpoints.isEmpty()) {
+      return;
+    }
+    mPayloadsSent.increment();
+    // An audio stream is only reported done once we disconnect, so there's nothing to follow.
+    if (payload.getType() != Payload.Type.STREAM) {
+      mSends.add(payload.getId(), endpoints);
+    }
     mConnectionsClient
-        .sendPayload(new ArrayList<>(endpoints), payload)
+        .sendPayload(endpoints, payload)
         .addOnFailureListener(
             new OnFailureListener() {
               @Override
               public void onFailure(@NonNull Exception e) {
+                mPayloadSendFailures.increment();
+                mSends.fail(payload.getId());
                 logW("sendPayload() failed.", e);
               }
             });
@@ -564,12 +733,27 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   protected void onReceive(Endpoint endpoint, Payload payload) {}
 
   /**
-   * Data transfer complete, called after successful payload stream.
+   * A payload we were receiving has arrived in full. Called for every kind of payload, once each.
+   * Override this method to act on the event.
    *
-   * @param endpoint The sender.
-   * @param payload The data.
+   * @param endpoint The sender, or null if they've since disconnected.
+   * @param payload The data, as passed to {@link #onReceive(Endpoint, Payload)}.
+   */
+  protected void onTransferComplete(@Nullable Endpoint endpoint, Payload payload) {}
+
+  /**
+   * A payload we were receiving failed, was canceled, or was cut off by its sender disconnecting.
+   * Override this method to act on the event.
+   *
+   * @param endpoint The sender, or null if they've since disconnected.
+   * @param payload The data, as passed to {@link #onReceive(Endpoint, Payload)}.
    */
-  protected void onTransferComplete(Endpoint endpoint) {}
+  protected void onTransferFailed(@Nullable Endpoint endpoint, Payload payload) {}
+
+  /** Returns the payloads still on their way to us. */
+  protected List<TransferTable.Transfer> getTransfers() {
+    return mTransfers.getTransfers();
+  }
 
   /**
    * An optional hook to pool any permissions the app needs with the permissions ConnectionsActivity
@@ -613,6 +797,11 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
             : ConnectionsStatusCodes.getStatusCodeString(status.getStatusCode()));
   }
 
+  /** Returns the registry we report discovery, connection and payload metrics to. */
+  protected MetricsRegistry getMetrics() {
+    return mMetrics;
+  }
+
   /**
    * Returns {@code true} if the app was granted all the permissions. Otherwise, returns {@code
    * false}.
@@ -663,9 +852,13 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
     @NonNull private final String id;
     @NonNull private final String name;
 
+    /** Just {@link #id}, ready to send to. */
+    @NonNull private final List<String> idList;
+
     private Endpoint(@NonNull String id, @NonNull String name) {
       this.id = id;
       this.name = name;
+      this.idList = Collections.singletonList(id);
     }
 
     @NonNull
@@ -0,0 +1,178 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the files we've received, named by the SHA-256 hash of what's in them, so a picture that's
+ * passed around the group again and again is only stored, and only sent to us, once. Senders tell
+ * us the hash before they send anything, and if we have it already we say no thanks.
+ *
+ * <p>The store has a size limit. Once it's over, the files used least recently are deleted until
+ * it's under again. A file counts as used when it's stored, and when someone offers it to us
+ * again. Its modification time records when, so the order survives restarts.
+ *
+ * <p>Safe to use from any thread. The directory is read the first time the store is used, so do
+ * that off the UI thread if you can.
+ */
+public class ContentStore {
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final File mDirectory;
+  private final String mSuffix;
+  private final long mMaxBytes;
+
+  /** The files in the store by name, least recently used first. */
+  private final LinkedHashMap<String, File> mFiles = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long mBytes;
+  private boolean mLoaded;
+
+  private final MetricsRegistry.Counter mHits = MetricsRegistry.get().counter("store.hits");
+  private final MetricsRegistry.Counter mEvictions =
+      MetricsRegistry.get().counter("store.evictions");
+  private final MetricsRegistry.Gauge mSize = MetricsRegistry.get().gauge("store.bytes");
+
+  /**
+   * @param directory Where to keep files. Created if need be. Nothing else should be kept there.
+   * @param suffix Added to the name of every file, such as ".jpg", so other apps know what they
+   *     are.
+   * @param maxBytes The most the files may take up together, in bytes.
+   */
+  public ContentStore(File directory, String suffix, long maxBytes) {
+    mDirectory = directory;
+    mSuffix = suffix;
+    mMaxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the file with the given hash, or null if we don't have it. Counts as a use.
+   *
+   * @param hash The SHA-256 hash of the file.
+   */
+  @Nullable
+  public synchronized File get(byte[] hash) {
+    load();
+    File file = mFiles.get(getName(hash));
+    if (file == null) {
+      return null;
+    }
+    if (!file.exists()) {
+      // Someone's deleted it behind our back.
+      forget(file);
+      return null;
+    }
+    mHits.increment();
+    file.setLastModified(System.currentTimeMillis());
+    return file;
+  }
+
+  /**
+   * Returns where a file with the given hash belongs. Write it there, and then call {@link
+   * #put(byte[])}.
+   */
+  public File getFile(byte[] hash) {
+    return new File(mDirectory, getName(hash));
+  }
+
+  /**
+   * Adds a file that's been written to {@link #getFile(byte[])}, and makes room for it.
+   *
+   * @param hash The SHA-256 hash of the file.
+   */
+  public synchronized void put(byte[] hash) {
+    load();
+    File file = getFile(hash);
+    File previous = mFiles.put(file.getName(), file);
+    if (previous != null) {
+      mBytes -= previous.length();
+    }
+    mBytes += file.length();
+    trim(file);
+    mSize.set(mBytes);
+  }
+
+  /** Returns how much the files take up together, in bytes. */
+  public synchronized long getBytes() {
+    load();
+    return mBytes;
+  }
+
+  /** Reads the directory, oldest file first, if we haven't already. */
+  private void load() {
+    if (mLoaded) {
+      return;
+    }
+    mLoaded = true;
+    if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+      Log.w(TAG, "Failed to create " + mDirectory);
+    }
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(
+        files,
+        new Comparator<File>() {
+          @Override
+          public int compare(File a, File b) {
+            long aModified = a.lastModified();
+            long bModified = b.lastModified();
+            return aModified < bModified ? -1 : (aModified == bModified ? 0 : 1);
+          }
+        });
+    for (File file : files) {
+      if (file.isFile() && file.getName().endsWith(mSuffix)) {
+        mFiles.put(file.getName(), file);
+        mBytes += file.length();
+      }
+    }
+    trim(null);
+    mSize.set(mBytes);
+  }
+
+  /** Deletes the least recently used files until we're within our limit. */
+  private void trim(@Nullable File keep) {
+    Iterator<Map.Entry<String, File>> iterator = mFiles.entrySet().iterator();
+    while (mBytes > mMaxBytes && iterator.hasNext()) {
+      File file = iterator.next().getValue();
+      if (file.equals(keep)) {
+        continue;
+      }
+      long length = file.length();
+      if (file.exists() && !file.delete()) {
+        Log.w(TAG, "Failed to delete " + file);
+        continue;
+      }
+      iterator.remove();
+      mBytes -= length;
+      mEvictions.increment();
+    }
+  }
+
+  private void forget(File file) {
+    mFiles.remove(file.getName());
+    mBytes = 0;
+    for (File remaining : mFiles.values()) {
+      mBytes += remaining.length();
+    }
+    mSize.set(mBytes);
+  }
+
+  private String getName(byte[] hash) {
+    char[] name = new char[hash.length * 2];
+    for (int i = 0; i < hash.length; i++) {
+      name[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+      name[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+    }
+    return new String(name) + mSuffix;
+  }
+}
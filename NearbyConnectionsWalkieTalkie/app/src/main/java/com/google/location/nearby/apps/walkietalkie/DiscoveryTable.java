@@ -0,0 +1,207 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import androidx.annotation.Nullable;
+import com.google.location.nearby.apps.walkietalkie.ConnectionsActivity.Endpoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the endpoints discovery has found, when we last heard of each, and how connecting
+ * to them has gone, so that when we want someone to connect to we try the ones most likely to
+ * answer first.
+ *
+ * <p>An endpoint leaves the table when Nearby Connections says it's lost. It only tells us once
+ * when an endpoint's found, and not again while it stays in range, so while we're discovering
+ * every endpoint in the table counts as live. Once discovery stops we stop hearing about losses
+ * too, so from then on what we have grows stale, and after {@link #TTL_MS} it's dropped. How
+ * connecting has gone is remembered by name, since a device's endpoint ID changes every time it's
+ * found, and outlives the endpoint, so a device that comes back is judged on its record.
+ *
+ * <p>{@link #getCandidates(long)} ranks endpoints by how likely connecting is to work, going by
+ * past attempts, and by how long it's been since we could last vouch for them, since the longer
+ * it's been, the more likely they've moved away. Between equals, the one found most recently
+ * comes first.
+ *
+ * <p>Not thread safe. Nearby Connections calls us back on the UI thread, so that's where this is
+ * used.
+ */
+public class DiscoveryTable {
+  /** How long an endpoint stays in the table once discovery has stopped, in ms. */
+  static final long TTL_MS = 2 * 60 * 1000;
+
+  /** How many devices' connection records we keep. The least recently used are forgotten. */
+  private static final int MAX_RECORDS = 64;
+
+  /** An endpoint we've found. */
+  private static class Entry {
+    final Endpoint mEndpoint;
+    final long mFoundAtMs;
+
+    Entry(Endpoint endpoint, long nowMs) {
+      mEndpoint = endpoint;
+      mFoundAtMs = nowMs;
+    }
+  }
+
+  /** How connecting to one device has gone. */
+  private static class Record {
+    int mSuccesses;
+    int mFailures;
+
+    /**
+     * Returns our guess at the chance the next attempt works. Starts at a half, and moves towards
+     * how past attempts went as they add up.
+     */
+    float getSuccessRate() {
+      return (mSuccesses + 1f) / (mSuccesses + mFailures + 2f);
+    }
+  }
+
+  private final Map<String, Entry> mEntries = new HashMap<>();
+
+  /** When discovery stopped, or -1 while it's running. */
+  private long mStoppedAtMs = -1;
+
+  /** The connection records, by device name, least recently used first. */
+  private final Map<String, Record> mRecords =
+      new LinkedHashMap<String, Record>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+          return size() > MAX_RECORDS;
+        }
+      };
+
+  private final MetricsRegistry.Counter mExpired =
+      MetricsRegistry.get().counter("discovery.endpointsExpired");
+
+  /** Called when discovery starts. Starts again from an empty table. */
+  public void onDiscoveryStarted() {
+    mEntries.clear();
+    mStoppedAtMs = -1;
+  }
+
+  /** Called when discovery stops. What we have starts to go stale. */
+  public void onDiscoveryStopped(long nowMs) {
+    if (mStoppedAtMs < 0) {
+      mStoppedAtMs = nowMs;
+    }
+  }
+
+  /** Adds an endpoint discovery has found, or refreshes it if we have it already. */
+  public void found(Endpoint endpoint, long nowMs) {
+    mEntries.put(endpoint.getId(), new Entry(endpoint, nowMs));
+  }
+
+  /** Removes an endpoint discovery has lost, returning it, or null if we didn't have it. */
+  @Nullable
+  public Endpoint lost(String endpointId) {
+    Entry entry = mEntries.remove(endpointId);
+    return entry == null ? null : entry.mEndpoint;
+  }
+
+  /**
+   * Removes the endpoints we haven't been able to vouch for in {@link #TTL_MS}, which is every
+   * one of them once discovery's been stopped that long, and none while it's running.
+   *
+   * @return The endpoints removed.
+   */
+  public List<Endpoint> expire(long nowMs) {
+    List<Endpoint> expired = Collections.emptyList();
+    Iterator<Entry> iterator = mEntries.values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (getAge(entry, nowMs) >= TTL_MS) {
+        if (expired.isEmpty()) {
+          expired = new ArrayList<>();
+        }
+        expired.add(entry.mEndpoint);
+        iterator.remove();
+        mExpired.increment();
+      }
+    }
+    return expired;
+  }
+
+  /** Notes that we connected to a device. */
+  public void onConnected(String name) {
+    getRecord(name).mSuccesses++;
+  }
+
+  /** Notes that connecting to a device failed. */
+  public void onConnectionFailed(String name) {
+    getRecord(name).mFailures++;
+  }
+
+  /**
+   * Returns the endpoints worth connecting to, best first. Call {@link #expire(long)} first to
+   * leave out stale ones.
+   */
+  public List<Endpoint> getCandidates(final long nowMs) {
+    final Map<Entry, Float> scores = new HashMap<>();
+    List<Entry> entries = new ArrayList<>(mEntries.values());
+    for (Entry entry : entries) {
+      scores.put(entry, getScore(entry, nowMs));
+    }
+    Collections.sort(
+        entries,
+        new Comparator<Entry>() {
+          @Override
+          public int compare(Entry a, Entry b) {
+            int byScore = Float.compare(scores.get(b), scores.get(a));
+            if (byScore != 0) {
+              return byScore;
+            }
+            // Fresher first.
+            return a.mFoundAtMs > b.mFoundAtMs ? -1 : (a.mFoundAtMs == b.mFoundAtMs ? 0 : 1);
+          }
+        });
+    List<Endpoint> candidates = new ArrayList<>(entries.size());
+    for (Entry entry : entries) {
+      candidates.add(entry.mEndpoint);
+    }
+    return candidates;
+  }
+
+  /** Removes every endpoint. What we know about connecting to them is kept. */
+  public void clear() {
+    mEntries.clear();
+  }
+
+  /**
+   * Scores an endpoint by the chance that connecting works, scaled down by how stale it is. One
+   * we can vouch for, as with every endpoint while we're discovering, keeps its whole score. One
+   * that's about to expire keeps a tenth of it.
+   */
+  private float getScore(Entry entry, long nowMs) {
+    Record record = mRecords.get(entry.mEndpoint.getName());
+    float successRate = record == null ? 0.5f : record.getSuccessRate();
+    float age = Math.min(1f, getAge(entry, nowMs) / (float) TTL_MS);
+    return successRate * (1f - 0.9f * age);
+  }
+
+  /**
+   * Returns how long it's been since we could last vouch for an endpoint, in ms. That's now while
+   * we're discovering, since we'd have heard if it were lost, and when discovery stopped after.
+   */
+  private long getAge(Entry entry, long nowMs) {
+    if (mStoppedAtMs < 0) {
+      return 0;
+    }
+    return Math.max(0, nowMs - Math.max(entry.mFoundAtMs, mStoppedAtMs));
+  }
+
+  private Record getRecord(String name) {
+    Record record = mRecords.get(name);
+    if (record == null) {
+      record = new Record();
+      mRecords.put(name, record);
+    }
+    return record;
+  }
+}
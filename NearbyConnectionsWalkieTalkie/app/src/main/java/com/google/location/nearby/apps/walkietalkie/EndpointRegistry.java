@@ -0,0 +1,114 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import androidx.annotation.Nullable;
+import com.google.location.nearby.apps.walkietalkie.ConnectionsActivity.Endpoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of endpoints, keyed by endpoint ID, that any thread can read without locking. Every change
+ * builds a new, immutable copy and swaps it in whole, so readers always see a consistent set, and
+ * the set they're given never changes under them.
+ *
+ * <p>Endpoints come and go a few times a minute at most, while the audio threads look them up many
+ * times a second, so changes are made to pay for the copying. {@link #getEndpoints()} hands back
+ * the same set until something changes, and costs nothing to call. So does {@link #getIdList()},
+ * which is what sending to everyone needs, and which only changes when endpoints join or leave.
+ *
+ * <p>Changes are made one at a time, but from any thread.
+ */
+public class EndpointRegistry {
+  /** The endpoints at one moment, by ID and as a set. Never changed, only replaced. */
+  private static class Snapshot {
+    final Map<String, Endpoint> mById;
+    final Set<Endpoint> mEndpoints;
+    final List<String> mIds;
+
+    Snapshot(Map<String, Endpoint> byId, List<String> ids) {
+      mById = Collections.unmodifiableMap(byId);
+      mEndpoints = Collections.unmodifiableSet(new HashSet<>(byId.values()));
+      mIds = ids;
+    }
+  }
+
+  private static final List<String> NO_IDS = Collections.emptyList();
+
+  private volatile Snapshot mSnapshot = new Snapshot(new HashMap<String, Endpoint>(), NO_IDS);
+
+  /** Returns the endpoint with the given ID, or null if there isn't one. */
+  @Nullable
+  public Endpoint get(String endpointId) {
+    return mSnapshot.mById.get(endpointId);
+  }
+
+  /** Returns true if there's an endpoint with the given ID. */
+  public boolean contains(String endpointId) {
+    return mSnapshot.mById.containsKey(endpointId);
+  }
+
+  /** Returns how many endpoints there are. */
+  public int size() {
+    return mSnapshot.mById.size();
+  }
+
+  /** Returns true if there are no endpoints. */
+  public boolean isEmpty() {
+    return mSnapshot.mById.isEmpty();
+  }
+
+  /**
+   * Returns the endpoints as they are now. The set can't be changed, and doesn't change when the
+   * registry does.
+   */
+  public Set<Endpoint> getEndpoints() {
+    return mSnapshot.mEndpoints;
+  }
+
+  /**
+   * Returns the IDs of the endpoints as they are now, in the order they were added. The list can't
+   * be changed, and doesn't change when the registry does. The same list is returned until an
+   * endpoint is added or removed.
+   */
+  public List<String> getIdList() {
+    return mSnapshot.mIds;
+  }
+
+  /** Adds an endpoint, replacing any with the same ID. */
+  public synchronized void put(Endpoint endpoint) {
+    Snapshot snapshot = mSnapshot;
+    Map<String, Endpoint> endpoints = new HashMap<>(snapshot.mById);
+    List<String> ids = snapshot.mIds;
+    if (endpoints.put(endpoint.getId(), endpoint) == null) {
+      List<String> added = new ArrayList<>(ids.size() + 1);
+      added.addAll(ids);
+      added.add(endpoint.getId());
+      ids = Collections.unmodifiableList(added);
+    }
+    mSnapshot = new Snapshot(endpoints, ids);
+  }
+
+  /** Removes the endpoint with the given ID, returning it, or null if there wasn't one. */
+  @Nullable
+  public synchronized Endpoint remove(String endpointId) {
+    if (!mSnapshot.mById.containsKey(endpointId)) {
+      return null;
+    }
+    Snapshot snapshot = mSnapshot;
+    Map<String, Endpoint> endpoints = new HashMap<>(snapshot.mById);
+    Endpoint endpoint = endpoints.remove(endpointId);
+    List<String> ids = new ArrayList<>(snapshot.mIds);
+    ids.remove(endpointId);
+    mSnapshot = new Snapshot(endpoints, Collections.unmodifiableList(ids));
+    return endpoint;
+  }
+
+  /** Removes every endpoint. */
+  public synchronized void clear() {
+    mSnapshot = new Snapshot(new HashMap<String, Endpoint>(), NO_IDS);
+  }
+}
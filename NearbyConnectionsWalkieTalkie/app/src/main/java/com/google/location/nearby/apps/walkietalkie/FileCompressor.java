@@ -0,0 +1,194 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses files before we send them, when it's worth it. Logs and text shrink several times
+ * over with deflate, which matters over Bluetooth, but pictures, video and archives are already
+ * compressed, and deflating them again only costs time.
+ *
+ * <p>{@link #isWorthCompressing(File)} decides. It first looks for the signatures of formats that
+ * are already compressed. Otherwise, it deflates a few samples from across the file, and only
+ * says yes if they shrink by enough. Compressing and decompressing are both streamed, so a file
+ * of any size takes the same memory.
+ */
+public final class FileCompressor {
+  /** The file is sent as it is. */
+  public static final int ENCODING_NONE = 0;
+
+  /** The file is sent deflated, with a zlib header. */
+  public static final int ENCODING_DEFLATE = 1;
+
+  /** How many samples we take from a file to see how well it compresses. */
+  private static final int SAMPLE_COUNT = 4;
+
+  /** The size of each sample, in bytes. */
+  private static final int SAMPLE_SIZE = 16 * 1024;
+
+  /** Samples must deflate to less than this fraction of their size for us to bother. */
+  private static final float MAX_RATIO = 0.8f;
+
+  /** Files smaller than this aren't worth the trouble. */
+  private static final long MIN_SIZE = 1024;
+
+  /** The size of the buffers we stream through, in bytes. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private FileCompressor() {}
+
+  /** Returns true if a file would shrink enough to be worth compressing. */
+  public static boolean isWorthCompressing(File file) throws IOException {
+    long size = file.length();
+    if (size < MIN_SIZE) {
+      return false;
+    }
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, size)];
+      in.readFully(sample, 0, Math.min(sample.length, 16));
+      if (isCompressedFormat(sample, Math.min(sample.length, 16))) {
+        return false;
+      }
+
+      // Spread the samples evenly from the start of the file to the end.
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      byte[] output = new byte[sample.length];
+      long sampled = 0;
+      long deflated = 0;
+      int samples = size <= SAMPLE_SIZE * SAMPLE_COUNT ? 1 : SAMPLE_COUNT;
+      try {
+        for (int i = 0; i < samples; i++) {
+          long offset = samples == 1 ? 0 : (size - sample.length) * i / (samples - 1);
+          int length = (int) Math.min(sample.length, size - offset);
+          in.seek(offset);
+          in.readFully(sample, 0, length);
+          deflater.reset();
+          deflater.setInput(sample, 0, length);
+          deflater.finish();
+          while (!deflater.finished()) {
+            deflated += deflater.deflate(output);
+          }
+          sampled += length;
+        }
+      } finally {
+        deflater.end();
+      }
+      return deflated < sampled * MAX_RATIO;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes a deflated copy of a file.
+   *
+   * @param source The file to compress.
+   * @param destination Where to write the compressed copy.
+   * @return The size of the compressed copy, in bytes.
+   */
+  public static long compress(File source, File destination) throws IOException {
+    FileInputStream in = new FileInputStream(source);
+    try {
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+      try {
+        DeflaterOutputStream out =
+            new DeflaterOutputStream(new FileOutputStream(destination), deflater, BUFFER_SIZE);
+        try {
+          copy(in, out);
+        } finally {
+          out.close();
+        }
+      } finally {
+        deflater.end();
+      }
+    } finally {
+      in.close();
+    }
+    return destination.length();
+  }
+
+  /**
+   * Wraps a stream of a file sent with the given encoding so that it reads the original file.
+   *
+   * @throws IOException If we don't know the encoding.
+   */
+  public static InputStream decode(InputStream in, int encoding) throws IOException {
+    switch (encoding) {
+      case ENCODING_NONE:
+        return in;
+      case ENCODING_DEFLATE:
+        return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+          @Override
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              // We made the inflater, so it's up to us to free it.
+              inf.end();
+            }
+          }
+        };
+      default:
+        throw new IOException("Unknown encoding " + encoding);
+    }
+  }
+
+  /** Copies one stream to another, returning how many bytes were copied. */
+  static long copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long total = 0;
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+      total += read;
+    }
+    return total;
+  }
+
+  /** Returns true if a file starts like a format that's compressed already. */
+  private static boolean isCompressedFormat(byte[] header, int length) {
+    return startsWith(header, length, 0xFF, 0xD8, 0xFF) // JPEG
+        || startsWith(header, length, 0x89, 'P', 'N', 'G') // PNG
+        || startsWith(header, length, 'G', 'I', 'F', '8') // GIF
+        || startsWith(header, length, 'P', 'K', 0x03, 0x04) // Zip, and so APK, DOCX and friends
+        || startsWith(header, length, 0x1F, 0x8B) // Gzip
+        || startsWith(header, length, 'B', 'Z', 'h') // Bzip2
+        || startsWith(header, length, 0xFD, '7', 'z', 'X', 'Z') // XZ
+        || startsWith(header, length, '7', 'z', 0xBC, 0xAF) // 7-Zip
+        || startsWith(header, length, 'O', 'g', 'g', 'S') // Ogg
+        || startsWith(header, length, 'I', 'D', '3') // MP3
+        || (startsWith(header, length, 'R', 'I', 'F', 'F') // WebP
+            && length >= 12
+            && header[8] == 'W'
+            && header[9] == 'E'
+            && header[10] == 'B'
+            && header[11] == 'P')
+        || (length >= 8 // MP4, 3GP, HEIC and other ISO media
+            && header[4] == 'f'
+            && header[5] == 't'
+            && header[6] == 'y'
+            && header[7] == 'p');
+  }
+
+  private static boolean startsWith(byte[] header, int length, int... signature) {
+    if (length < signature.length) {
+      return false;
+    }
+    for (int i = 0; i < signature.length; i++) {
+      if ((header[i] & 0xFF) != signature[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,199 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Moves files we've received out of Nearby Connections' storage, or ours, and into place, on a
+ * background thread so that large files don't stall the UI. The copy is done channel to channel
+ * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which
+ * lets the kernel move the bytes without them passing through a buffer of ours. The result is
+ * reported on the UI thread.
+ *
+ * <p>Files that were compressed to send them are decompressed as they're copied, a buffer at a
+ * time. Files are moved one at a time, in the order they're asked for.
+ */
+public class FileCopier {
+  /** Hears how a move went. Called on the UI thread. */
+  public interface Callback {
+    /** The file is in place, and the source has been deleted. */
+    void onCopied(File destination, long bytes, long durationMs);
+
+    /** The file couldn't be moved. Any partial copy has been deleted, as has the source. */
+    void onCopyFailed(File destination, IOException e);
+  }
+
+  /** The most we ask the kernel to move in one go. Keeps each call from blocking for too long. */
+  private static final long MAX_TRANSFER_SIZE = 8 * 1024 * 1024;
+
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+  private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+  /**
+   * Moves a file in the background.
+   *
+   * @param resolver Resolves the source.
+   * @param source The file to move. Deleted once it's been copied, or once we've given up.
+   * @param destination Where to put it.
+   * @param callback Told how it went, on the UI thread.
+   */
+  public void move(
+      final ContentResolver resolver,
+      final Uri source,
+      final File destination,
+      final Callback callback) {
+    move(
+        new Source() {
+          @Override
+          public FileInputStream open() throws IOException {
+            ParcelFileDescriptor pfd = resolver.openFileDescriptor(source, "r");
+            if (pfd == null) {
+              throw new IOException("Couldn't open " + source);
+            }
+            return new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+          }
+
+          @Override
+          public void delete() {
+            resolver.delete(source, null, null);
+          }
+        },
+        destination,
+        FileCompressor.ENCODING_NONE,
+        callback);
+  }
+
+  /**
+   * Moves a file in the background, decoding it on the way if need be.
+   *
+   * @param source The file to move. Deleted once it's been copied, or once we've given up.
+   * @param destination Where to put it.
+   * @param encoding How the source is encoded, one of the {@link FileCompressor} encodings.
+   * @param callback Told how it went, on the UI thread.
+   */
+  public void move(final File source, File destination, int encoding, Callback callback) {
+    move(
+        new Source() {
+          @Override
+          public FileInputStream open() throws IOException {
+            return new FileInputStream(source);
+          }
+
+          @Override
+          public void delete() {
+            if (source.exists() && !source.delete()) {
+              Log.w(TAG, "Failed to delete " + source);
+            }
+          }
+        },
+        destination,
+        encoding,
+        callback);
+  }
+
+  /** Stops taking new files. Moves already asked for still finish. */
+  public void shutdown() {
+    mExecutor.shutdown();
+  }
+
+  /** Where a file comes from. */
+  private interface Source {
+    /** Opens the file for reading. Called on the background thread. */
+    FileInputStream open() throws IOException;
+
+    /** Deletes the file. Called on the background thread. */
+    void delete();
+  }
+
+  private void move(
+      final Source source, final File destination, final int encoding, final Callback callback) {
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            long startMs = SystemClock.elapsedRealtime();
+            try {
+              final long bytes = copy(source, destination, encoding);
+              final long durationMs = SystemClock.elapsedRealtime() - startMs;
+              mUiHandler.post(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      callback.onCopied(destination, bytes, durationMs);
+                    }
+                  });
+            } catch (final IOException e) {
+              if (destination.exists() && !destination.delete()) {
+                Log.w(TAG, "Failed to delete partial copy " + destination);
+              }
+              mUiHandler.post(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      callback.onCopyFailed(destination, e);
+                    }
+                  });
+            } finally {
+              source.delete();
+            }
+          }
+        });
+  }
+
+  /** Copies a file, returning its decoded size. Runs on the background thread. */
+  private static long copy(Source source, File destination, int encoding) throws IOException {
+    FileInputStream in = source.open();
+    try {
+      FileOutputStream out = new FileOutputStream(destination);
+      try {
+        if (encoding != FileCompressor.ENCODING_NONE) {
+          // Decoding needs the bytes to pass through us, so the kernel can't copy them for us.
+          InputStream decoded = FileCompressor.decode(in, encoding);
+          try {
+            long size = FileCompressor.copy(decoded, out);
+            out.getFD().sync();
+            return size;
+          } finally {
+            decoded.close();
+          }
+        }
+
+        FileChannel inChannel = in.getChannel();
+        FileChannel outChannel = out.getChannel();
+        long size = inChannel.size();
+        long position = 0;
+        while (position < size) {
+          long transferred =
+              inChannel.transferTo(
+                  position, Math.min(MAX_TRANSFER_SIZE, size - position), outChannel);
+          if (transferred <= 0) {
+            throw new IOException("Copy stalled at " + position + " of " + size + " bytes");
+          }
+          position += transferred;
+        }
+        // Make sure the file is really there before we delete the source.
+        out.getFD().sync();
+        return position;
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
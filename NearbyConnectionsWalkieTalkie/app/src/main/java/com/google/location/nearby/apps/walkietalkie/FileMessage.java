@@ -0,0 +1,319 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * The layout of the small messages we send as BYTES payloads to move files around. Each one names
+ * the transfer it's about, so it can be matched up with the rest of the transfer whatever order
+ * they arrive in. For a file sent as a FILE payload, the transfer ID is the payload's ID, which
+ * both ends agree on. For one sent by {@link ResumableTransfers}, it's picked by the sender.
+ *
+ * <pre>
+ *   0      2         3      4             12
+ *   +------+---------+------+-------------+------+
+ *   | 'WF' | version | type | transfer ID | body |
+ *   +------+---------+------+-------------+------+
+ * </pre>
+ *
+ * <p>Multi-byte fields are big-endian. What the body holds depends on the type.
+ *
+ * <p>{@link #TYPE_THUMBNAIL}: A small JPEG of a picture that's on its way, sent ahead of it so the
+ * receiver has something to show while the rest arrives.
+ *
+ * <p>{@link #TYPE_OFFER}: The sender has a file for the receiver. The body is the size of the file
+ * as sent (8 bytes), the size of each chunk it'll be sent in (4 bytes), how it's encoded (1 byte,
+ * one of the {@link FileCompressor} encodings), the SHA-256 hash of the file as sent (32 bytes) and
+ * the SHA-256 hash of the file once decoded (32 bytes). The two hashes are the same for a file
+ * sent as it is. Sent again whenever the sender wants to know what the receiver has, as after
+ * reconnecting.
+ *
+ * <p>{@link #TYPE_CHUNK}: A piece of the file. The body is the chunk's index (4 bytes), the CRC-32
+ * of its data (4 bytes), and the data.
+ *
+ * <p>{@link #TYPE_ACK}: The receiver's answer to an offer, and its progress report every few
+ * chunks. The body is a bitmap of the chunks it has, chunk i being bit i % 8 of byte i / 8.
+ *
+ * <p>{@link #TYPE_DONE}: The receiver has the whole file, and its hash matches. The body is empty.
+ *
+ * <p>{@link #TYPE_DECLINE}: The receiver had the file already, going by its decoded hash, and
+ * doesn't want it sent. The body is empty.
+ */
+public final class FileMessage {
+  /** The size of the header, in bytes. */
+  public static final int HEADER_SIZE = 12;
+
+  /** A preview of a picture. The body is a JPEG. */
+  public static final int TYPE_THUMBNAIL = 1;
+
+  /** A file is on offer. */
+  public static final int TYPE_OFFER = 2;
+
+  /** A piece of a file. */
+  public static final int TYPE_CHUNK = 3;
+
+  /** Which pieces of a file have arrived. */
+  public static final int TYPE_ACK = 4;
+
+  /** A file has arrived in full. */
+  public static final int TYPE_DONE = 5;
+
+  /** A file isn't wanted, because the receiver has it. */
+  public static final int TYPE_DECLINE = 6;
+
+  /** The size of a SHA-256 hash, in bytes. */
+  public static final int HASH_SIZE = 32;
+
+  /** The size of a {@link #TYPE_CHUNK} message, less its data. */
+  public static final int CHUNK_OVERHEAD = HEADER_SIZE + 8;
+
+  /** The version of the header this class reads and writes. */
+  static final int VERSION = 3;
+
+  private static final int MAGIC_0 = 'W';
+  private static final int MAGIC_1 = 'F';
+
+  private static final int OFFSET_VERSION = 2;
+  private static final int OFFSET_TYPE = 3;
+  private static final int OFFSET_TRANSFER_ID = 4;
+
+  private static final int OFFSET_OFFER_SIZE = HEADER_SIZE;
+  private static final int OFFSET_OFFER_CHUNK_SIZE = HEADER_SIZE + 8;
+  private static final int OFFSET_OFFER_ENCODING = HEADER_SIZE + 12;
+  private static final int OFFSET_OFFER_HASH = HEADER_SIZE + 13;
+  private static final int OFFSET_OFFER_CONTENT_HASH = OFFSET_OFFER_HASH + HASH_SIZE;
+  private static final int OFFER_MESSAGE_SIZE = OFFSET_OFFER_CONTENT_HASH + HASH_SIZE;
+
+  private static final int OFFSET_CHUNK_INDEX = HEADER_SIZE;
+  private static final int OFFSET_CHUNK_CRC = HEADER_SIZE + 4;
+
+  private FileMessage() {}
+
+  /**
+   * Builds a {@link #TYPE_THUMBNAIL} message.
+   *
+   * @param transferId The transfer of the picture the thumbnail is a preview of.
+   * @param jpeg The thumbnail.
+   */
+  public static byte[] thumbnail(long transferId, byte[] jpeg) {
+    byte[] message = new byte[HEADER_SIZE + jpeg.length];
+    writeHeader(message, TYPE_THUMBNAIL, transferId);
+    System.arraycopy(jpeg, 0, message, HEADER_SIZE, jpeg.length);
+    return message;
+  }
+
+  /**
+   * Builds a {@link #TYPE_OFFER} message.
+   *
+   * @param transferId The transfer.
+   * @param size The size of the file as sent, in bytes.
+   * @param chunkSize The size of every chunk but the last, in bytes.
+   * @param encoding How the file is encoded, one of the {@link FileCompressor} encodings.
+   * @param hash The SHA-256 hash of the file as sent.
+   * @param contentHash The SHA-256 hash of the file once decoded.
+   */
+  public static byte[] offer(
+      long transferId, long size, int chunkSize, int encoding, byte[] hash, byte[] contentHash) {
+    byte[] message = new byte[OFFER_MESSAGE_SIZE];
+    writeHeader(message, TYPE_OFFER, transferId);
+    writeLong(message, OFFSET_OFFER_SIZE, size);
+    writeInt(message, OFFSET_OFFER_CHUNK_SIZE, chunkSize);
+    message[OFFSET_OFFER_ENCODING] = (byte) encoding;
+    System.arraycopy(hash, 0, message, OFFSET_OFFER_HASH, HASH_SIZE);
+    System.arraycopy(contentHash, 0, message, OFFSET_OFFER_CONTENT_HASH, HASH_SIZE);
+    return message;
+  }
+
+  /**
+   * Builds a {@link #TYPE_CHUNK} message.
+   *
+   * @param transferId The transfer.
+   * @param index The chunk's index. Its data starts index * chunk size bytes into the file.
+   * @param data Holds the chunk's data.
+   * @param offset Where the data starts.
+   * @param length The length of the data.
+   */
+  public static byte[] chunk(long transferId, int index, byte[] data, int offset, int length) {
+    byte[] message = new byte[CHUNK_OVERHEAD + length];
+    writeHeader(message, TYPE_CHUNK, transferId);
+    writeInt(message, OFFSET_CHUNK_INDEX, index);
+    CRC32 crc = new CRC32();
+    crc.update(data, offset, length);
+    writeInt(message, OFFSET_CHUNK_CRC, (int) crc.getValue());
+    System.arraycopy(data, offset, message, CHUNK_OVERHEAD, length);
+    return message;
+  }
+
+  /**
+   * Builds a {@link #TYPE_ACK} message.
+   *
+   * @param transferId The transfer.
+   * @param chunks The chunks that have arrived.
+   * @param chunkCount How many chunks there are in all.
+   */
+  public static byte[] ack(long transferId, BitSet chunks, int chunkCount) {
+    byte[] message = new byte[HEADER_SIZE + (chunkCount + 7) / 8];
+    writeHeader(message, TYPE_ACK, transferId);
+    for (int i = chunks.nextSetBit(0); i >= 0 && i < chunkCount; i = chunks.nextSetBit(i + 1)) {
+      message[HEADER_SIZE + i / 8] |= (byte) (1 << (i % 8));
+    }
+    return message;
+  }
+
+  /**
+   * Builds a {@link #TYPE_DONE} message.
+   *
+   * @param transferId The transfer.
+   */
+  public static byte[] done(long transferId) {
+    byte[] message = new byte[HEADER_SIZE];
+    writeHeader(message, TYPE_DONE, transferId);
+    return message;
+  }
+
+  /**
+   * Builds a {@link #TYPE_DECLINE} message.
+   *
+   * @param transferId The transfer.
+   */
+  public static byte[] decline(long transferId) {
+    byte[] message = new byte[HEADER_SIZE];
+    writeHeader(message, TYPE_DECLINE, transferId);
+    return message;
+  }
+
+  /** Returns true if the bytes are a message we understand. */
+  public static boolean isMessage(byte[] message) {
+    if (message.length < HEADER_SIZE
+        || message[0] != MAGIC_0
+        || message[1] != MAGIC_1
+        || message[OFFSET_VERSION] != VERSION) {
+      return false;
+    }
+    switch (getType(message)) {
+      case TYPE_OFFER:
+        return message.length == OFFER_MESSAGE_SIZE;
+      case TYPE_CHUNK:
+        return message.length >= CHUNK_OVERHEAD;
+      default:
+        return true;
+    }
+  }
+
+  /** Returns the type of a message. */
+  public static int getType(byte[] message) {
+    return message[OFFSET_TYPE] & 0xFF;
+  }
+
+  /** Returns the ID of the transfer a message is about. */
+  public static long getTransferId(byte[] message) {
+    return readLong(message, OFFSET_TRANSFER_ID);
+  }
+
+  /** Returns the length of a message's body, which starts at {@link #HEADER_SIZE}. */
+  public static int getBodyLength(byte[] message) {
+    return message.length - HEADER_SIZE;
+  }
+
+  /** Returns the size of the file as sent in a {@link #TYPE_OFFER} message, in bytes. */
+  public static long getOfferSize(byte[] message) {
+    return readLong(message, OFFSET_OFFER_SIZE);
+  }
+
+  /** Returns the chunk size in a {@link #TYPE_OFFER} message, in bytes. */
+  public static int getOfferChunkSize(byte[] message) {
+    return readInt(message, OFFSET_OFFER_CHUNK_SIZE);
+  }
+
+  /** Returns how the file in a {@link #TYPE_OFFER} message is encoded. */
+  public static int getOfferEncoding(byte[] message) {
+    return message[OFFSET_OFFER_ENCODING] & 0xFF;
+  }
+
+  /** Returns the SHA-256 hash of the file as sent in a {@link #TYPE_OFFER} message. */
+  public static byte[] getOfferHash(byte[] message) {
+    byte[] hash = new byte[HASH_SIZE];
+    System.arraycopy(message, OFFSET_OFFER_HASH, hash, 0, HASH_SIZE);
+    return hash;
+  }
+
+  /** Returns the SHA-256 hash of the decoded file in a {@link #TYPE_OFFER} message. */
+  public static byte[] getOfferContentHash(byte[] message) {
+    byte[] hash = new byte[HASH_SIZE];
+    System.arraycopy(message, OFFSET_OFFER_CONTENT_HASH, hash, 0, HASH_SIZE);
+    return hash;
+  }
+
+  /** Returns the index of the chunk in a {@link #TYPE_CHUNK} message. */
+  public static int getChunkIndex(byte[] message) {
+    return readInt(message, OFFSET_CHUNK_INDEX);
+  }
+
+  /**
+   * Returns the length of the data in a {@link #TYPE_CHUNK} message, which starts at {@link
+   * #CHUNK_OVERHEAD}.
+   */
+  public static int getChunkLength(byte[] message) {
+    return message.length - CHUNK_OVERHEAD;
+  }
+
+  /** Returns true if the data in a {@link #TYPE_CHUNK} message matches its checksum. */
+  public static boolean hasValidChecksum(byte[] message) {
+    CRC32 crc = new CRC32();
+    crc.update(message, CHUNK_OVERHEAD, getChunkLength(message));
+    return readInt(message, OFFSET_CHUNK_CRC) == (int) crc.getValue();
+  }
+
+  /**
+   * Returns the chunks a {@link #TYPE_ACK} message says have arrived.
+   *
+   * @param message The message.
+   * @param chunkCount How many chunks there are in all. Bits beyond them are ignored.
+   */
+  public static BitSet getAckedChunks(byte[] message, int chunkCount) {
+    BitSet chunks = new BitSet(chunkCount);
+    int count = Math.min(chunkCount, getBodyLength(message) * 8);
+    for (int i = 0; i < count; i++) {
+      if ((message[HEADER_SIZE + i / 8] & (1 << (i % 8))) != 0) {
+        chunks.set(i);
+      }
+    }
+    return chunks;
+  }
+
+  private static void writeHeader(byte[] message, int type, long transferId) {
+    message[0] = (byte) MAGIC_0;
+    message[1] = (byte) MAGIC_1;
+    message[OFFSET_VERSION] = (byte) VERSION;
+    message[OFFSET_TYPE] = (byte) type;
+    writeLong(message, OFFSET_TRANSFER_ID, transferId);
+  }
+
+  private static void writeInt(byte[] message, int offset, int value) {
+    for (int i = 0; i < 4; i++) {
+      message[offset + i] = (byte) (value >> (24 - 8 * i));
+    }
+  }
+
+  private static void writeLong(byte[] message, int offset, long value) {
+    for (int i = 0; i < 8; i++) {
+      message[offset + i] = (byte) (value >> (56 - 8 * i));
+    }
+  }
+
+  private static int readInt(byte[] message, int offset) {
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      value = value << 8 | (message[offset + i] & 0xFF);
+    }
+    return value;
+  }
+
+  private static long readLong(byte[] message, int offset) {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value = value << 8 | (message[offset + i] & 0xFF);
+    }
+    return value;
+  }
+}
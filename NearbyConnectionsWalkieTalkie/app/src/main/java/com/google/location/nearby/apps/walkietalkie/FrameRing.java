@@ -0,0 +1,128 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed-size queue of byte frames for exactly one producer thread and one consumer thread. Neither
+ * side takes a lock, and every slot is allocated up front, so the producer can hand frames off
+ * without ever blocking or allocating.
+ *
+ * <p>When the consumer falls behind and the ring fills up, new frames are dropped and counted rather
+ * than making the producer wait.
+ */
+public class FrameRing {
+  private final byte[][] mSlots;
+  private final int[] mLengths;
+  private final int mMask;
+
+  /** The number of frames the consumer has taken. Only the consumer writes it. */
+  private final AtomicLong mHead = new AtomicLong();
+
+  /** The number of frames the producer has added. Only the producer writes it. */
+  private final AtomicLong mTail = new AtomicLong();
+
+  /** The consumer thread, while it's parked waiting for a frame. */
+  private volatile Thread mWaiter;
+
+  private volatile long mOverflows;
+  private volatile long mOverflowBytes;
+
+  /**
+   * Creates an empty ring.
+   *
+   * @param capacity The most frames the ring can hold. Must be a power of 2.
+   * @param maxFrameSize The largest frame that will be added, in bytes.
+   */
+  public FrameRing(int capacity, int maxFrameSize) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity must be a power of 2, not " + capacity);
+    }
+    mSlots = new byte[capacity][maxFrameSize];
+    mLengths = new int[capacity];
+    mMask = capacity - 1;
+  }
+
+  /**
+   * Adds a frame. Only call this from the producer thread.
+   *
+   * @return False if the ring was full and the frame was dropped.
+   */
+  public boolean offer(byte[] frame, int offset, int length) {
+    return offer(frame, offset, length, 0);
+  }
+
+  /**
+   * Adds a frame, as long as that leaves some slots free. Frames that mustn't be lost can then be
+   * offered with a smaller reserve, and still find room once the rest are being dropped. Only call
+   * this from the producer thread.
+   *
+   * @param reserve How many slots must still be free after this frame is added.
+   * @return False if the ring was too full and the frame was dropped.
+   */
+  public boolean offer(byte[] frame, int offset, int length, int reserve) {
+    long tail = mTail.get();
+    if (tail - mHead.get() > mMask - reserve) {
+      mOverflows++;
+      mOverflowBytes += length;
+      return false;
+    }
+
+    int slot = (int) tail & mMask;
+    System.arraycopy(frame, offset, mSlots[slot], 0, length);
+    mLengths[slot] = length;
+    mTail.lazySet(tail + 1);
+
+    Thread waiter = mWaiter;
+    if (waiter != null) {
+      LockSupport.unpark(waiter);
+    }
+    return true;
+  }
+
+  /**
+   * Takes the oldest frame, waiting up to the given time for one to arrive. Only call this from the
+   * consumer thread.
+   *
+   * @param out Where to copy the frame. Must fit the largest frame.
+   * @param offset The first byte to copy to.
+   * @param timeoutMs How long to wait if the ring is empty.
+   * @return The length of the frame, or -1 if the ring was still empty when we stopped waiting.
+   */
+  public int take(byte[] out, int offset, long timeoutMs) {
+    long head = mHead.get();
+    if (head == mTail.get()) {
+      mWaiter = Thread.currentThread();
+      // Check again now the producer can see us, so we can't miss its wake up.
+      if (head == mTail.get()) {
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+      }
+      mWaiter = null;
+      if (head == mTail.get()) {
+        return -1;
+      }
+    }
+
+    int slot = (int) head & mMask;
+    int length = mLengths[slot];
+    System.arraycopy(mSlots[slot], 0, out, offset, length);
+    mHead.lazySet(head + 1);
+    return length;
+  }
+
+  /** Returns true if there are no frames waiting. */
+  public boolean isEmpty() {
+    return mHead.get() == mTail.get();
+  }
+
+  /** Returns how many frames were dropped because the ring was full. */
+  public long getOverflows() {
+    return mOverflows;
+  }
+
+  /** Returns how many bytes were dropped because the ring was full. */
+  public long getOverflowBytes() {
+    return mOverflowBytes;
+  }
+}
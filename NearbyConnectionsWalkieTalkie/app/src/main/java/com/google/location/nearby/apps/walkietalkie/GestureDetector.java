@@ -2,6 +2,7 @@ package com.google.location.nearby.apps.walkietalkie;
 
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import androidx.annotation.IntDef;
 import android.view.KeyEvent;
 import java.lang.annotation.Retention;
@@ -44,6 +45,10 @@ public class GestureDetector {
       };
 
   private boolean mHandledDownAlready;
+
+  /** When the key that started the current hold went down. */
+  private long mHoldTimeMs;
+
   private final Set<Integer> mKeyCodes = new HashSet<>();
 
   /**
@@ -64,6 +69,15 @@ public class GestureDetector {
   /** The key has been released. Override this method to act on the event. */
   protected void onRelease() {}
 
+  /**
+   * Returns when the key that started the current hold went down, on the {@link
+   * SystemClock#elapsedRealtime()} clock. This is earlier than {@link #onHold()} is called, by
+   * however long the event took to reach us.
+   */
+  public long getHoldTime() {
+    return mHoldTimeMs;
+  }
+
   /** Processes a key event. Returns true if it consumes the event. */
   public boolean onKeyEvent(KeyEvent event) {
     if (!mKeyCodes.contains(event.getKeyCode())) {
@@ -78,6 +92,10 @@ public class GestureDetector {
           break;
         }
         mHandledDownAlready = true;
+        // Key events are timed by uptimeMillis(), which stops in deep sleep. Convert to the clock
+        // our audio is timed by.
+        mHoldTimeMs =
+            event.getEventTime() + SystemClock.elapsedRealtime() - SystemClock.uptimeMillis();
         mHandler.sendEmptyMessage(State.HOLD);
         break;
       case KeyEvent.ACTION_UP:
@@ -0,0 +1,112 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.Arrays;
+
+/**
+ * Counts values in fixed width buckets, so percentiles can be read off without keeping every
+ * value. Values past the last bucket are counted in it, and the true maximum is tracked
+ * separately.
+ *
+ * <p>All storage is allocated up front and recording a value doesn't allocate. Not thread safe.
+ */
+public class Histogram {
+  private final int mBucketWidth;
+  private final long[] mCounts;
+
+  private long mCount;
+  private long mSum;
+  private long mMin = Long.MAX_VALUE;
+  private long mMax = Long.MIN_VALUE;
+
+  /**
+   * Creates an empty histogram.
+   *
+   * @param maxValue The largest value to tell apart from larger ones.
+   * @param bucketWidth How wide each bucket is. Percentiles are accurate to within this.
+   */
+  public Histogram(int maxValue, int bucketWidth) {
+    if (maxValue < 0 || bucketWidth < 1) {
+      throw new IllegalArgumentException(
+          "Invalid histogram of " + maxValue + " in buckets of " + bucketWidth);
+    }
+    mBucketWidth = bucketWidth;
+    mCounts = new long[maxValue / bucketWidth + 1];
+  }
+
+  /** Counts a value. Negative values are counted as zero. */
+  public void add(long value) {
+    value = Math.max(0, value);
+    int bucket = (int) Math.min(value / mBucketWidth, mCounts.length - 1);
+    mCounts[bucket]++;
+    mCount++;
+    mSum += value;
+    mMin = Math.min(mMin, value);
+    mMax = Math.max(mMax, value);
+  }
+
+  /** Adds every value counted by another histogram with the same buckets to this one. */
+  public void addAll(Histogram other) {
+    if (other.mBucketWidth != mBucketWidth || other.mCounts.length != mCounts.length) {
+      throw new IllegalArgumentException("Histograms have different buckets");
+    }
+    for (int i = 0; i < mCounts.length; i++) {
+      mCounts[i] += other.mCounts[i];
+    }
+    mCount += other.mCount;
+    mSum += other.mSum;
+    mMin = Math.min(mMin, other.mMin);
+    mMax = Math.max(mMax, other.mMax);
+  }
+
+  /** Forgets every value. */
+  public void reset() {
+    Arrays.fill(mCounts, 0);
+    mCount = 0;
+    mSum = 0;
+    mMin = Long.MAX_VALUE;
+    mMax = Long.MIN_VALUE;
+  }
+
+  /** Returns how many values have been counted. */
+  public long getCount() {
+    return mCount;
+  }
+
+  /** Returns the smallest value counted, or 0 if there are none. */
+  public long getMin() {
+    return mCount == 0 ? 0 : mMin;
+  }
+
+  /** Returns the largest value counted, or 0 if there are none. */
+  public long getMax() {
+    return mCount == 0 ? 0 : mMax;
+  }
+
+  /** Returns the average value counted, or 0 if there are none. */
+  public float getMean() {
+    return mCount == 0 ? 0 : (float) mSum / mCount;
+  }
+
+  /**
+   * Returns a value that the given share of values are at or below, or 0 if there are none. The
+   * answer is the top of the bucket the percentile falls in, but never more than the maximum.
+   *
+   * @param percentile Between 0 and 100.
+   */
+  public long getPercentile(double percentile) {
+    if (mCount == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(percentile / 100 * mCount);
+    rank = Math.max(1, Math.min(rank, mCount));
+    long seen = 0;
+    for (int i = 0; i < mCounts.length; i++) {
+      seen += mCounts[i];
+      if (seen >= rank) {
+        // The last bucket has no top, so the best we can say is the maximum.
+        return i == mCounts.length - 1 ? mMax : Math.min(mMax, (long) (i + 1) * mBucketWidth - 1);
+      }
+    }
+    return mMax;
+  }
+}
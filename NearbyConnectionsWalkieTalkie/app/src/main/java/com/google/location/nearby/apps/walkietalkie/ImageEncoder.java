@@ -0,0 +1,479 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.android.gms.nearby.connection.ConnectionsClient;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shrinks pictures before we send them. Camera pictures are often 5 to 12 MB, which takes a long
+ * time over Bluetooth, and is far more than the other device's screen can show. We decode the
+ * picture at a fraction of its size, scale it to fit a {@link Profile}, and compress it as a JPEG,
+ * lowering the quality and then the size until it fits the profile's byte budget. The result is
+ * written to a file, ready for {@link com.google.android.gms.nearby.connection.Payload#fromFile},
+ * along with a thumbnail small enough to send ahead of it as a BYTES payload. We also load pictures
+ * we've received, for showing.
+ *
+ * <p>The work happens on a background thread, one picture at a time, and the result is reported
+ * on the UI thread. Files are kept in a directory of their own, and deleted by {@link #shutdown()}.
+ */
+public class ImageEncoder {
+  /** How big a picture we send, and how much we compress it. */
+  public static class Profile {
+    /** Quick to send, fine on a phone screen. */
+    public static final Profile SMALL = new Profile(1024, 256 * 1024, 75);
+
+    /** A balance between size and detail. */
+    public static final Profile MEDIUM = new Profile(1600, 512 * 1024, 85);
+
+    /** Good enough to zoom in on. */
+    public static final Profile LARGE = new Profile(2560, 2 * 1024 * 1024, 90);
+
+    private final int mMaxDimension;
+    private final long mMaxBytes;
+    private final int mQuality;
+
+    /**
+     * @param maxDimension The longest the longer side of the picture may be, in pixels, or 0 for
+     *     no limit.
+     * @param maxBytes The most bytes the compressed picture should take, or 0 for no limit.
+     * @param quality The JPEG quality to start at, from 0 to 100.
+     */
+    public Profile(int maxDimension, long maxBytes, int quality) {
+      mMaxDimension = maxDimension;
+      mMaxBytes = maxBytes;
+      mQuality = quality;
+    }
+
+    /** Returns the longest the longer side of the picture may be, in pixels, or 0 for no limit. */
+    public int getMaxDimension() {
+      return mMaxDimension;
+    }
+
+    /** Returns the most bytes the compressed picture should take, or 0 for no limit. */
+    public long getMaxBytes() {
+      return mMaxBytes;
+    }
+
+    /** Returns the JPEG quality to start at. */
+    public int getQuality() {
+      return mQuality;
+    }
+
+    @Override
+    public String toString() {
+      return "Profile{maxDimension="
+          + mMaxDimension
+          + ", maxBytes="
+          + mMaxBytes
+          + ", quality="
+          + mQuality
+          + "}";
+    }
+  }
+
+  /** Hears how encoding went. Called on the UI thread. */
+  public interface Callback {
+    /**
+     * The picture is ready to send.
+     *
+     * @param file The picture.
+     * @param thumbnail A JPEG preview of the picture, or null if we couldn't make one small enough
+     *     to send as a BYTES payload.
+     * @param durationMs How long encoding took.
+     */
+    void onEncoded(File file, @Nullable byte[] thumbnail, long durationMs);
+
+    /** The picture couldn't be read or written. */
+    void onEncodeFailed(Uri source, IOException e);
+  }
+
+  /** Hears how loading went. Called on the UI thread. */
+  public interface LoadCallback {
+    /** The picture has been loaded, or couldn't be, in which case the bitmap is null. */
+    void onLoaded(File file, @Nullable Bitmap bitmap);
+  }
+
+  /** We don't lower the quality below this to meet the byte budget. We shrink the picture. */
+  private static final int MIN_QUALITY = 50;
+
+  /** How much we lower the quality by each time the picture is too big. */
+  private static final int QUALITY_STEP = 10;
+
+  /** How much we shrink each side by once the quality is as low as we'll go. */
+  private static final float SHRINK_FACTOR = 0.75f;
+
+  /** We don't shrink the longer side below this, and send what we have if it's still too big. */
+  private static final int MIN_DIMENSION = 320;
+
+  /** The longer side of a thumbnail, in pixels. */
+  private static final int THUMBNAIL_DIMENSION = 160;
+
+  /** The JPEG quality of a thumbnail. It's only on screen until the picture arrives. */
+  private static final int THUMBNAIL_QUALITY = 60;
+
+  /** The largest thumbnail we'll send. It has to fit in a BYTES payload, along with its header. */
+  private static final int MAX_THUMBNAIL_SIZE =
+      ConnectionsClient.MAX_BYTES_DATA_SIZE - FileMessage.HEADER_SIZE;
+
+  private final File mDirectory;
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+  private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+  /** Reused for every picture, so the compressed bytes don't need a new buffer each time. */
+  private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+
+  private final MetricsRegistry.Counter mImagesEncoded =
+      MetricsRegistry.get().counter("image.encoded");
+  private final MetricsRegistry.Counter mBytesSaved =
+      MetricsRegistry.get().counter("image.bytesSaved");
+
+  /**
+   * @param directory Where to write pictures. Created if need be, and anything already in it is
+   *     deleted.
+   */
+  public ImageEncoder(File directory) {
+    mDirectory = directory;
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+              Log.w(TAG, "Failed to create " + mDirectory);
+            }
+            deleteFiles();
+          }
+        });
+  }
+
+  /**
+   * Shrinks a picture in the background.
+   *
+   * @param resolver Resolves the source.
+   * @param source The picture to shrink. Left as it is.
+   * @param profile How big a picture we want.
+   * @param callback Told how it went, on the UI thread.
+   */
+  public void encode(
+      final ContentResolver resolver,
+      final Uri source,
+      final Profile profile,
+      final Callback callback) {
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            long startMs = SystemClock.elapsedRealtime();
+            File file = null;
+            try {
+              file = File.createTempFile("Wt_", ".jpg", mDirectory);
+              final File encoded = file;
+              final byte[] thumbnail = encode(resolver, source, profile, encoded);
+              final long durationMs = SystemClock.elapsedRealtime() - startMs;
+              mUiHandler.post(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      callback.onEncoded(encoded, thumbnail, durationMs);
+                    }
+                  });
+            } catch (final IOException e) {
+              if (file != null && !file.delete()) {
+                Log.w(TAG, "Failed to delete " + file);
+              }
+              mUiHandler.post(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      callback.onEncodeFailed(source, e);
+                    }
+                  });
+            }
+          }
+        });
+  }
+
+  /**
+   * Loads a picture in the background, at no more than the given size. Pictures are loaded in
+   * turn with the ones being encoded.
+   *
+   * @param file The picture.
+   * @param maxDimension The longest the longer side of the bitmap may be, in pixels.
+   * @param callback Given the bitmap, on the UI thread.
+   */
+  public void load(final File file, final int maxDimension, final LoadCallback callback) {
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), options);
+            options.inJustDecodeBounds = false;
+            options.inSampleSize =
+                getSampleSize(Math.max(options.outWidth, options.outHeight), maxDimension);
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+            if (bitmap == null) {
+              Log.w(TAG, "Couldn't decode " + file);
+            } else {
+              bitmap = scale(bitmap, maxDimension);
+            }
+            final Bitmap loaded = bitmap;
+            mUiHandler.post(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    callback.onLoaded(file, loaded);
+                  }
+                });
+          }
+        });
+  }
+
+  /**
+   * Stops taking new pictures, and deletes the ones we've written once those already asked for
+   * are done. Call it once nothing we've written is still being sent.
+   */
+  public void shutdown() {
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            deleteFiles();
+          }
+        });
+    mExecutor.shutdown();
+  }
+
+  /**
+   * Writes a shrunk copy of a picture to a file, returning its thumbnail, or null if it wouldn't
+   * fit in a BYTES payload. Runs on the background thread.
+   */
+  @Nullable
+  private byte[] encode(ContentResolver resolver, Uri source, Profile profile, File destination)
+      throws IOException {
+    // Find out how big the picture is without decoding it.
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    decode(resolver, source, options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      throw new IOException("Couldn't read the size of " + source);
+    }
+    int sourceWidth = options.outWidth;
+    int sourceHeight = options.outHeight;
+    long sourceBytes = getSize(resolver, source);
+
+    // Let the decoder skip pixels we'd only throw away.
+    int maxDimension = profile.getMaxDimension();
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = getSampleSize(Math.max(sourceWidth, sourceHeight), maxDimension);
+    Bitmap bitmap = decode(resolver, source, options);
+    if (bitmap == null) {
+      throw new IOException("Couldn't decode " + source);
+    }
+
+    if (maxDimension > 0) {
+      bitmap = scale(bitmap, maxDimension);
+    }
+    // The orientation is lost when we compress, so turn the pixels instead.
+    bitmap = rotate(bitmap, getRotation(resolver, source));
+
+    // Lower the quality until we're within budget, and then the size.
+    int quality = profile.getQuality();
+    long maxBytes = profile.getMaxBytes();
+    mBuffer.reset();
+    bitmap.compress(Bitmap.CompressFormat.JPEG, quality, mBuffer);
+    while (maxBytes > 0 && mBuffer.size() > maxBytes) {
+      if (quality - QUALITY_STEP >= MIN_QUALITY) {
+        quality -= QUALITY_STEP;
+      } else {
+        int shrunk = (int) (Math.max(bitmap.getWidth(), bitmap.getHeight()) * SHRINK_FACTOR);
+        if (shrunk < MIN_DIMENSION) {
+          break;
+        }
+        bitmap = scale(bitmap, shrunk);
+      }
+      mBuffer.reset();
+      bitmap.compress(Bitmap.CompressFormat.JPEG, quality, mBuffer);
+    }
+
+    FileOutputStream out = new FileOutputStream(destination);
+    try {
+      mBuffer.writeTo(out);
+    } finally {
+      out.close();
+    }
+
+    mImagesEncoded.increment();
+    if (sourceBytes > mBuffer.size()) {
+      mBytesSaved.add(sourceBytes - mBuffer.size());
+    }
+    Log.d(
+        TAG,
+        "Encoded "
+            + source
+            + ": "
+            + sourceWidth
+            + "x"
+            + sourceHeight
+            + ", "
+            + sourceBytes
+            + " bytes -> "
+            + bitmap.getWidth()
+            + "x"
+            + bitmap.getHeight()
+            + ", "
+            + mBuffer.size()
+            + " bytes at quality "
+            + quality);
+
+    // The thumbnail is made from what we've sent, so it matches it.
+    Bitmap thumbnail = scale(bitmap, THUMBNAIL_DIMENSION);
+    mBuffer.reset();
+    thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, mBuffer);
+    thumbnail.recycle();
+    if (mBuffer.size() > MAX_THUMBNAIL_SIZE) {
+      Log.w(TAG, "Thumbnail of " + source + " is too big to send: " + mBuffer.size() + " bytes");
+      return null;
+    }
+    return mBuffer.toByteArray();
+  }
+
+  /**
+   * Returns how many pixels the decoder can skip for each one it keeps. It can only skip by powers
+   * of two, and we don't want to go below the size we're after, so the rest of the scaling is up to
+   * us.
+   */
+  private static int getSampleSize(int longerSide, int maxDimension) {
+    int sampleSize = 1;
+    while (maxDimension > 0 && longerSide / (sampleSize * 2) >= maxDimension) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  private static Bitmap decode(ContentResolver resolver, Uri source, BitmapFactory.Options options)
+      throws IOException {
+    ParcelFileDescriptor pfd = resolver.openFileDescriptor(source, "r");
+    if (pfd == null) {
+      throw new IOException("Couldn't open " + source);
+    }
+    try {
+      return BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor(), null, options);
+    } finally {
+      pfd.close();
+    }
+  }
+
+  private static long getSize(ContentResolver resolver, Uri source) throws IOException {
+    ParcelFileDescriptor pfd = resolver.openFileDescriptor(source, "r");
+    if (pfd == null) {
+      throw new IOException("Couldn't open " + source);
+    }
+    try {
+      return pfd.getStatSize();
+    } finally {
+      pfd.close();
+    }
+  }
+
+  /** Returns how far clockwise the picture should be turned, in degrees. */
+  private static int getRotation(ContentResolver resolver, Uri source) {
+    // Reading the orientation from a stream needs Android N. Before that, pictures are sent as
+    // they're stored.
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+      return 0;
+    }
+    try {
+      InputStream in = resolver.openInputStream(source);
+      if (in == null) {
+        return 0;
+      }
+      try {
+        int orientation =
+            new ExifInterface(in)
+                .getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        switch (orientation) {
+          case ExifInterface.ORIENTATION_ROTATE_90:
+            return 90;
+          case ExifInterface.ORIENTATION_ROTATE_180:
+            return 180;
+          case ExifInterface.ORIENTATION_ROTATE_270:
+            return 270;
+          default:
+            return 0;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Couldn't read the orientation of " + source, e);
+      return 0;
+    }
+  }
+
+  /** Scales a bitmap down so its longer side is at most the given size, recycling the original. */
+  private static Bitmap scale(Bitmap bitmap, int maxDimension) {
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    int longerSide = Math.max(width, height);
+    if (longerSide <= maxDimension) {
+      return bitmap;
+    }
+    int scaledWidth = Math.max(1, (int) ((long) width * maxDimension / longerSide));
+    int scaledHeight = Math.max(1, (int) ((long) height * maxDimension / longerSide));
+    Bitmap scaled = Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true);
+    if (scaled != bitmap) {
+      bitmap.recycle();
+    }
+    return scaled;
+  }
+
+  /** Turns a bitmap clockwise by the given number of degrees, recycling the original. */
+  private static Bitmap rotate(Bitmap bitmap, int degrees) {
+    if (degrees == 0) {
+      return bitmap;
+    }
+    Matrix matrix = new Matrix();
+    matrix.postRotate(degrees);
+    Bitmap rotated =
+        Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    if (rotated != bitmap) {
+      bitmap.recycle();
+    }
+    return rotated;
+  }
+
+  /** Deletes every file in our directory. Runs on the background thread. */
+  private void deleteFiles() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (!file.delete()) {
+        Log.w(TAG, "Failed to delete " + file);
+      }
+    }
+  }
+}
@@ -0,0 +1,416 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.Arrays;
+
+/**
+ * Smooths out bursts and stalls on the link between the thread reading frames off the network and
+ * the thread writing them to an {@link android.media.AudioTrack}.
+ *
+ * <p>Frames are stored by sequence number. Playback doesn't start until enough audio is buffered to
+ * ride out the arrival jitter we've measured so far, and that target grows after every underrun and
+ * shrinks again once the link settles. Frames that turn up after their turn to play has passed are
+ * dropped. Delay we no longer need is shed while the talker is quiet, by skipping silence, so the
+ * start of a talk spurt that arrives in a burst isn't chopped up to catch up.
+ *
+ * <p>A talker who goes quiet sends the occasional silence marker instead of audio. After one of
+ * those plays, missing frames are played as silence rather than counted as lost, and running out of
+ * frames isn't an underrun, until real audio turns up again.
+ *
+ * <p>The stream carries one talk spurt after another. Once {@link #endTalkSpurt()} is called, we
+ * play out what we hold and then go idle, without counting an underrun, and the next spurt buffers
+ * up from scratch. The gap between spurts isn't counted as jitter.
+ *
+ * <p>All storage is allocated up front, so {@link #put(int, short[], int, int, long, boolean)} and
+ * {@link #take(short[], int)} don't allocate. One thread may put while another takes.
+ */
+public class JitterBuffer {
+  /** Returned by {@link #take(short[], int)} when there is nothing to play yet. */
+  public static final int EMPTY = 0;
+
+  /** Returned by {@link #take(short[], int)} when the next frame never arrived. */
+  public static final int LOST = -1;
+
+  /** How many frames we can hold. Must be a power of 2. */
+  private static final int CAPACITY = 64;
+
+  /** The shortest playout delay we'll run at, in frames. */
+  private static final int MIN_DEPTH = 2;
+
+  /** The longest playout delay we'll run at, in frames. */
+  private static final int MAX_DEPTH = CAPACITY / 2;
+
+  /** How many mean deviations of jitter the playout delay should cover. */
+  private static final int JITTER_MULTIPLIER = 3;
+
+  /** How far past the target we'll let the buffer grow before skipping silence to catch up. */
+  private static final int SHRINK_MARGIN = 2;
+
+  /** How many frames must play without an underrun before we ease the playout delay back down. */
+  private static final int DECAY_FRAMES = 250;
+
+  /** Returned by {@link #reserve(int, long, boolean)} when a frame arrived too late to play. */
+  private static final int LATE = -1;
+
+  /** Returned by {@link #reserve(int, long, boolean)} when we already hold the frame. */
+  private static final int DUPLICATE = -2;
+
+  /** How long each frame plays for. */
+  private final int mFrameDurationMs;
+
+  private final short[][] mFrames = new short[CAPACITY][AudioBuffer.MAX_FRAME_SAMPLES];
+  private final int[] mLengths = new int[CAPACITY];
+  private final int[] mSeqs = new int[CAPACITY];
+  private final boolean[] mPresent = new boolean[CAPACITY];
+  private final boolean[] mSilent = new boolean[CAPACITY];
+
+  /** The number of frames currently held. */
+  private int mCount;
+
+  /** True once the first frame has arrived. */
+  private boolean mStarted;
+
+  /** True while we're playing. False while we're (re)building the buffer. */
+  private boolean mPlaying;
+
+  /** True once the caller has told us no more frames are coming. */
+  private boolean mFinished;
+
+  /** The sequence number of the next frame to play. */
+  private int mNextSeq;
+
+  /** The sequence number of the frame {@link #take(short[], int)} last played or gave up on. */
+  private int mLastTakenSeq;
+
+  /** The highest sequence number we've been given. */
+  private int mHighestSeq;
+
+  /** True once the talker has let go. We play out what we hold and then go idle. */
+  private boolean mSpurtEnding;
+
+  /** True while the talker is quiet, from a silence marker until the next frame of audio. */
+  private boolean mInSilence;
+
+  /** The length of the frames of silence we play while the talker is quiet. */
+  private int mSilenceSamples;
+
+  /** The last frame we measured jitter against. */
+  private boolean mHasLastArrival;
+  private int mLastSeq;
+  private long mLastArrivalMs;
+
+  /** Smoothed mean deviation of frame arrival times, as in RFC 3550. */
+  private float mJitterMs;
+
+  /** Extra delay we've added after underruns. Decays as frames play without trouble. */
+  private int mFloorDepth = MIN_DEPTH;
+  private int mFramesSinceUnderrun;
+
+  /** The playout delay we're aiming for, in frames. */
+  private int mTargetDepth = MIN_DEPTH;
+
+  private long mUnderruns;
+  private long mLostFrames;
+  private long mSilentFrames;
+  private long mLateDrops;
+  private long mDiscards;
+
+  /**
+   * Creates an empty buffer.
+   *
+   * @param frameDurationMs How long each frame plays for.
+   */
+  public JitterBuffer(int frameDurationMs) {
+    mFrameDurationMs = frameDurationMs;
+  }
+
+  /**
+   * Adds a frame.
+   *
+   * @param seq The frame's sequence number. Consecutive frames must have consecutive numbers.
+   * @param pcm The frame's samples.
+   * @param offset The first sample.
+   * @param samples The number of samples. At most {@link AudioBuffer#MAX_FRAME_SAMPLES}.
+   * @param arrivalMs When the frame arrived, on any monotonic millisecond clock.
+   * @param backlog True if the sender held the frame back on purpose, as with pre-roll, so its
+   *     arrival time says nothing about the network.
+   * @return False if the frame was dropped because it arrived too late to be played.
+   */
+  public synchronized boolean put(
+      int seq, short[] pcm, int offset, int samples, long arrivalMs, boolean backlog) {
+    int slot = reserve(seq, arrivalMs, backlog);
+    if (slot < 0) {
+      return slot == DUPLICATE;
+    }
+    System.arraycopy(pcm, offset, mFrames[slot], 0, samples);
+    mLengths[slot] = samples;
+    mSilent[slot] = false;
+    return true;
+  }
+
+  /**
+   * Adds a marker saying the talker has gone quiet. It plays as a frame of silence, as does every
+   * missing frame after it until the next real one.
+   *
+   * @param seq The marker's sequence number.
+   * @param samples The length of each frame of silence.
+   * @param arrivalMs When the marker arrived, on the same clock as {@link #put}.
+   * @param backlog True if the sender held the marker back on purpose, as with pre-roll.
+   * @return False if the marker was dropped because it arrived too late to be played.
+   */
+  public synchronized boolean putSilence(int seq, int samples, long arrivalMs, boolean backlog) {
+    int slot = reserve(seq, arrivalMs, backlog);
+    if (slot < 0) {
+      return slot == DUPLICATE;
+    }
+    mLengths[slot] = samples;
+    mSilent[slot] = true;
+    return true;
+  }
+
+  /**
+   * Makes room for a frame and marks it present.
+   *
+   * @return The frame's slot, {@link #LATE} or {@link #DUPLICATE}.
+   */
+  private int reserve(int seq, long arrivalMs, boolean backlog) {
+    if (!backlog) {
+      updateJitter(seq, arrivalMs);
+    }
+
+    if (!mStarted) {
+      mStarted = true;
+      mNextSeq = seq;
+      mHighestSeq = seq;
+    }
+
+    int ahead = seq - mNextSeq;
+    if (ahead < 0) {
+      mLateDrops++;
+      return LATE;
+    }
+
+    // If the frame is too far ahead to fit, give up on the oldest frames to make room.
+    if (ahead >= CAPACITY) {
+      int skip = Math.min(ahead - CAPACITY + 1, CAPACITY);
+      for (int i = 0; i < skip; i++) {
+        discard(mNextSeq + i);
+      }
+      mNextSeq = seq - CAPACITY + 1;
+    }
+
+    int slot = seq & (CAPACITY - 1);
+    if (mPresent[slot]) {
+      return DUPLICATE;
+    }
+    mSeqs[slot] = seq;
+    mPresent[slot] = true;
+    mCount++;
+
+    if (seq - mHighestSeq > 0) {
+      mHighestSeq = seq;
+    }
+    return slot;
+  }
+
+  /**
+   * Takes the next frame to play.
+   *
+   * @param out Where to write the frame's samples. Must fit {@link AudioBuffer#MAX_FRAME_SAMPLES}.
+   * @param offset The first sample to write to.
+   * @return The number of samples written, {@link #LOST} if the next frame is missing but later ones
+   *     are here, or {@link #EMPTY} if we're waiting for frames to arrive. Either way, the caller
+   *     should play a frame's worth of something else before calling again.
+   */
+  public synchronized int take(short[] out, int offset) {
+    if (!mPlaying) {
+      if (mCount == 0 || (!mFinished && !mSpurtEnding && getDepth() < mTargetDepth)) {
+        return EMPTY;
+      }
+      mPlaying = true;
+    }
+
+    if (mCount == 0) {
+      if (mSpurtEnding) {
+        // The talker let go and we've played everything they said. Wait for the next spurt.
+        mSpurtEnding = false;
+        mPlaying = false;
+        mStarted = false;
+        mInSilence = false;
+        return EMPTY;
+      }
+      if (mInSilence && !mFinished) {
+        // The talker is quiet, so there's nothing to wait for. Keep time with them.
+        mLastTakenSeq = mNextSeq++;
+        return playSilence(out, offset);
+      }
+      mPlaying = false;
+      if (!mFinished) {
+        onUnderrun();
+      }
+      return EMPTY;
+    }
+
+    // If we've built up more delay than we need, catch up. Skipping silence goes unnoticed, so do
+    // it then. While the talker is talking, only skip audio once the delay is out of hand.
+    if (mInSilence) {
+      while (getDepth() > mTargetDepth + SHRINK_MARGIN && !holdsAudio(mNextSeq)) {
+        discard(mNextSeq++);
+      }
+    } else if (getDepth() > MAX_DEPTH) {
+      discard(mNextSeq++);
+    }
+
+    int seq = mNextSeq++;
+    mLastTakenSeq = seq;
+    int slot = seq & (CAPACITY - 1);
+    if (++mFramesSinceUnderrun >= DECAY_FRAMES) {
+      mFramesSinceUnderrun = 0;
+      if (mFloorDepth > MIN_DEPTH) {
+        mFloorDepth--;
+        updateTargetDepth();
+      }
+    }
+
+    if (!mPresent[slot] || mSeqs[slot] != seq) {
+      if (mInSilence) {
+        return playSilence(out, offset);
+      }
+      mLostFrames++;
+      return LOST;
+    }
+    int samples = mLengths[slot];
+    mPresent[slot] = false;
+    mCount--;
+    if (mSilent[slot]) {
+      mInSilence = true;
+      mSilenceSamples = samples;
+      return playSilence(out, offset);
+    }
+    mInSilence = false;
+    System.arraycopy(mFrames[slot], 0, out, offset, samples);
+    return samples;
+  }
+
+  private int playSilence(short[] out, int offset) {
+    Arrays.fill(out, offset, offset + mSilenceSamples, (short) 0);
+    mSilentFrames++;
+    return mSilenceSamples;
+  }
+
+  /**
+   * Tells the buffer a new talk spurt is starting. Call before adding its first frame. The time
+   * since the last spurt isn't counted as jitter.
+   */
+  public synchronized void startTalkSpurt() {
+    mSpurtEnding = false;
+    mHasLastArrival = false;
+  }
+
+  /**
+   * Tells the buffer the talker has let go, so whatever is left should be played out without
+   * waiting for more. Running dry after that isn't an underrun.
+   */
+  public synchronized void endTalkSpurt() {
+    mSpurtEnding = true;
+  }
+
+  /** Tells the buffer no more frames are coming, so whatever is left should be played out. */
+  public synchronized void finish() {
+    mFinished = true;
+  }
+
+  /** Returns true once {@link #finish()} has been called and every frame has been taken. */
+  public synchronized boolean isDrained() {
+    return mFinished && mCount == 0;
+  }
+
+  /**
+   * Returns the sequence number of the frame the last call to {@link #take(short[], int)} played,
+   * concealed or played silence for. Meaningless if it returned {@link #EMPTY}.
+   */
+  public synchronized int getLastTakenSeq() {
+    return mLastTakenSeq;
+  }
+
+  /** Returns how many frames of audio are buffered ahead of playback, counting gaps. */
+  public synchronized int getDepth() {
+    return mCount == 0 ? 0 : mHighestSeq - mNextSeq + 1;
+  }
+
+  /** Returns the playout delay we're currently aiming for, in frames. */
+  public synchronized int getTargetDepth() {
+    return mTargetDepth;
+  }
+
+  /** Returns the smoothed arrival jitter, in milliseconds. */
+  public synchronized float getJitterMillis() {
+    return mJitterMs;
+  }
+
+  /** Returns how many times playback ran dry and had to rebuffer. */
+  public synchronized long getUnderruns() {
+    return mUnderruns;
+  }
+
+  /** Returns how many frames were missing when their turn came to play. */
+  public synchronized long getLostFrames() {
+    return mLostFrames;
+  }
+
+  /** Returns how many frames were played as silence because the talker was quiet. */
+  public synchronized long getSilentFrames() {
+    return mSilentFrames;
+  }
+
+  /** Returns how many frames arrived after their turn to play and were dropped. */
+  public synchronized long getLateDrops() {
+    return mLateDrops;
+  }
+
+  /** Returns how many buffered frames were thrown away to bring the delay back down. */
+  public synchronized long getDiscards() {
+    return mDiscards;
+  }
+
+  /** Returns true if we hold a frame of real audio, rather than silence, for the given number. */
+  private boolean holdsAudio(int seq) {
+    int slot = seq & (CAPACITY - 1);
+    return mPresent[slot] && mSeqs[slot] == seq && !mSilent[slot];
+  }
+
+  private void discard(int seq) {
+    int slot = seq & (CAPACITY - 1);
+    if (mPresent[slot] && mSeqs[slot] == seq) {
+      mPresent[slot] = false;
+      mCount--;
+      mDiscards++;
+    }
+  }
+
+  private void onUnderrun() {
+    mUnderruns++;
+    mFramesSinceUnderrun = 0;
+    mFloorDepth = Math.min(MAX_DEPTH, mTargetDepth + 1);
+    updateTargetDepth();
+  }
+
+  private void updateJitter(int seq, long arrivalMs) {
+    if (mHasLastArrival) {
+      // How much later (or earlier) this frame arrived than it would have on a perfect link.
+      long expectedMs = (long) (seq - mLastSeq) * mFrameDurationMs;
+      float deviation = Math.abs((arrivalMs - mLastArrivalMs) - expectedMs);
+      mJitterMs += (deviation - mJitterMs) / 16;
+    }
+    if (!mHasLastArrival || seq - mLastSeq > 0) {
+      mHasLastArrival = true;
+      mLastSeq = seq;
+      mLastArrivalMs = arrivalMs;
+    }
+    updateTargetDepth();
+  }
+
+  private void updateTargetDepth() {
+    int jitterDepth = MIN_DEPTH + (int) Math.ceil(JITTER_MULTIPLIER * mJitterMs / mFrameDurationMs);
+    mTargetDepth = Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, Math.max(jitterDepth, mFloorDepth)));
+  }
+}
@@ -0,0 +1,134 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.util.Log;
+
+/**
+ * Measures mouth-to-ear delay on one incoming stream: how long after the talker's microphone
+ * recorded a frame it comes out of our speaker. Every {@link AudioFrame} carries the time it was
+ * recorded, and {@link AudioPlayer} tells us when each one is played. Delays are collected into a
+ * {@link Histogram} per transmission (talk spurt), whose percentiles are logged as it ends, and
+ * into one for the whole stream.
+ *
+ * <p>The talker's clock isn't ours. If the offset between them is known, as when a loopback plays
+ * our own recording back, pass it to {@link #LatencyMonitor(long)}. Otherwise we treat the fastest
+ * frame to arrive as having taken no time at all, so delays are measured from the best the link
+ * has managed rather than from the microphone.
+ *
+ * <p>Recording a delay doesn't allocate. Safe to use from the reader and playback threads at once.
+ */
+public class LatencyMonitor {
+  /** The longest delay we tell apart from longer ones, in ms. */
+  private static final int MAX_LATENCY_MS = 2000;
+
+  /** How finely we measure delay, in ms. */
+  private static final int RESOLUTION_MS = 2;
+
+  /** True if we know the offset between the talker's clock and ours. */
+  private final boolean mHasClockOffset;
+
+  /** The talker's clock minus ours, in ms, when known. */
+  private final long mClockOffsetMs;
+
+  /** The least time a frame has taken to reach us, by our clock minus theirs. */
+  private int mMinTransitMs;
+
+  /** True once {@link #mMinTransitMs} has been measured. */
+  private boolean mHasTransit;
+
+  private final MetricsRegistry.Distribution mMouthToEar =
+      MetricsRegistry.get().distribution("audio.mouthToEarMs");
+
+  private final Histogram mTransmission = new Histogram(MAX_LATENCY_MS, RESOLUTION_MS);
+  private final Histogram mSession = new Histogram(MAX_LATENCY_MS, RESOLUTION_MS);
+  private long mTransmissions;
+
+  /** Creates a monitor for a talker whose clock we know nothing about. */
+  public LatencyMonitor() {
+    mHasClockOffset = false;
+    mClockOffsetMs = 0;
+  }
+
+  /**
+   * Creates a monitor for a talker whose clock is a known distance from ours.
+   *
+   * @param clockOffsetMs The talker's clock minus ours, in ms. Zero if we share a clock.
+   */
+  public LatencyMonitor(long clockOffsetMs) {
+    mHasClockOffset = true;
+    mClockOffsetMs = clockOffsetMs;
+  }
+
+  /**
+   * Called as a frame of audio arrives.
+   *
+   * @param captureMs When the frame was recorded, as carried in its header.
+   * @param arrivalMs When it arrived, on the {@link android.os.SystemClock#elapsedRealtime()}
+   *     clock.
+   */
+  public synchronized void onArrival(int captureMs, long arrivalMs) {
+    // Timestamps are the low 32 bits of each clock, so subtract with wraparound.
+    int transitMs = (int) arrivalMs - captureMs;
+    if (!mHasTransit || transitMs < mMinTransitMs) {
+      mHasTransit = true;
+      mMinTransitMs = transitMs;
+    }
+  }
+
+  /**
+   * Called as a frame of audio is played.
+   *
+   * @param captureMs When the frame was recorded, as carried in its header.
+   * @param playoutMs When it will be heard, on the {@link android.os.SystemClock#elapsedRealtime()}
+   *     clock.
+   */
+  public synchronized void onPlayout(int captureMs, long playoutMs) {
+    long offsetMs;
+    if (mHasClockOffset) {
+      offsetMs = -mClockOffsetMs;
+    } else if (mHasTransit) {
+      offsetMs = mMinTransitMs;
+    } else {
+      return;
+    }
+    long latencyMs = ((int) playoutMs - captureMs) - offsetMs;
+    mTransmission.add(latencyMs);
+    mMouthToEar.record(latencyMs);
+  }
+
+  /** Called once a transmission has played out. Logs its delays and starts on the next one. */
+  public synchronized void onTransmissionEnd() {
+    if (mTransmission.getCount() == 0) {
+      return;
+    }
+    mTransmissions++;
+    Log.d(
+        TAG,
+        "Mouth to ear, transmission "
+            + mTransmissions
+            + ": frames="
+            + mTransmission.getCount()
+            + ", p50="
+            + mTransmission.getPercentile(50)
+            + "ms, p95="
+            + mTransmission.getPercentile(95)
+            + "ms, p99="
+            + mTransmission.getPercentile(99)
+            + "ms, max="
+            + mTransmission.getMax()
+            + "ms");
+    mSession.addAll(mTransmission);
+    mTransmission.reset();
+  }
+
+  /** Returns how many transmissions have played out. */
+  public synchronized long getTransmissions() {
+    return mTransmissions;
+  }
+
+  /** Returns a percentile of the delay over every transmission that has played out, in ms. */
+  public synchronized long getPercentileMillis(double percentile) {
+    return mSession.getPercentile(percentile);
+  }
+}
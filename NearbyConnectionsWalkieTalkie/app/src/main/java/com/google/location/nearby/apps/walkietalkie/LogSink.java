@@ -0,0 +1,219 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.SpannableStringBuilder;
+import android.text.format.DateFormat;
+import android.text.style.ForegroundColorSpan;
+import android.util.Log;
+import android.widget.TextView;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Shows the most recent log messages in a {@link TextView}, without letting the log grow forever
+ * or tying up the UI thread.
+ *
+ * <p>Messages go into a fixed size ring, and the oldest is forgotten once it's full. Adding one
+ * only stores it. A background thread turns the ring into colored text, at most a few times a
+ * second however fast messages arrive, and the UI thread just swaps the finished text into the
+ * view. Memory stays the same however long the app runs: the ring holds {@link #CAPACITY}
+ * messages of at most {@link #MAX_MESSAGE_LENGTH} characters, and the view holds one copy of them.
+ *
+ * <p>With {@link #dumpMetricsEvery(long)}, the background thread also adds what the {@link
+ * MetricsRegistry} has counted every so often.
+ *
+ * <p>Safe to add messages from any thread.
+ */
+public class LogSink {
+  /** How many messages we keep. */
+  static final int CAPACITY = 200;
+
+  /** Longer messages are cut short. */
+  static final int MAX_MESSAGE_LENGTH = 300;
+
+  /** The least time between refreshes of the view, in ms. */
+  private static final long REFRESH_INTERVAL_MS = 250;
+
+  /** The view we show messages in. Only touched on the UI thread. */
+  private final TextView mView;
+
+  private final int mVerboseColor;
+  private final int mDebugColor;
+  private final int mWarningColor;
+  private final int mErrorColor;
+
+  /** The messages, oldest first from {@link #mNext} - {@link #mCount}. Guarded by {@code this}. */
+  private final String[] mMessages = new String[CAPACITY];
+
+  private final int[] mLevels = new int[CAPACITY];
+  private final long[] mTimes = new long[CAPACITY];
+  private int mNext;
+  private int mCount;
+
+  /** True while a refresh is waiting to run. Guarded by {@code this}. */
+  private boolean mRefreshPending;
+
+  /** When the view was last refreshed, on the {@link SystemClock#uptimeMillis()} clock. */
+  private long mLastRefreshMs;
+
+  private final HandlerThread mThread = new HandlerThread("LogSink");
+  private final Handler mFormatHandler;
+  private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+  /** How often to dump the metrics, in ms. */
+  private volatile long mMetricsIntervalMs;
+
+  /** The metrics as last dumped. Only used on the background thread. */
+  private final Set<String> mDumpedMetrics = new HashSet<>();
+
+  private final Runnable mDumpMetrics =
+      new Runnable() {
+        @Override
+        public void run() {
+          dumpMetrics();
+          mFormatHandler.postDelayed(this, mMetricsIntervalMs);
+        }
+      };
+
+  private final Runnable mFormat =
+      new Runnable() {
+        @Override
+        public void run() {
+          final CharSequence text = format();
+          mUiHandler.post(
+              new Runnable() {
+                @Override
+                public void run() {
+                  mView.setText(text);
+                }
+              });
+        }
+      };
+
+  /**
+   * Creates a sink and starts its background thread. Call {@link #release()} when done with it.
+   *
+   * @param view The view to show messages in.
+   * @param verboseColor The color of {@link Log#VERBOSE} messages.
+   * @param debugColor The color of {@link Log#DEBUG} messages.
+   * @param warningColor The color of {@link Log#WARN} messages.
+   * @param errorColor The color of {@link Log#ERROR} messages.
+   */
+  public LogSink(
+      TextView view, int verboseColor, int debugColor, int warningColor, int errorColor) {
+    mView = view;
+    mVerboseColor = verboseColor;
+    mDebugColor = debugColor;
+    mWarningColor = warningColor;
+    mErrorColor = errorColor;
+    mThread.start();
+    mFormatHandler = new Handler(mThread.getLooper());
+  }
+
+  /**
+   * Adds a message. The view catches up shortly.
+   *
+   * @param level One of {@link Log#VERBOSE}, {@link Log#DEBUG}, {@link Log#WARN} or {@link
+   *     Log#ERROR}.
+   * @param msg The message.
+   */
+  public void add(int level, String msg) {
+    if (msg.length() > MAX_MESSAGE_LENGTH) {
+      msg = msg.substring(0, MAX_MESSAGE_LENGTH);
+    }
+    long delayMs;
+    synchronized (this) {
+      mMessages[mNext] = msg;
+      mLevels[mNext] = level;
+      mTimes[mNext] = System.currentTimeMillis();
+      mNext = (mNext + 1) % CAPACITY;
+      mCount = Math.min(mCount + 1, CAPACITY);
+      if (mRefreshPending) {
+        return;
+      }
+      mRefreshPending = true;
+      delayMs = Math.max(0, mLastRefreshMs + REFRESH_INTERVAL_MS - SystemClock.uptimeMillis());
+    }
+    mFormatHandler.postDelayed(mFormat, delayMs);
+  }
+
+  /**
+   * Adds the app's metrics to the log every so often, one {@link Log#VERBOSE} message per metric.
+   * Only metrics that have changed since the last time are added, so they don't push everything
+   * else out of the log while the app is idle.
+   *
+   * @param intervalMs How often to add them, in ms.
+   */
+  public void dumpMetricsEvery(long intervalMs) {
+    mMetricsIntervalMs = intervalMs;
+    mFormatHandler.removeCallbacks(mDumpMetrics);
+    mFormatHandler.postDelayed(mDumpMetrics, intervalMs);
+  }
+
+  /** Stops the background thread. Messages added afterwards aren't shown. */
+  public void release() {
+    mFormatHandler.removeCallbacks(mFormat);
+    mFormatHandler.removeCallbacks(mDumpMetrics);
+    mThread.quit();
+  }
+
+  /** Adds the metrics that have changed since the last dump. Runs on the background thread. */
+  private void dumpMetrics() {
+    List<String> lines = MetricsRegistry.get().snapshot().format();
+    for (String line : lines) {
+      if (!mDumpedMetrics.contains(line)) {
+        add(Log.VERBOSE, line);
+      }
+    }
+    mDumpedMetrics.clear();
+    mDumpedMetrics.addAll(lines);
+  }
+
+  /** Turns the ring into text for the view. Runs on the background thread. */
+  private CharSequence format() {
+    String[] messages = new String[CAPACITY];
+    int[] levels = new int[CAPACITY];
+    long[] times = new long[CAPACITY];
+    int count;
+    synchronized (this) {
+      mRefreshPending = false;
+      mLastRefreshMs = SystemClock.uptimeMillis();
+      count = mCount;
+      int slot = (mNext - mCount + CAPACITY) % CAPACITY;
+      for (int i = 0; i < count; i++) {
+        messages[i] = mMessages[slot];
+        levels[i] = mLevels[slot];
+        times[i] = mTimes[slot];
+        slot = (slot + 1) % CAPACITY;
+      }
+    }
+
+    SpannableStringBuilder text = new SpannableStringBuilder();
+    for (int i = 0; i < count; i++) {
+      text.append('\n');
+      text.append(DateFormat.format("hh:mm", times[i]));
+      text.append(": ");
+      int start = text.length();
+      text.append(messages[i]);
+      text.setSpan(new ForegroundColorSpan(getColor(levels[i])), start, text.length(), 0);
+    }
+    return text;
+  }
+
+  private int getColor(int level) {
+    switch (level) {
+      case Log.VERBOSE:
+        return mVerboseColor;
+      case Log.WARN:
+        return mWarningColor;
+      case Log.ERROR:
+        return mErrorColor;
+      default:
+        return mDebugColor;
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what the app is doing, so the connection, payload and audio paths can report on
+ * themselves without building log strings for every event. Each metric is registered once by
+ * name, and updating it afterwards is a lock-free increment or store that doesn't allocate. Only
+ * {@link #snapshot()}, which the UI or an exporter polls every so often, copies and formats
+ * anything.
+ *
+ * <p>There are three kinds of metric. A {@link Counter} only goes up, a {@link Gauge} holds the
+ * latest value of something, and a {@link Distribution} keeps a {@link Histogram} of values.
+ * Asking for a name that's already registered returns the existing metric, so code that reports
+ * the same thing from several places shares it. Safe to use from any thread.
+ */
+public class MetricsRegistry {
+  /** The longest value a {@link Distribution} tells apart from longer ones. */
+  private static final int MAX_DISTRIBUTION_VALUE = 2000;
+
+  /** How finely a {@link Distribution} measures. */
+  private static final int DISTRIBUTION_RESOLUTION = 2;
+
+  private static final MetricsRegistry sInstance = new MetricsRegistry();
+
+  /** Guards registration. Updating a registered metric doesn't need it. */
+  private final Object mLock = new Object();
+
+  private final Map<String, Counter> mCounters = new LinkedHashMap<>();
+  private final Map<String, Gauge> mGauges = new LinkedHashMap<>();
+  private final Map<String, Distribution> mDistributions = new LinkedHashMap<>();
+
+  /** Returns the registry the whole app reports to. */
+  public static MetricsRegistry get() {
+    return sInstance;
+  }
+
+  /** Returns the counter with the given name, registering it if this is the first time. */
+  public Counter counter(String name) {
+    synchronized (mLock) {
+      Counter counter = mCounters.get(name);
+      if (counter == null) {
+        counter = new Counter();
+        mCounters.put(name, counter);
+      }
+      return counter;
+    }
+  }
+
+  /** Returns the gauge with the given name, registering it if this is the first time. */
+  public Gauge gauge(String name) {
+    synchronized (mLock) {
+      Gauge gauge = mGauges.get(name);
+      if (gauge == null) {
+        gauge = new Gauge();
+        mGauges.put(name, gauge);
+      }
+      return gauge;
+    }
+  }
+
+  /** Returns the distribution with the given name, registering it if this is the first time. */
+  public Distribution distribution(String name) {
+    synchronized (mLock) {
+      Distribution distribution = mDistributions.get(name);
+      if (distribution == null) {
+        distribution = new Distribution();
+        mDistributions.put(name, distribution);
+      }
+      return distribution;
+    }
+  }
+
+  /**
+   * Unregisters the metric with the given name, whatever kind it is. Anyone still holding it can
+   * keep updating it, but it's left out of snapshots, and asking for the name again registers a new
+   * one.
+   */
+  public void remove(String name) {
+    synchronized (mLock) {
+      mCounters.remove(name);
+      mGauges.remove(name);
+      mDistributions.remove(name);
+    }
+  }
+
+  /** Copies the current value of every metric. */
+  public Snapshot snapshot() {
+    Snapshot snapshot = new Snapshot();
+    synchronized (mLock) {
+      for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+        snapshot.mValues.put(entry.getKey(), entry.getValue().get());
+      }
+      for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+        snapshot.mValues.put(entry.getKey(), entry.getValue().get());
+      }
+      for (Map.Entry<String, Distribution> entry : mDistributions.entrySet()) {
+        snapshot.mHistograms.put(entry.getKey(), entry.getValue().copy());
+      }
+    }
+    return snapshot;
+  }
+
+  /** A count that only goes up. */
+  public static class Counter {
+    private final AtomicLong mValue = new AtomicLong();
+
+    private Counter() {}
+
+    /** Adds one. */
+    public void increment() {
+      mValue.incrementAndGet();
+    }
+
+    /** Adds the given amount. */
+    public void add(long delta) {
+      mValue.addAndGet(delta);
+    }
+
+    /** Returns the count. */
+    public long get() {
+      return mValue.get();
+    }
+  }
+
+  /** The latest value of something. */
+  public static class Gauge {
+    private volatile long mValue;
+
+    private Gauge() {}
+
+    /** Replaces the value. */
+    public void set(long value) {
+      mValue = value;
+    }
+
+    /** Returns the value. */
+    public long get() {
+      return mValue;
+    }
+  }
+
+  /** A histogram of values, such as delays in ms. */
+  public static class Distribution {
+    private final Histogram mHistogram =
+        new Histogram(MAX_DISTRIBUTION_VALUE, DISTRIBUTION_RESOLUTION);
+
+    private Distribution() {}
+
+    /** Counts a value. */
+    public synchronized void record(long value) {
+      mHistogram.add(value);
+    }
+
+    private synchronized Histogram copy() {
+      Histogram copy = new Histogram(MAX_DISTRIBUTION_VALUE, DISTRIBUTION_RESOLUTION);
+      copy.addAll(mHistogram);
+      return copy;
+    }
+  }
+
+  /** The value of every metric at one moment. */
+  public static class Snapshot {
+    private final Map<String, Long> mValues = new LinkedHashMap<>();
+    private final Map<String, Histogram> mHistograms = new LinkedHashMap<>();
+    private final long mTimestampMs = SystemClock.elapsedRealtime();
+
+    private Snapshot() {}
+
+    /** Returns when the snapshot was taken, on the {@link SystemClock#elapsedRealtime()} clock. */
+    public long getTimestampMillis() {
+      return mTimestampMs;
+    }
+
+    /** Returns the value of a counter or gauge, or 0 if there's none by that name. */
+    public long getValue(String name) {
+      Long value = mValues.get(name);
+      return value == null ? 0 : value;
+    }
+
+    /** Returns a copy of a distribution's histogram, or null if there's none by that name. */
+    public Histogram getHistogram(String name) {
+      return mHistograms.get(name);
+    }
+
+    /** Returns one line per metric, in the order they were registered. */
+    public List<String> format() {
+      List<String> lines = new ArrayList<>();
+      for (Map.Entry<String, Long> entry : mValues.entrySet()) {
+        lines.add(entry.getKey() + "=" + entry.getValue());
+      }
+      for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+        Histogram histogram = entry.getValue();
+        lines.add(
+            entry.getKey()
+                + ": n="
+                + histogram.getCount()
+                + ", p50="
+                + histogram.getPercentile(50)
+                + ", p95="
+                + histogram.getPercentile(95)
+                + ", p99="
+                + histogram.getPercentile(99)
+                + ", max="
+                + histogram.getMax());
+      }
+      return lines;
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * Makes up audio to play in place of frames that never arrived, so a lost frame sounds like a
+ * slightly stretched vowel rather than a click followed by a gap.
+ *
+ * <p>We keep the last few frames that really played. When one goes missing, we find the pitch
+ * period of the audio just before the gap by autocorrelation and keep repeating that last period,
+ * fading it out over a few frames so a long gap ends in silence rather than a drone. When real audio
+ * comes back, its first few milliseconds are cross-faded with the made up audio to hide the seam.
+ *
+ * <p>Each stream needs its own concealer. It allocates its buffers up front and is not thread safe.
+ */
+public class PacketLossConcealer {
+  /** The shortest pitch period we look for, in milliseconds. About 400 Hz. */
+  private static final float MIN_PERIOD_MS = 2.5f;
+
+  /** The longest pitch period we look for, in milliseconds. About 67 Hz. */
+  private static final float MAX_PERIOD_MS = 15f;
+
+  /** How long a made up signal takes to fade to silence, in milliseconds. */
+  private static final float FADE_MS = 60f;
+
+  /** How long we cross-fade back into real audio, in milliseconds. */
+  private static final float CROSSFADE_MS = 5f;
+
+  /** How long each frame plays for. */
+  private final int mFrameDurationMs;
+
+  /** The most recent samples that really played, oldest first. */
+  private final short[] mHistory = new short[2 * AudioBuffer.MAX_FRAME_SAMPLES];
+
+  /** How many samples of {@link #mHistory} are filled, counting back from its end. */
+  private int mHistoryLength;
+
+  /** The number of samples in a millisecond, going by the last frame that played. */
+  private float mSamplesPerMs;
+
+  /** The pitch period we're repeating, while concealing. Zero if we aren't concealing. */
+  private int mPeriod;
+
+  /** How far into the repeated period the next made up sample is. */
+  private int mPhase;
+
+  /** How many samples we've made up since the gap started. */
+  private int mConcealedSamples;
+
+  private long mConcealedFrames;
+
+  /**
+   * Creates a concealer.
+   *
+   * @param frameDurationMs How long each frame plays for.
+   */
+  public PacketLossConcealer(int frameDurationMs) {
+    mFrameDurationMs = frameDurationMs;
+  }
+
+  /**
+   * Tells the concealer about a frame that's about to play. If we were concealing a gap, the start
+   * of the frame is cross-faded from the made up audio, in place.
+   *
+   * @param pcm The frame's samples.
+   * @param offset The first sample.
+   * @param samples The number of samples.
+   */
+  public void onFrame(short[] pcm, int offset, int samples) {
+    if (samples <= 0) {
+      return;
+    }
+    if (mPeriod > 0) {
+      int crossfade = Math.min(samples, Math.round(CROSSFADE_MS * mSamplesPerMs));
+      for (int i = 0; i < crossfade; i++) {
+        float weight = (float) (i + 1) / (crossfade + 1);
+        pcm[offset + i] =
+            (short) (pcm[offset + i] * weight + nextConcealedSample() * (1 - weight));
+      }
+      mPeriod = 0;
+      // What we heard before the gap doesn't join up with this, so searching across the two for a
+      // pitch period would find a wrong one. Start again from here.
+      mHistoryLength = 0;
+    }
+    mSamplesPerMs = (float) samples / mFrameDurationMs;
+    remember(pcm, offset, samples);
+  }
+
+  /**
+   * Makes up a frame to play in place of one that's missing.
+   *
+   * @param out Where to write the frame.
+   * @param offset The first sample to write to.
+   * @return The number of samples written, or 0 if we haven't heard anything to base them on.
+   */
+  public int conceal(short[] out, int offset) {
+    int samples = Math.round(mSamplesPerMs * mFrameDurationMs);
+    if (samples <= 0 || mHistoryLength < samples) {
+      return 0;
+    }
+    if (mPeriod == 0) {
+      mPeriod = findPitchPeriod();
+      mPhase = 0;
+      mConcealedSamples = 0;
+    }
+    for (int i = 0; i < samples; i++) {
+      out[offset + i] = nextConcealedSample();
+    }
+    mConcealedFrames++;
+    return samples;
+  }
+
+  /** Returns how many frames we've made up. */
+  public long getConcealedFrames() {
+    return mConcealedFrames;
+  }
+
+  /** Returns the next sample of the repeated pitch period, faded by how long the gap has been. */
+  private short nextConcealedSample() {
+    float gain = 1 - mConcealedSamples / (FADE_MS * mSamplesPerMs);
+    mConcealedSamples++;
+    if (gain <= 0) {
+      return 0;
+    }
+    int sample = mHistory[mHistory.length - mPeriod + mPhase];
+    mPhase = (mPhase + 1) % mPeriod;
+    return (short) (sample * gain);
+  }
+
+  /**
+   * Returns the lag, within the range of human pitch, at which the most recent audio best matches
+   * itself.
+   */
+  private int findPitchPeriod() {
+    int minPeriod = Math.max(1, Math.round(MIN_PERIOD_MS * mSamplesPerMs));
+    int maxPeriod = Math.round(MAX_PERIOD_MS * mSamplesPerMs);
+    // Compare the last maxPeriod samples with the same stretch one lag earlier.
+    int window = Math.min(maxPeriod, mHistoryLength / 2);
+    maxPeriod = Math.min(maxPeriod, mHistoryLength - window);
+    if (maxPeriod < minPeriod) {
+      return Math.max(1, Math.min(mHistoryLength, minPeriod));
+    }
+
+    int end = mHistory.length;
+    int bestPeriod = minPeriod;
+    double bestScore = Double.NEGATIVE_INFINITY;
+    for (int lag = minPeriod; lag <= maxPeriod; lag++) {
+      double correlation = 0;
+      double energy = 0;
+      for (int i = end - window; i < end; i++) {
+        int lagged = mHistory[i - lag];
+        correlation += mHistory[i] * lagged;
+        energy += lagged * lagged;
+      }
+      double score = energy > 0 ? correlation / Math.sqrt(energy) : 0;
+      if (score > bestScore) {
+        bestScore = score;
+        bestPeriod = lag;
+      }
+    }
+    return bestPeriod;
+  }
+
+  /** Appends samples to the end of {@link #mHistory}, dropping the oldest to make room. */
+  private void remember(short[] pcm, int offset, int samples) {
+    samples = Math.min(samples, mHistory.length);
+    System.arraycopy(mHistory, samples, mHistory, 0, mHistory.length - samples);
+    System.arraycopy(pcm, offset, mHistory, mHistory.length - samples, samples);
+    mHistoryLength = Math.min(mHistory.length, mHistoryLength + samples);
+  }
+}
@@ -0,0 +1,68 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * Remembers the last few frames from the microphone, so that when the user pushes to talk we can
+ * send what they said in the moment before the key registered, as well as everything after.
+ *
+ * <p>The oldest frame is overwritten once the buffer is full. All storage is allocated up front and
+ * adding a frame doesn't allocate. Not thread safe.
+ */
+public class PreRollBuffer {
+  private final short[][] mFrames;
+  private final int[] mLengths;
+  private final long[] mTimestamps;
+
+  /** The slot the next frame goes in. */
+  private int mNext;
+
+  /** The number of frames held. */
+  private int mCount;
+
+  /**
+   * Creates an empty buffer.
+   *
+   * @param capacity The most frames to remember. Must be at least 1.
+   * @param frameSamples The longest frame that will be added.
+   */
+  public PreRollBuffer(int capacity, int frameSamples) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1, not " + capacity);
+    }
+    mFrames = new short[capacity][frameSamples];
+    mLengths = new int[capacity];
+    mTimestamps = new long[capacity];
+  }
+
+  /** Remembers a frame, forgetting the oldest one if we're full. */
+  public void add(short[] pcm, int samples, long timestampMs) {
+    samples = Math.min(samples, mFrames[mNext].length);
+    System.arraycopy(pcm, 0, mFrames[mNext], 0, samples);
+    mLengths[mNext] = samples;
+    mTimestamps[mNext] = timestampMs;
+    mNext = (mNext + 1) % mFrames.length;
+    mCount = Math.min(mCount + 1, mFrames.length);
+  }
+
+  /**
+   * Hands the remembered frames that finished after the given time to a listener, oldest first,
+   * and then forgets everything.
+   *
+   * @param sinceMs Frames read from the microphone at or before this time are skipped.
+   * @param listener Where to send the frames.
+   * @param sampleRate The sample rate of the frames.
+   * @return The number of frames sent.
+   */
+  public int drain(long sinceMs, CaptureEngine.Listener listener, int sampleRate) {
+    int sent = 0;
+    int slot = (mNext - mCount + mFrames.length) % mFrames.length;
+    for (int i = 0; i < mCount; i++) {
+      if (mTimestamps[slot] > sinceMs) {
+        listener.onFrame(mFrames[slot], mLengths[slot], mTimestamps[slot], sampleRate, true);
+        sent++;
+      }
+      slot = (slot + 1) % mFrames.length;
+    }
+    mCount = 0;
+    return sent;
+  }
+}
@@ -0,0 +1,163 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * Converts a stream of 16-bit mono audio from one sample rate to another with a polyphase filter.
+ *
+ * <p>The ratio between the rates is reduced to L/M. Conceptually we insert L - 1 zeros between
+ * input samples, low pass filter, and keep every Mth sample. In practice we only ever compute the
+ * samples we keep, using the one of the filter's L phases that lines up with them, so each output
+ * sample costs a fixed handful of multiplies however awkward the ratio is.
+ *
+ * <p>The resampler carries state from one call to the next, so consecutive frames join up without
+ * clicks. Each stream needs its own. Filters are built up front and processing doesn't allocate.
+ */
+public class Resampler {
+  /** Filter taps on each side of a sample, per phase, when we're not also decimating. */
+  private static final int HALF_TAPS = 8;
+
+  /** How much of the band below the lower Nyquist frequency we keep. The rest is transition. */
+  private static final double PASSBAND = 0.9;
+
+  private final int mInputRate;
+  private final int mOutputRate;
+
+  /** The upsampling factor. */
+  private final int mL;
+
+  /** The downsampling factor. */
+  private final int mM;
+
+  /** Taps in each phase of the filter. */
+  private final int mTaps;
+
+  /** The filter, grouped by phase: tap k of phase p is at {@code p * mTaps + k}. */
+  private final float[] mFilter;
+
+  /** The last mTaps - 1 input samples, followed by room for a frame of new ones. */
+  private final short[] mInput;
+
+  /** The index in {@link #mInput} of the newest input sample the next output sample depends on. */
+  private int mIndex;
+
+  /** Which of the filter's phases the next output sample uses. */
+  private int mPhase;
+
+  /**
+   * Creates a resampler.
+   *
+   * @param inputRate The sample rate of the audio we'll be given.
+   * @param outputRate The sample rate to convert it to.
+   */
+  public Resampler(int inputRate, int outputRate) {
+    if (inputRate <= 0 || outputRate <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid sample rates " + inputRate + " and " + outputRate);
+    }
+    mInputRate = inputRate;
+    mOutputRate = outputRate;
+
+    int gcd = gcd(inputRate, outputRate);
+    mL = outputRate / gcd;
+    mM = inputRate / gcd;
+
+    // When decimating, the filter has to cut off lower, which takes proportionally more taps to
+    // do as well.
+    mTaps = 2 * HALF_TAPS * Math.max(1, (mM + mL - 1) / mL);
+    mFilter = createFilter(mL, mM, mTaps);
+    mInput = new short[mTaps - 1 + AudioBuffer.MAX_FRAME_SAMPLES];
+    mIndex = mTaps - 1;
+  }
+
+  /** Returns the sample rate we convert from. */
+  public int getInputRate() {
+    return mInputRate;
+  }
+
+  /** Returns the sample rate we convert to. */
+  public int getOutputRate() {
+    return mOutputRate;
+  }
+
+  /**
+   * Returns the most samples {@link #process(short[], int, int, short[], int)} can produce from the
+   * given number of input samples.
+   */
+  public int getMaxOutputSamples(int inputSamples) {
+    return (int) (((long) inputSamples * mL + mM - 1) / mM) + 1;
+  }
+
+  /**
+   * Resamples the next stretch of the stream.
+   *
+   * @param in The input samples.
+   * @param inOffset The first input sample.
+   * @param inSamples The number of input samples. At most {@link AudioBuffer#MAX_FRAME_SAMPLES}.
+   * @param out Where to write the output. Must fit {@link #getMaxOutputSamples(int)} samples.
+   * @param outOffset The first output sample to write to.
+   * @return The number of samples written.
+   */
+  public int process(short[] in, int inOffset, int inSamples, short[] out, int outOffset) {
+    int history = mTaps - 1;
+    System.arraycopy(in, inOffset, mInput, history, inSamples);
+    int end = history + inSamples;
+
+    int written = 0;
+    while (mIndex < end) {
+      float sum = 0;
+      int base = mPhase * mTaps;
+      for (int k = 0; k < mTaps; k++) {
+        sum += mFilter[base + k] * mInput[mIndex - k];
+      }
+      int sample = Math.round(sum);
+      if (sample > Short.MAX_VALUE) {
+        sample = Short.MAX_VALUE;
+      } else if (sample < Short.MIN_VALUE) {
+        sample = Short.MIN_VALUE;
+      }
+      out[outOffset + written++] = (short) sample;
+
+      mPhase += mM;
+      mIndex += mPhase / mL;
+      mPhase %= mL;
+    }
+
+    // Keep the tail of this stretch for the filter to look back on next time.
+    System.arraycopy(mInput, inSamples, mInput, 0, history);
+    mIndex -= inSamples;
+    return written;
+  }
+
+  /** Designs a Blackman windowed sinc low pass filter, split into phases. */
+  private static float[] createFilter(int l, int m, int taps) {
+    int length = l * taps;
+    double center = (length - 1) / 2.0;
+    // The cutoff, in cycles per sample of the upsampled stream.
+    double cutoff = PASSBAND * 0.5 / Math.max(l, m);
+
+    float[] filter = new float[length];
+    for (int n = 0; n < length; n++) {
+      double x = n - center;
+      double sinc = x == 0 ? 1 : Math.sin(2 * Math.PI * cutoff * x) / (2 * Math.PI * cutoff * x);
+      double window =
+          0.42
+              - 0.5 * Math.cos(2 * Math.PI * n / (length - 1))
+              + 0.08 * Math.cos(4 * Math.PI * n / (length - 1));
+      // Scale by L to make up for the zeros we notionally inserted.
+      double tap = 2 * cutoff * sinc * window * l;
+
+      int phase = n % l;
+      int k = n / l;
+      filter[phase * taps + k] = (float) tap;
+    }
+    return filter;
+  }
+
+  private static int gcd(int a, int b) {
+    while (b != 0) {
+      int t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
+  }
+}
@@ -0,0 +1,889 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.android.gms.nearby.connection.ConnectionsClient;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends files as a series of small BYTES payloads, so a transfer cut short by a dropped connection
+ * picks up where it left off once we reconnect, rather than starting again. A FILE payload is lost
+ * as soon as the connection goes, which happens a lot as people walk in and out of range.
+ *
+ * <p>The sender offers the file, giving its size and hash, and the receiver answers with a bitmap
+ * of the chunks it already has, which is none the first time. The sender then sends the chunks
+ * that are missing, keeping at most {@link #WINDOW} of them in flight, and the receiver reports
+ * its bitmap again every {@link #ACK_INTERVAL} chunks, and whenever no chunk has come for {@link
+ * #IDLE_ACK_MS}. A report that tells the sender nothing new means nothing more is on its way, so
+ * the sender sends every chunk that's still missing again. Once every chunk is in, the receiver
+ * checks the file against its hash and says it's done. If it doesn't match, it throws the chunks
+ * away and asks for them again. See {@link FileMessage} for what's sent.
+ *
+ * <p>Files can be compressed on the way, if {@link FileCompressor} thinks it's worth it. The hash
+ * and chunks are of the compressed file, and the receiver is told how to decode it.
+ *
+ * <p>The offer also carries the hash of the file once decoded. If the receiver has a {@link
+ * ContentStore} with that file in it already, as when a picture is passed around the group, it
+ * declines the offer and uses its own copy, and no chunks are sent at all.
+ *
+ * <p>Endpoint IDs change when we reconnect, so transfers are tied to the other device's name
+ * instead, which we assume is unique among the devices we talk to. On reconnecting, the sender
+ * offers every file it hasn't finished sending again, and the receiver's answer tells it where to
+ * resume. An offer that goes unanswered for {@link #ACK_TIMEOUT_MS}, or chunks that do, are sent
+ * again too. A transfer that makes no progress for {@link #GIVE_UP_MS}, connected or not, is
+ * abandoned, so no transfer runs forever.
+ *
+ * <p>All the work is done on one background thread. Messages are sent, and {@link Listener}s
+ * called, on the UI thread. Safe to call from any thread.
+ */
+public class ResumableTransfers {
+  /** Hears about transfers, and sends messages for them. Called on the UI thread. */
+  public interface Listener {
+    /** Sends a message to a connected endpoint, as a BYTES payload. */
+    void sendMessage(String endpointId, byte[] message);
+
+    /**
+     * A file has arrived in full, and matches its hash. It's ours to move or delete.
+     *
+     * @param peer The name of the device that sent it.
+     * @param transferId The transfer.
+     * @param file The file, as sent.
+     * @param encoding How the file is encoded, one of the {@link FileCompressor} encodings. See
+     *     {@link FileCompressor#decode(InputStream, int)}.
+     * @param contentHash The SHA-256 hash of the file once decoded, which we've checked.
+     */
+    void onReceived(String peer, long transferId, File file, int encoding, byte[] contentHash);
+
+    /**
+     * We were offered a file that's in our {@link ContentStore} already, and declined it.
+     *
+     * @param peer The name of the device that offered it.
+     * @param transferId The transfer.
+     * @param file Our copy, in the store.
+     */
+    void onAlreadyHave(String peer, long transferId, File file);
+
+    /** A file we sent has arrived in full, or the receiver had it already. */
+    void onSent(String peer, long transferId);
+
+    /** We've given up on a transfer, to or from the given device. */
+    void onFailed(String peer, long transferId);
+  }
+
+  /** The size of the chunks we send files in, in bytes. */
+  static final int CHUNK_SIZE = 16 * 1024;
+
+  /** The most chunks we send before hearing that earlier ones have arrived. */
+  static final int WINDOW = 32;
+
+  /** How many chunks the receiver takes between progress reports. */
+  static final int ACK_INTERVAL = 4;
+
+  /**
+   * How long we wait to hear from the receiver before offering the file again, in ms. Long enough
+   * for {@link #ACK_INTERVAL} chunks to cross a slow Bluetooth link.
+   */
+  static final long ACK_TIMEOUT_MS = 15000;
+
+  /**
+   * How long the receiver waits for the next chunk before reporting what it has, in ms. Long
+   * enough for a chunk to cross a slow Bluetooth link.
+   */
+  static final long IDLE_ACK_MS = 3000;
+
+  /** How long a transfer may go without progress before we give up on it, in ms. */
+  static final long GIVE_UP_MS = 5 * 60 * 1000;
+
+  /** How often we check for transfers that have stalled, in ms. */
+  private static final long CHECK_INTERVAL_MS = 1000;
+
+  /** How many times a received file may fail its hash check before we give up on it. */
+  private static final int MAX_ATTEMPTS = 3;
+
+  /** The largest chunk a sender may ask for. It has to fit in a BYTES payload. */
+  private static final int MAX_CHUNK_SIZE =
+      ConnectionsClient.MAX_BYTES_DATA_SIZE - FileMessage.CHUNK_OVERHEAD;
+
+  /** The most chunks a file may have. The receiver's bitmap has to fit in a BYTES payload. */
+  private static final int MAX_CHUNKS =
+      (ConnectionsClient.MAX_BYTES_DATA_SIZE - FileMessage.HEADER_SIZE) * 8;
+
+  /** How many finished transfers we remember, so a repeated offer is answered without a resend. */
+  private static final int MAX_COMPLETED = 64;
+
+  /** A file we're sending to one device. Only touched on the background thread. */
+  private static class Outgoing {
+    final String mPeer;
+    final long mTransferId;
+    final long mSize;
+    final int mChunkCount;
+    final int mEncoding;
+    final byte[] mHash;
+    final byte[] mContentHash;
+    final RandomAccessFile mFile;
+
+    /** The compressed copy of the file we're sending, if we made one. Shared between devices. */
+    @Nullable final File mTemporary;
+
+    /** The chunks the receiver says it has. */
+    BitSet mAcked = new BitSet();
+
+    /** The chunks we've sent since we last offered the file. */
+    final BitSet mSent = new BitSet();
+
+    /** When the receiver last answered, or when the transfer started. */
+    long mLastProgressMs;
+
+    /** When we last offered the file. */
+    long mOfferedAtMs;
+
+    Outgoing(
+        String peer,
+        long transferId,
+        File file,
+        int encoding,
+        byte[] hash,
+        byte[] contentHash,
+        @Nullable File temporary,
+        long nowMs)
+        throws IOException {
+      mPeer = peer;
+      mTransferId = transferId;
+      mSize = file.length();
+      mChunkCount = getChunkCount(mSize, CHUNK_SIZE);
+      mEncoding = encoding;
+      mHash = hash;
+      mContentHash = contentHash;
+      mFile = new RandomAccessFile(file, "r");
+      mTemporary = temporary;
+      mLastProgressMs = nowMs;
+    }
+  }
+
+  /** A file we're receiving from one device. Only touched on the background thread. */
+  private static class Incoming {
+    final String mPeer;
+    final long mTransferId;
+    final long mSize;
+    final int mChunkSize;
+    final int mChunkCount;
+    final int mEncoding;
+    final byte[] mHash;
+    final byte[] mContentHash;
+    final File mFile;
+    final RandomAccessFile mOut;
+
+    /** The chunks that have arrived. */
+    final BitSet mReceived = new BitSet();
+
+    /** How many chunks have arrived since we last reported our progress. */
+    int mUnacked;
+
+    /** How many times the whole file has arrived, only to fail its hash check. */
+    int mAttempts;
+
+    /** When a chunk or an offer last arrived. */
+    long mLastProgressMs;
+
+    /** When we last reported our progress. */
+    long mAckedAtMs;
+
+    Incoming(String peer, long transferId, byte[] offer, File file, long nowMs)
+        throws IOException {
+      mPeer = peer;
+      mTransferId = transferId;
+      mSize = FileMessage.getOfferSize(offer);
+      mChunkSize = FileMessage.getOfferChunkSize(offer);
+      mChunkCount = getChunkCount(mSize, mChunkSize);
+      mEncoding = FileMessage.getOfferEncoding(offer);
+      mHash = FileMessage.getOfferHash(offer);
+      mContentHash = FileMessage.getOfferContentHash(offer);
+      mFile = file;
+      mOut = new RandomAccessFile(file, "rw");
+      mOut.setLength(mSize);
+      mLastProgressMs = nowMs;
+    }
+  }
+
+  private final File mDirectory;
+  @Nullable private final ContentStore mStore;
+  private final Listener mListener;
+  private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+  private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+  private final Random mRandom = new Random();
+
+  /** The endpoint ID of each device we're connected to, by name. */
+  private final Map<String, String> mEndpoints = new HashMap<>();
+
+  private final Map<String, Outgoing> mOutgoing = new HashMap<>();
+  private final Map<String, Incoming> mIncoming = new HashMap<>();
+
+  /** The transfers we've most recently received in full, oldest first. */
+  private final Map<String, Boolean> mCompleted =
+      new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_COMPLETED;
+        }
+      };
+
+  /** Holds a chunk as it's read from a file we're sending. */
+  private final byte[] mChunk = new byte[CHUNK_SIZE];
+
+  private final MetricsRegistry.Counter mChunksSent =
+      MetricsRegistry.get().counter("transfer.chunksSent");
+  private final MetricsRegistry.Counter mChunksReceived =
+      MetricsRegistry.get().counter("transfer.chunksReceived");
+  private final MetricsRegistry.Counter mChunksRejected =
+      MetricsRegistry.get().counter("transfer.chunksRejected");
+  private final MetricsRegistry.Counter mOffers = MetricsRegistry.get().counter("transfer.offers");
+  private final MetricsRegistry.Counter mCompletedTransfers =
+      MetricsRegistry.get().counter("transfer.completed");
+  private final MetricsRegistry.Counter mFailedTransfers =
+      MetricsRegistry.get().counter("transfer.failed");
+  private final MetricsRegistry.Counter mDeclinedTransfers =
+      MetricsRegistry.get().counter("transfer.declined");
+  private final MetricsRegistry.Counter mBytesBeforeCompression =
+      MetricsRegistry.get().counter("transfer.bytesBeforeCompression");
+  private final MetricsRegistry.Counter mBytesAfterCompression =
+      MetricsRegistry.get().counter("transfer.bytesAfterCompression");
+
+  /**
+   * @param directory Where to keep files while they arrive. Created if need be, and anything
+   *     already in it is deleted, since transfers don't outlive us.
+   * @param store Files we have already, so we can decline offers of them. Null to accept every
+   *     offer.
+   * @param listener Hears about transfers, and sends messages for them.
+   */
+  public ResumableTransfers(File directory, @Nullable ContentStore store, Listener listener) {
+    mDirectory = directory;
+    mStore = store;
+    mListener = listener;
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+              Log.w(TAG, "Failed to create " + mDirectory);
+            }
+            deleteFiles();
+          }
+        });
+    mExecutor.scheduleWithFixedDelay(
+        new Runnable() {
+          @Override
+          public void run() {
+            checkProgress();
+          }
+        },
+        CHECK_INTERVAL_MS,
+        CHECK_INTERVAL_MS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends a file. Devices that aren't connected yet are sent it once they are.
+   *
+   * @param file The file. Must stay as it is until the transfer is over.
+   * @param peers The names of the devices to send it to.
+   * @param compress If true, the file is compressed on the way if that would make it much smaller.
+   * @return The ID of the transfer, which is the same for every device.
+   */
+  public long send(final File file, Collection<String> peers, final boolean compress) {
+    final long transferId = mRandom.nextLong();
+    final List<String> recipients = new ArrayList<>(peers);
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            long nowMs = SystemClock.elapsedRealtime();
+            File sent = file;
+            File temporary = null;
+            int encoding = FileCompressor.ENCODING_NONE;
+            try {
+              byte[] contentHash = hash(file);
+              if (compress && FileCompressor.isWorthCompressing(file)) {
+                temporary = File.createTempFile("Wt_", ".z", mDirectory);
+                FileCompressor.compress(file, temporary);
+                Log.d(
+                    TAG,
+                    "Compressed "
+                        + file
+                        + " from "
+                        + file.length()
+                        + " to "
+                        + temporary.length()
+                        + " bytes");
+                mBytesBeforeCompression.add(file.length());
+                mBytesAfterCompression.add(temporary.length());
+                sent = temporary;
+                encoding = FileCompressor.ENCODING_DEFLATE;
+              }
+              if (getChunkCount(sent.length(), CHUNK_SIZE) > MAX_CHUNKS) {
+                throw new IOException(file + " is too big to send: " + sent.length() + " bytes");
+              }
+              byte[] hash = sent == file ? contentHash : hash(sent);
+              for (String peer : recipients) {
+                Outgoing outgoing =
+                    new Outgoing(
+                        peer, transferId, sent, encoding, hash, contentHash, temporary, nowMs);
+                mOutgoing.put(key(peer, transferId), outgoing);
+                offer(outgoing, nowMs);
+              }
+            } catch (IOException e) {
+              Log.w(TAG, "Failed to send " + file, e);
+              for (String peer : recipients) {
+                Outgoing outgoing = mOutgoing.remove(key(peer, transferId));
+                if (outgoing != null) {
+                  close(outgoing.mFile);
+                }
+                postFailed(peer, transferId);
+              }
+              if (temporary != null && !temporary.delete()) {
+                Log.w(TAG, "Failed to delete " + temporary);
+              }
+            }
+          }
+        });
+    return transferId;
+  }
+
+  /** Called when we connect to a device. Resumes anything we were sending it. */
+  public void onConnected(final String peer, final String endpointId) {
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            mEndpoints.put(peer, endpointId);
+            long nowMs = SystemClock.elapsedRealtime();
+            for (Outgoing outgoing : mOutgoing.values()) {
+              if (outgoing.mPeer.equals(peer)) {
+                offer(outgoing, nowMs);
+              }
+            }
+          }
+        });
+  }
+
+  /** Called when we lose a device. What we were sending it waits for it to come back. */
+  public void onDisconnected(final String peer) {
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            mEndpoints.remove(peer);
+          }
+        });
+  }
+
+  /**
+   * Called with a {@link FileMessage} from a device.
+   *
+   * @param peer The name of the device.
+   * @param endpointId The device's endpoint ID.
+   * @param message The message. Must not be changed afterwards.
+   */
+  public void onMessage(final String peer, final String endpointId, final byte[] message) {
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            // The message may have beaten the news that we've connected here.
+            mEndpoints.put(peer, endpointId);
+            try {
+              switch (FileMessage.getType(message)) {
+                case FileMessage.TYPE_OFFER:
+                  onOffer(peer, message);
+                  break;
+                case FileMessage.TYPE_CHUNK:
+                  onChunk(peer, message);
+                  break;
+                case FileMessage.TYPE_ACK:
+                  onAck(peer, message);
+                  break;
+                case FileMessage.TYPE_DONE:
+                case FileMessage.TYPE_DECLINE:
+                  onDone(peer, message);
+                  break;
+                default:
+                  Log.w(TAG, "Ignoring file message of type " + FileMessage.getType(message));
+                  break;
+              }
+            } catch (IOException e) {
+              Log.w(TAG, "Transfer " + FileMessage.getTransferId(message) + " failed", e);
+              fail(key(peer, FileMessage.getTransferId(message)));
+            }
+          }
+        });
+  }
+
+  /** Abandons every transfer, and deletes what's arrived of the files we were receiving. */
+  public void shutdown() {
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            for (Outgoing outgoing : mOutgoing.values()) {
+              close(outgoing.mFile);
+            }
+            mOutgoing.clear();
+            for (Incoming incoming : mIncoming.values()) {
+              close(incoming.mOut);
+            }
+            mIncoming.clear();
+            deleteFiles();
+          }
+        });
+    mExecutor.shutdown();
+  }
+
+  /** Tells the receiver about a file, and stops sending until it answers. */
+  private void offer(Outgoing outgoing, long nowMs) {
+    String endpointId = mEndpoints.get(outgoing.mPeer);
+    if (endpointId == null) {
+      return;
+    }
+    mOffers.increment();
+    // Whatever we'd sent may have been lost. The answer will tell us.
+    outgoing.mSent.clear();
+    outgoing.mOfferedAtMs = nowMs;
+    postMessage(
+        endpointId,
+        FileMessage.offer(
+            outgoing.mTransferId,
+            outgoing.mSize,
+            CHUNK_SIZE,
+            outgoing.mEncoding,
+            outgoing.mHash,
+            outgoing.mContentHash));
+  }
+
+  /** Sends whatever chunks the receiver is missing, up to a window's worth in flight. */
+  private void sendChunks(Outgoing outgoing) throws IOException {
+    String endpointId = mEndpoints.get(outgoing.mPeer);
+    if (endpointId == null) {
+      return;
+    }
+    BitSet inFlight = (BitSet) outgoing.mSent.clone();
+    inFlight.andNot(outgoing.mAcked);
+    int count = inFlight.cardinality();
+
+    BitSet done = (BitSet) outgoing.mSent.clone();
+    done.or(outgoing.mAcked);
+    for (int i = done.nextClearBit(0);
+        i < outgoing.mChunkCount && count < WINDOW;
+        i = done.nextClearBit(i + 1)) {
+      long offset = (long) i * CHUNK_SIZE;
+      int length = (int) Math.min(CHUNK_SIZE, outgoing.mSize - offset);
+      outgoing.mFile.seek(offset);
+      outgoing.mFile.readFully(mChunk, 0, length);
+      postMessage(endpointId, FileMessage.chunk(outgoing.mTransferId, i, mChunk, 0, length));
+      outgoing.mSent.set(i);
+      mChunksSent.increment();
+      count++;
+    }
+  }
+
+  private void onOffer(String peer, byte[] message) throws IOException {
+    long transferId = FileMessage.getTransferId(message);
+    String key = key(peer, transferId);
+    String endpointId = mEndpoints.get(peer);
+    if (endpointId == null) {
+      return;
+    }
+    if (mCompleted.containsKey(key)) {
+      // We told them we were done, but they didn't hear.
+      postMessage(endpointId, FileMessage.done(transferId));
+      return;
+    }
+    long nowMs = SystemClock.elapsedRealtime();
+    Incoming incoming = mIncoming.get(key);
+    if (incoming == null) {
+      long size = FileMessage.getOfferSize(message);
+      int chunkSize = FileMessage.getOfferChunkSize(message);
+      int encoding = FileMessage.getOfferEncoding(message);
+      if (size < 0
+          || chunkSize <= 0
+          || chunkSize > MAX_CHUNK_SIZE
+          || getChunkCount(size, chunkSize) > MAX_CHUNKS
+          || (encoding != FileCompressor.ENCODING_NONE
+              && encoding != FileCompressor.ENCODING_DEFLATE)) {
+        Log.w(
+            TAG,
+            "Ignoring offer of "
+                + size
+                + " bytes in chunks of "
+                + chunkSize
+                + " with encoding "
+                + encoding);
+        return;
+      }
+      if (decline(peer, endpointId, transferId, FileMessage.getOfferContentHash(message))) {
+        return;
+      }
+      File file = File.createTempFile("Wt_", ".part", mDirectory);
+      incoming = new Incoming(peer, transferId, message, file, nowMs);
+      mIncoming.put(key, incoming);
+      Log.d(TAG, "Receiving transfer " + transferId + " from " + peer + ": " + size + " bytes");
+    } else {
+      Log.d(
+          TAG,
+          "Resuming transfer "
+              + transferId
+              + " from "
+              + peer
+              + " with "
+              + incoming.mReceived.cardinality()
+              + " of "
+              + incoming.mChunkCount
+              + " chunks");
+    }
+    incoming.mLastProgressMs = nowMs;
+    if (incoming.mReceived.cardinality() == incoming.mChunkCount) {
+      // Nothing left to send, as with an empty file.
+      complete(incoming);
+    } else {
+      ack(incoming);
+    }
+  }
+
+  private void onChunk(String peer, byte[] message) throws IOException {
+    Incoming incoming = mIncoming.get(key(peer, FileMessage.getTransferId(message)));
+    if (incoming == null) {
+      return;
+    }
+    int index = FileMessage.getChunkIndex(message);
+    long offset = (long) index * incoming.mChunkSize;
+    int length = FileMessage.getChunkLength(message);
+    if (index < 0
+        || index >= incoming.mChunkCount
+        || length != Math.min(incoming.mChunkSize, incoming.mSize - offset)
+        || !FileMessage.hasValidChecksum(message)) {
+      // The sender will find out it's missing from our next report.
+      mChunksRejected.increment();
+      Log.w(TAG, "Rejecting chunk " + index + " of transfer " + incoming.mTransferId);
+      return;
+    }
+    incoming.mLastProgressMs = SystemClock.elapsedRealtime();
+    if (incoming.mReceived.get(index)) {
+      return;
+    }
+    incoming.mOut.seek(offset);
+    incoming.mOut.write(message, FileMessage.CHUNK_OVERHEAD, length);
+    incoming.mReceived.set(index);
+    incoming.mUnacked++;
+    mChunksReceived.increment();
+
+    if (incoming.mReceived.cardinality() == incoming.mChunkCount) {
+      complete(incoming);
+    } else if (incoming.mUnacked >= ACK_INTERVAL) {
+      ack(incoming);
+    }
+  }
+
+  private void onAck(String peer, byte[] message) throws IOException {
+    Outgoing outgoing = mOutgoing.get(key(peer, FileMessage.getTransferId(message)));
+    if (outgoing == null) {
+      return;
+    }
+    // The receiver knows best. It may even have thrown chunks away.
+    BitSet acked = FileMessage.getAckedChunks(message, outgoing.mChunkCount);
+    BitSet news = (BitSet) acked.clone();
+    news.andNot(outgoing.mAcked);
+    outgoing.mAcked = acked;
+    if (news.isEmpty()) {
+      // Nothing has arrived since the last report, so the receiver has gone quiet, or thrown away
+      // what it had. Whatever it's missing isn't coming. Send it all again.
+      outgoing.mSent.and(acked);
+    } else {
+      // Chunks arrive in the order they're sent, so any we sent before the last one to arrive
+      // that haven't arrived never will, as when one failed its checksum. Send them again.
+      outgoing.mSent.clear(0, acked.length());
+    }
+    outgoing.mLastProgressMs = SystemClock.elapsedRealtime();
+    sendChunks(outgoing);
+  }
+
+  /**
+   * Turns down an offer of a file that's in our store already, and hands over our copy instead.
+   *
+   * @return True if we had the file.
+   */
+  private boolean decline(
+      final String peer, String endpointId, final long transferId, byte[] contentHash) {
+    if (mStore == null) {
+      return false;
+    }
+    final File file = mStore.get(contentHash);
+    if (file == null) {
+      return false;
+    }
+    // Should they offer it again, they're told we're done.
+    mCompleted.put(key(peer, transferId), true);
+    postMessage(endpointId, FileMessage.decline(transferId));
+    Log.d(TAG, "Declining transfer " + transferId + " from " + peer + ", since we have " + file);
+    mUiHandler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            mListener.onAlreadyHave(peer, transferId, file);
+          }
+        });
+    return true;
+  }
+
+  private void onDone(final String peer, byte[] message) {
+    final long transferId = FileMessage.getTransferId(message);
+    Outgoing outgoing = mOutgoing.remove(key(peer, transferId));
+    if (outgoing == null) {
+      return;
+    }
+    release(outgoing);
+    if (FileMessage.getType(message) == FileMessage.TYPE_DECLINE) {
+      mDeclinedTransfers.increment();
+      Log.d(TAG, peer + " already had transfer " + transferId);
+    } else {
+      mCompletedTransfers.increment();
+      Log.d(TAG, "Sent transfer " + transferId + " to " + peer);
+    }
+    mUiHandler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            mListener.onSent(peer, transferId);
+          }
+        });
+  }
+
+  /** Reports which chunks we have. */
+  private void ack(Incoming incoming) {
+    String endpointId = mEndpoints.get(incoming.mPeer);
+    if (endpointId == null) {
+      return;
+    }
+    incoming.mUnacked = 0;
+    incoming.mAckedAtMs = SystemClock.elapsedRealtime();
+    postMessage(
+        endpointId,
+        FileMessage.ack(incoming.mTransferId, incoming.mReceived, incoming.mChunkCount));
+  }
+
+  /** Checks a file that's arrived in full, and hands it over if it's what we were offered. */
+  private void complete(final Incoming incoming) throws IOException {
+    final String key = key(incoming.mPeer, incoming.mTransferId);
+    if (!Arrays.equals(hash(incoming.mFile), incoming.mHash)) {
+      incoming.mAttempts++;
+      Log.w(
+          TAG,
+          "Transfer "
+              + incoming.mTransferId
+              + " doesn't match its hash, attempt "
+              + incoming.mAttempts);
+      if (incoming.mAttempts >= MAX_ATTEMPTS) {
+        fail(key);
+        return;
+      }
+      incoming.mReceived.clear();
+      ack(incoming);
+      return;
+    }
+    if (!Arrays.equals(hashContent(incoming), incoming.mContentHash)) {
+      // It arrived as it was sent, so sending it again won't help. Nor can we trust it with the
+      // store, where the wrong file would stand in for the right one from then on.
+      Log.w(TAG, "Transfer " + incoming.mTransferId + " doesn't decode to what was offered");
+      fail(key);
+      return;
+    }
+
+    incoming.mOut.close();
+    mIncoming.remove(key);
+    mCompleted.put(key, true);
+    mCompletedTransfers.increment();
+    String endpointId = mEndpoints.get(incoming.mPeer);
+    if (endpointId != null) {
+      postMessage(endpointId, FileMessage.done(incoming.mTransferId));
+    }
+    Log.d(TAG, "Received transfer " + incoming.mTransferId + " from " + incoming.mPeer);
+    mUiHandler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            mListener.onReceived(
+                incoming.mPeer,
+                incoming.mTransferId,
+                incoming.mFile,
+                incoming.mEncoding,
+                incoming.mContentHash);
+          }
+        });
+  }
+
+  /**
+   * Offers files again when the receiver has gone quiet, reports our progress when the sender has,
+   * and gives up on stalled transfers.
+   */
+  private void checkProgress() {
+    long nowMs = SystemClock.elapsedRealtime();
+    for (Outgoing outgoing : new ArrayList<>(mOutgoing.values())) {
+      if (nowMs - outgoing.mLastProgressMs > GIVE_UP_MS) {
+        fail(key(outgoing.mPeer, outgoing.mTransferId));
+      } else if (nowMs - Math.max(outgoing.mLastProgressMs, outgoing.mOfferedAtMs)
+          > ACK_TIMEOUT_MS) {
+        offer(outgoing, nowMs);
+      }
+    }
+    for (Incoming incoming : new ArrayList<>(mIncoming.values())) {
+      if (nowMs - incoming.mLastProgressMs > GIVE_UP_MS) {
+        fail(key(incoming.mPeer, incoming.mTransferId));
+      } else if (nowMs - Math.max(incoming.mLastProgressMs, incoming.mAckedAtMs) > IDLE_ACK_MS) {
+        // The last chunks may have been lost, and the sender won't know until we say.
+        ack(incoming);
+      }
+    }
+  }
+
+  /** Abandons a transfer, in whichever direction it's going. */
+  private void fail(String key) {
+    Outgoing outgoing = mOutgoing.remove(key);
+    if (outgoing != null) {
+      release(outgoing);
+      mFailedTransfers.increment();
+      Log.w(TAG, "Giving up sending transfer " + outgoing.mTransferId + " to " + outgoing.mPeer);
+      postFailed(outgoing.mPeer, outgoing.mTransferId);
+    }
+    Incoming incoming = mIncoming.remove(key);
+    if (incoming != null) {
+      close(incoming.mOut);
+      if (!incoming.mFile.delete()) {
+        Log.w(TAG, "Failed to delete " + incoming.mFile);
+      }
+      mFailedTransfers.increment();
+      Log.w(
+          TAG, "Giving up receiving transfer " + incoming.mTransferId + " from " + incoming.mPeer);
+      postFailed(incoming.mPeer, incoming.mTransferId);
+    }
+  }
+
+  /**
+   * Closes a file we've finished sending, and deletes the compressed copy of it once no other
+   * device is waiting for it.
+   */
+  private void release(Outgoing outgoing) {
+    close(outgoing.mFile);
+    if (outgoing.mTemporary == null) {
+      return;
+    }
+    for (Outgoing other : mOutgoing.values()) {
+      if (outgoing.mTemporary.equals(other.mTemporary)) {
+        return;
+      }
+    }
+    if (!outgoing.mTemporary.delete()) {
+      Log.w(TAG, "Failed to delete " + outgoing.mTemporary);
+    }
+  }
+
+  private void postMessage(final String endpointId, final byte[] message) {
+    mUiHandler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            mListener.sendMessage(endpointId, message);
+          }
+        });
+  }
+
+  private void postFailed(final String peer, final long transferId) {
+    mUiHandler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            mListener.onFailed(peer, transferId);
+          }
+        });
+  }
+
+  /** Deletes every file in our directory. Runs on the background thread. */
+  private void deleteFiles() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (!file.delete()) {
+        Log.w(TAG, "Failed to delete " + file);
+      }
+    }
+  }
+
+  private static String key(String peer, long transferId) {
+    return peer + "/" + transferId;
+  }
+
+  private static int getChunkCount(long size, int chunkSize) {
+    return (int) Math.min(Integer.MAX_VALUE, (size + chunkSize - 1) / chunkSize);
+  }
+
+  /** Hashes a file that's arrived as it'll be once decoded. Its hash as sent is already known. */
+  private static byte[] hashContent(Incoming incoming) throws IOException {
+    if (incoming.mEncoding == FileCompressor.ENCODING_NONE) {
+      return incoming.mHash;
+    }
+    return hash(FileCompressor.decode(new FileInputStream(incoming.mFile), incoming.mEncoding));
+  }
+
+  private static byte[] hash(File file) throws IOException {
+    return hash(new FileInputStream(file));
+  }
+
+  /** Hashes what's left of a stream, and closes it. */
+  private static byte[] hash(InputStream in) throws IOException {
+    try {
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IOException("SHA-256 isn't available", e);
+      }
+      byte[] buffer = new byte[CHUNK_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+      return digest.digest();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void close(RandomAccessFile file) {
+    try {
+      file.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to close file", e);
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.os.SystemClock;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Follows the payloads we send until every endpoint we sent each one to has said how it went, and
+ * keeps score per endpoint. Nearby Connections reports on a payload separately for each recipient,
+ * so one slow or flaky device in a large group shows up on its own, rather than being lost in
+ * the total.
+ *
+ * <p>For each endpoint name, {@code send.<name>.succeeded} and {@code send.<name>.failed} count
+ * payloads, and {@code send.<name>.latencyMs} is how long the successful ones took from being
+ * sent to being reported done. Names, unlike endpoint IDs, survive reconnecting, so a device keeps
+ * its score. Scores are kept for the {@link #MAX_SCORES} devices we connected to most recently,
+ * and older ones are unregistered, so meeting a lot of devices doesn't fill up the registry. {@code
+ * send.latencyMs} is the same for every endpoint together.
+ *
+ * <p>Audio streams aren't followed. A stream stays open as long as the connection, so it's only
+ * ever reported done when we disconnect, which says nothing about how sending went.
+ *
+ * <p>Not thread safe. Nearby Connections calls us back on the UI thread, so that's where this is
+ * used.
+ */
+public class SendTracker {
+  /** How many devices we keep score for. */
+  private static final int MAX_SCORES = 32;
+
+  /** The score of one endpoint. */
+  private static class EndpointStats {
+    final String mPrefix;
+    final MetricsRegistry.Counter mSucceeded;
+    final MetricsRegistry.Counter mFailed;
+    final MetricsRegistry.Distribution mLatency;
+
+    EndpointStats(String name) {
+      MetricsRegistry metrics = MetricsRegistry.get();
+      mPrefix = "send." + name;
+      mSucceeded = metrics.counter(mPrefix + ".succeeded");
+      mFailed = metrics.counter(mPrefix + ".failed");
+      mLatency = metrics.distribution(mPrefix + ".latencyMs");
+    }
+
+    /** Takes the score out of the registry. */
+    void unregister() {
+      MetricsRegistry metrics = MetricsRegistry.get();
+      metrics.remove(mPrefix + ".succeeded");
+      metrics.remove(mPrefix + ".failed");
+      metrics.remove(mPrefix + ".latencyMs");
+    }
+  }
+
+  /** A payload we've sent, and which of its recipients have reported on it. */
+  private static class Send {
+    final long mSentAtMs;
+
+    /** Who we sent it to. Shared with the caller, so never changed. */
+    final List<String> mEndpointIds;
+
+    /** The recipients, by index into {@link #mEndpointIds}, that have reported. */
+    final BitSet mReported = new BitSet();
+
+    Send(List<String> endpointIds, long nowMs) {
+      mEndpointIds = endpointIds;
+      mSentAtMs = nowMs;
+    }
+
+    /** Marks a recipient as having reported, returning false if it had already, or isn't one. */
+    boolean report(String endpointId) {
+      int index = mEndpointIds.indexOf(endpointId);
+      if (index < 0 || mReported.get(index)) {
+        return false;
+      }
+      mReported.set(index);
+      return true;
+    }
+
+    boolean isDone() {
+      return mReported.cardinality() == mEndpointIds.size();
+    }
+  }
+
+  private final MetricsRegistry.Distribution mLatency =
+      MetricsRegistry.get().distribution("send.latencyMs");
+
+  /** The endpoints we're connected to, by ID. */
+  private final Map<String, EndpointStats> mEndpoints = new HashMap<>();
+
+  /** The scores we're keeping, by device name, least recently connected first. */
+  private final Map<String, EndpointStats> mScores =
+      new LinkedHashMap<String, EndpointStats>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, EndpointStats> eldest) {
+          if (size() <= MAX_SCORES) {
+            return false;
+          }
+          eldest.getValue().unregister();
+          return true;
+        }
+      };
+
+  /** The payloads we're waiting to hear about, by payload ID. */
+  private final Map<Long, Send> mSends = new HashMap<>();
+
+  /** Starts keeping score for an endpoint we've connected to. */
+  public void addEndpoint(String endpointId, String name) {
+    EndpointStats stats = mScores.get(name);
+    if (stats == null) {
+      stats = new EndpointStats(name);
+      mScores.put(name, stats);
+    }
+    mEndpoints.put(endpointId, stats);
+  }
+
+  /**
+   * Stops keeping score for an endpoint, as when it disconnects. Whatever we'd sent it that it
+   * hadn't reported on yet counts as failed.
+   */
+  public void removeEndpoint(String endpointId) {
+    for (Long payloadId : new ArrayList<>(mSends.keySet())) {
+      Send send = mSends.get(payloadId);
+      if (send.report(endpointId)) {
+        failed(endpointId);
+        if (send.isDone()) {
+          mSends.remove(payloadId);
+        }
+      }
+    }
+    mEndpoints.remove(endpointId);
+  }
+
+  /**
+   * Starts following a payload we've sent.
+   *
+   * @param payloadId The payload.
+   * @param endpointIds Who we sent it to. Must not be changed afterwards.
+   */
+  public void add(long payloadId, List<String> endpointIds) {
+    if (!endpointIds.isEmpty()) {
+      mSends.put(payloadId, new Send(endpointIds, SystemClock.elapsedRealtime()));
+    }
+  }
+
+  /**
+   * Counts every recipient of a payload as having failed, as when it couldn't be sent at all.
+   */
+  public void fail(long payloadId) {
+    Send send = mSends.remove(payloadId);
+    if (send == null) {
+      return;
+    }
+    for (int i = send.mReported.nextClearBit(0);
+        i < send.mEndpointIds.size();
+        i = send.mReported.nextClearBit(i + 1)) {
+      failed(send.mEndpointIds.get(i));
+    }
+  }
+
+  /**
+   * Records what an endpoint has said about a payload we sent it. Progress is ignored. Only
+   * success, failure or cancellation count.
+   *
+   * @return True if the update was about a payload we're following.
+   */
+  public boolean update(String endpointId, PayloadTransferUpdate update) {
+    Send send = mSends.get(update.getPayloadId());
+    if (send == null) {
+      return false;
+    }
+    int status = update.getStatus();
+    if (status == PayloadTransferUpdate.Status.IN_PROGRESS || !send.report(endpointId)) {
+      return true;
+    }
+    if (status == PayloadTransferUpdate.Status.SUCCESS) {
+      long latencyMs = SystemClock.elapsedRealtime() - send.mSentAtMs;
+      mLatency.record(latencyMs);
+      EndpointStats stats = mEndpoints.get(endpointId);
+      if (stats != null) {
+        stats.mSucceeded.increment();
+        stats.mLatency.record(latencyMs);
+      }
+    } else {
+      failed(endpointId);
+    }
+    if (send.isDone()) {
+      mSends.remove(update.getPayloadId());
+    }
+    return true;
+  }
+
+  /** Stops following everything. Scores are kept for when devices reconnect. */
+  public void clear() {
+    mSends.clear();
+    mEndpoints.clear();
+  }
+
+  private void failed(String endpointId) {
+    EndpointStats stats = mEndpoints.get(endpointId);
+    if (stats != null) {
+      stats.mFailed.increment();
+    }
+  }
+}
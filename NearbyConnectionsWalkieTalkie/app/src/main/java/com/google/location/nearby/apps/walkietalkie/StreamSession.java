@@ -0,0 +1,161 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static android.os.Process.THREAD_PRIORITY_AUDIO;
+import static android.os.Process.setThreadPriority;
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Our end of a long-lived audio stream to one connected endpoint. The stream is opened once, when
+ * we connect, and every talk spurt {@link AudioRecorder} records goes down it as {@link
+ * AudioFrame}s until we disconnect. Pushing to talk never has to set up a new transfer.
+ *
+ * <p>Each session queues frames in its own {@link FrameRing}, and has its own thread writing them
+ * to the stream. Writing blocks while the endpoint isn't reading, so if one endpoint falls behind,
+ * only its frames back up, and once its ring fills they're dropped. Everyone else keeps hearing us
+ * on time.
+ */
+public class StreamSession {
+  /**
+   * How many frames we'll queue for the stream before dropping them. Enough for a burst of
+   * pre-roll, and not so many that a slow endpoint hears us long after we spoke.
+   */
+  private static final int RING_CAPACITY = 32;
+
+  private final MetricsRegistry.Counter mFramesDropped =
+      MetricsRegistry.get().counter("audio.streamFramesDropped");
+
+  /** The endpoint on the other end of the stream. */
+  private final String mEndpointId;
+
+  /** The stream to write to. */
+  private final OutputStream mOutputStream;
+
+  /** Frames waiting to be written to the stream. */
+  private final FrameRing mRing;
+
+  /** The thread writing frames from the ring to the stream. */
+  private final Thread mWriterThread;
+
+  /** False once the session has been closed, or the stream has failed. */
+  private volatile boolean mOpen = true;
+
+  /** True once no more frames are coming, and the writer should stop when the ring is empty. */
+  private volatile boolean mFinishing;
+
+  /**
+   * Creates a session. Call {@link #start()} to start writing to it.
+   *
+   * @param endpointId The endpoint on the other end of the stream.
+   * @param file The write side of the stream.
+   * @param maxFrameSize The largest frame that will be written, in bytes.
+   */
+  public StreamSession(String endpointId, ParcelFileDescriptor file, final int maxFrameSize) {
+    mEndpointId = endpointId;
+    mOutputStream = new ParcelFileDescriptor.AutoCloseOutputStream(file);
+    mRing = new FrameRing(RING_CAPACITY, maxFrameSize);
+    mWriterThread =
+        new Thread() {
+          @Override
+          public void run() {
+            setThreadPriority(THREAD_PRIORITY_AUDIO);
+            writeQueued(new byte[maxFrameSize]);
+          }
+        };
+  }
+
+  /** @return The endpoint on the other end of the stream. */
+  public String getEndpointId() {
+    return mEndpointId;
+  }
+
+  /** @return True until the session is closed or its stream fails. */
+  public boolean isOpen() {
+    return mOpen;
+  }
+
+  /** Starts the thread that writes to the stream. */
+  public void start() {
+    mWriterThread.start();
+  }
+
+  /**
+   * Queues a frame to be written, without waiting. Only call this from one thread.
+   *
+   * @param reserve How many slots to leave free in the queue for frames that mustn't be lost. See
+   *     {@link FrameRing#offer(byte[], int, int, int)}.
+   * @return False if the queue was too full and the frame was dropped.
+   */
+  boolean offer(byte[] frame, int offset, int length, int reserve) {
+    if (!mOpen) {
+      return false;
+    }
+    if (mRing.offer(frame, offset, length, reserve)) {
+      return true;
+    }
+    mFramesDropped.increment();
+    return false;
+  }
+
+  /**
+   * Tells the writer no more frames are coming, and waits up to the given time for it to write
+   * what's queued. Call {@link #close()} afterwards, whether or not it finished.
+   */
+  void finish(long timeoutMs) throws InterruptedException {
+    mFinishing = true;
+    mWriterThread.join(timeoutMs);
+  }
+
+  /** Writes queued frames until we're closed, or finished and the queue is empty. */
+  private void writeQueued(byte[] frame) {
+    try {
+      while (mOpen && !(mFinishing && mRing.isEmpty())) {
+        int len = mRing.take(frame, 0, AudioBuffer.FRAME_DURATION_MS);
+        if (len > 0) {
+          write(frame, 0, len);
+        }
+      }
+    } finally {
+      if (mRing.getOverflows() > 0) {
+        Log.w(
+            TAG,
+            "Dropped "
+                + mRing.getOverflows()
+                + " frames ("
+                + mRing.getOverflowBytes()
+                + " bytes) waiting for the stream to "
+                + mEndpointId);
+      }
+    }
+  }
+
+  /** Writes a frame. If the stream fails, the session closes itself. */
+  private void write(byte[] frame, int offset, int length) {
+    try {
+      mOutputStream.write(frame, offset, length);
+      mOutputStream.flush();
+    } catch (IOException e) {
+      if (mOpen) {
+        Log.w(TAG, "Lost the audio stream to " + mEndpointId, e);
+      }
+      close();
+    }
+  }
+
+  /**
+   * Closes the stream. The receiver sees it end, and the writer stops, dropping anything still
+   * queued. Safe to call from any thread, more than once.
+   */
+  public void close() {
+    mOpen = false;
+    try {
+      mOutputStream.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close output stream", e);
+    }
+  }
+}
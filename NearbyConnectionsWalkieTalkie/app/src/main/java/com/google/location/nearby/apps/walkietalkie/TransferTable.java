@@ -0,0 +1,155 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.os.SystemClock;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of every payload on its way to us, keyed by payload ID, so any number of files and
+ * streams from any number of endpoints can be in flight at once. Each {@link Transfer} knows who
+ * it's from, how far it's got and how fast it's going.
+ *
+ * <p>Not thread safe. Nearby Connections calls us back on the UI thread, so that's where this is
+ * used.
+ */
+public class TransferTable {
+  /** One payload on its way to us. */
+  public static class Transfer {
+    private final String mEndpointId;
+    private final Payload mPayload;
+    private final long mStartedAtMs;
+
+    private int mStatus = PayloadTransferUpdate.Status.IN_PROGRESS;
+    private long mBytesTransferred;
+    private long mTotalBytes = -1;
+    private long mUpdatedAtMs;
+
+    private Transfer(String endpointId, Payload payload, long nowMs) {
+      mEndpointId = endpointId;
+      mPayload = payload;
+      mStartedAtMs = nowMs;
+      mUpdatedAtMs = nowMs;
+    }
+
+    /** Returns the endpoint sending the payload. */
+    public String getEndpointId() {
+      return mEndpointId;
+    }
+
+    /** Returns the payload. */
+    public Payload getPayload() {
+      return mPayload;
+    }
+
+    /** Returns one of {@link PayloadTransferUpdate.Status}. */
+    public int getStatus() {
+      return mStatus;
+    }
+
+    /** Returns true once the transfer has succeeded, failed or been canceled. */
+    public boolean isDone() {
+      return mStatus != PayloadTransferUpdate.Status.IN_PROGRESS;
+    }
+
+    /** Returns how many bytes have arrived so far. */
+    public long getBytesTransferred() {
+      return mBytesTransferred;
+    }
+
+    /** Returns how big the payload is, in bytes, or -1 if we don't know, as with streams. */
+    public long getTotalBytes() {
+      return mTotalBytes;
+    }
+
+    /** Returns how long the transfer has taken so far, or took, in ms. */
+    public long getDurationMillis() {
+      return mUpdatedAtMs - mStartedAtMs;
+    }
+
+    /** Returns the average rate bytes have arrived at, in bytes per second. */
+    public long getBytesPerSecond() {
+      long durationMs = getDurationMillis();
+      return durationMs <= 0 ? 0 : mBytesTransferred * 1000 / durationMs;
+    }
+
+    @Override
+    public String toString() {
+      return "Transfer{payload="
+          + mPayload.getId()
+          + ", endpoint="
+          + mEndpointId
+          + ", status="
+          + mStatus
+          + ", bytes="
+          + mBytesTransferred
+          + "/"
+          + mTotalBytes
+          + ", "
+          + getBytesPerSecond()
+          + " B/s}";
+    }
+  }
+
+  private final Map<Long, Transfer> mTransfers = new HashMap<>();
+
+  /**
+   * Starts tracking a payload that's begun to arrive.
+   *
+   * @return The new transfer.
+   */
+  public Transfer add(String endpointId, Payload payload) {
+    Transfer transfer = new Transfer(endpointId, payload, SystemClock.elapsedRealtime());
+    mTransfers.put(payload.getId(), transfer);
+    return transfer;
+  }
+
+  /**
+   * Records progress on a payload. Once the transfer is done, we stop tracking it.
+   *
+   * @return The transfer, or null if we weren't tracking the payload, as with ones we're sending.
+   */
+  public Transfer update(PayloadTransferUpdate update) {
+    Transfer transfer = mTransfers.get(update.getPayloadId());
+    if (transfer == null) {
+      return null;
+    }
+    transfer.mStatus = update.getStatus();
+    transfer.mBytesTransferred = update.getBytesTransferred();
+    transfer.mTotalBytes = update.getTotalBytes();
+    transfer.mUpdatedAtMs = SystemClock.elapsedRealtime();
+    if (transfer.isDone()) {
+      mTransfers.remove(update.getPayloadId());
+    }
+    return transfer;
+  }
+
+  /**
+   * Stops tracking every payload from an endpoint, as when it disconnects.
+   *
+   * @return The transfers that were still in flight.
+   */
+  public List<Transfer> removeAll(String endpointId) {
+    List<Transfer> removed = new ArrayList<>();
+    for (Transfer transfer : new ArrayList<>(mTransfers.values())) {
+      if (transfer.getEndpointId().equals(endpointId)) {
+        mTransfers.remove(transfer.getPayload().getId());
+        removed.add(transfer);
+      }
+    }
+    return removed;
+  }
+
+  /** Stops tracking everything. */
+  public void clear() {
+    mTransfers.clear();
+  }
+
+  /** Returns the transfers in flight. */
+  public List<Transfer> getTransfers() {
+    return new ArrayList<>(mTransfers.values());
+  }
+}
@@ -0,0 +1,92 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * Decides, a frame at a time, whether the microphone is picking up speech or just background noise.
+ *
+ * <p>Voiced speech is loud compared to the room, so a frame counts as speech when its energy is well
+ * above a running estimate of the noise floor. Unvoiced sounds like "s" and "f" are quieter but
+ * cross zero far more often than hum or breathing, so a frame that is only somewhat louder than the
+ * floor also counts if its zero crossing rate is high. Once speech stops we keep saying yes for a
+ * short hangover, so the quiet ends of words aren't clipped.
+ */
+public class VoiceActivityDetector {
+  /** How many times the noise floor's energy a frame needs to count as voiced speech. */
+  private static final float VOICED_RATIO = 4f;
+
+  /** How many times the noise floor's energy a frame with a high zero crossing rate needs. */
+  private static final float UNVOICED_RATIO = 2f;
+
+  /** The fraction of samples that must cross zero for a frame to sound like unvoiced speech. */
+  private static final float UNVOICED_ZERO_CROSSING_RATE = 0.25f;
+
+  /** Frames quieter than this are never speech, however quiet the room is. About -60 dBFS. */
+  private static final float MIN_SPEECH_ENERGY = 1000f;
+
+  /** Where the noise floor starts, before we've heard the room. About -50 dBFS. */
+  private static final float INITIAL_NOISE_FLOOR = 10000f;
+
+  /** How many frames we keep reporting speech for after it stops. */
+  private static final int HANGOVER_FRAMES = 10;
+
+  /** The noise floor, as the mean square of a frame's samples. */
+  private float mNoiseFloor = INITIAL_NOISE_FLOOR;
+
+  /** How many more frames the hangover will last. */
+  private int mHangover;
+
+  /**
+   * Looks at the next frame of audio.
+   *
+   * @param pcm The frame's samples.
+   * @param offset The first sample.
+   * @param samples The number of samples.
+   * @return True if the frame should be sent. False if it's only background noise.
+   */
+  public boolean isSpeech(short[] pcm, int offset, int samples) {
+    if (samples <= 0) {
+      return false;
+    }
+
+    long sumOfSquares = 0;
+    int zeroCrossings = 0;
+    int previous = pcm[offset];
+    for (int i = offset; i < offset + samples; i++) {
+      int sample = pcm[i];
+      sumOfSquares += sample * sample;
+      if ((sample < 0) != (previous < 0)) {
+        zeroCrossings++;
+      }
+      previous = sample;
+    }
+    float energy = (float) sumOfSquares / samples;
+    float zeroCrossingRate = (float) zeroCrossings / samples;
+
+    boolean speech =
+        energy >= MIN_SPEECH_ENERGY
+            && (energy > mNoiseFloor * VOICED_RATIO
+                || (energy > mNoiseFloor * UNVOICED_RATIO
+                    && zeroCrossingRate >= UNVOICED_ZERO_CROSSING_RATE));
+
+    if (speech) {
+      mHangover = HANGOVER_FRAMES;
+      // Let the floor creep up very slowly while someone's talking, in case the room is getting
+      // louder underneath them.
+      mNoiseFloor += mNoiseFloor / 1024;
+      return true;
+    }
+
+    // Follow the room down quickly and up slowly, so short noises don't raise the floor.
+    if (energy < mNoiseFloor) {
+      mNoiseFloor += (energy - mNoiseFloor) / 4;
+    } else {
+      mNoiseFloor += (energy - mNoiseFloor) / 32;
+    }
+    mNoiseFloor = Math.max(mNoiseFloor, 1f);
+
+    if (mHangover > 0) {
+      mHangover--;
+      return true;
+    }
+    return false;
+  }
+}
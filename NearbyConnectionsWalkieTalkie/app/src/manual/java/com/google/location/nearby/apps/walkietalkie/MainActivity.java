@@ -21,10 +21,8 @@ import androidx.annotation.UiThread;
 import androidx.annotation.WorkerThread;
 import androidx.core.content.ContextCompat;
 import androidx.core.view.ViewCompat;
-import android.text.SpannableString;
-import android.text.format.DateFormat;
 import android.text.method.ScrollingMovementMethod;
-import android.text.style.ForegroundColorSpan;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.ViewAnimationUtils;
@@ -34,8 +32,8 @@ import com.google.android.gms.nearby.connection.ConnectionInfo;
 import com.google.android.gms.nearby.connection.Payload;
 import com.google.android.gms.nearby.connection.Strategy;
 import java.io.IOException;
-import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
@@ -59,6 +57,9 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   /** If true, debug logs are shown on the device. */
   private static final boolean DEBUG = true;
 
+  /** If true, we measure how long what others say takes to reach our speaker, and log it. */
+  private static final boolean MEASURE_LATENCY = DEBUG;
+
   /**
    * The connection strategy we'll use for Nearby Connections. In this case, we've decided on
    * P2P_STAR, which is a combination of Bluetooth Classic and WiFi Hotspots.
@@ -80,6 +81,15 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   /** Length of state change animations. */
   private static final long ANIMATION_DURATION = 600;
 
+  /** How often the debug log shows what the metrics have counted, in ms. Only when DEBUG=true. */
+  private static final long METRICS_DUMP_INTERVAL = 30000;
+
+  /** How much audio from just before the talk key goes down to send along with the rest, in ms. */
+  private static final int PRE_ROLL_DURATION = 300;
+
+  /** The most memory to spend remembering pre-roll, in bytes. */
+  private static final int PRE_ROLL_MAX_BYTES = 64 * 1024;
+
   /**
    * This service id lets us find other nearby devices that are interested in the same thing. Our
    * sample does exactly one thing, so we hardcode the ID.
@@ -108,6 +118,9 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   /** A running log of debug messages. Only visible when DEBUG=true. */
   private TextView mDebugLogView;
 
+  /** Keeps {@link #mDebugLogView} up to date. Null unless DEBUG=true. */
+  @Nullable private LogSink mLogSink;
+
   /** The SensorManager gives us access to sensors on the device. */
   private SensorManager mSensorManager;
 
@@ -120,7 +133,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
         @Override
         protected void onHold() {
           logV("onHold");
-          startRecording();
+          startRecording(getHoldTime());
         }
 
         @Override
@@ -130,12 +143,18 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
         }
       };
 
-  /** For recording audio as the user speaks. */
-  @Nullable private AudioRecorder mRecorder;
+  /** Keeps the microphone open while we're connected, so talking starts without a delay. */
+  private final CaptureEngine mCaptureEngine = new CaptureEngine();
+
+  /** Sends audio to everyone we're connected to as the user speaks. */
+  private final AudioRecorder mRecorder = new AudioRecorder(mCaptureEngine);
 
   /** For playing audio from other users nearby. */
   private final Set<AudioPlayer> mAudioPlayers = new HashSet<>();
 
+  /** Mixes everyone who is talking into a single output. */
+  private final AudioMixer mAudioMixer = new AudioMixer();
+
   /** The phone's original media volume. */
   private int mOriginalVolume;
 
@@ -158,6 +177,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.activity_main);
+    mCaptureEngine.setPreRoll(PRE_ROLL_DURATION, PRE_ROLL_MAX_BYTES);
     getSupportActionBar()
         .setBackgroundDrawable(ContextCompat.getDrawable(this, R.drawable.actionBar));
 
@@ -170,6 +190,16 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     mDebugLogView = (TextView) findViewById(R.id.debug_log);
     mDebugLogView.setVisibility(DEBUG ? View.VISIBLE : View.GONE);
     mDebugLogView.setMovementMethod(new ScrollingMovementMethod());
+    if (DEBUG) {
+      mLogSink =
+          new LogSink(
+              mDebugLogView,
+              getResources().getColor(R.color.log_verbose),
+              getResources().getColor(R.color.log_debug),
+              getResources().getColor(R.color.log_warning),
+              getResources().getColor(R.color.log_error));
+      mLogSink.dumpMetricsEvery(METRICS_DUMP_INTERVAL);
+    }
 
     mName = generateRandomName();
 
@@ -226,6 +256,14 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     super.onStop();
   }
 
+  @Override
+  protected void onDestroy() {
+    if (mLogSink != null) {
+      mLogSink.release();
+    }
+    super.onDestroy();
+  }
+
   @Override
   public void onBackPressed() {
     if (getState() == State.CONNECTED || getState() == State.ADVERTISING) {
@@ -251,6 +289,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
 
   @Override
   protected void onEndpointConnected(Endpoint endpoint) {
+    openStreamSession(endpoint);
     Toast.makeText(
             this, getString(R.string.toast_connected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
@@ -259,6 +298,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
 
   @Override
   protected void onEndpointDisconnected(Endpoint endpoint) {
+    mRecorder.removeSession(endpoint.getId());
     Toast.makeText(
             this, getString(R.string.toast_disconnected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
@@ -272,9 +312,12 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
 
   @Override
   protected void onConnectionFailed(Endpoint endpoint) {
-    // Let's try someone else.
-    if (getState() == State.DISCOVERING && !getDiscoveredEndpoints().isEmpty()) {
-      connectToEndpoint(pickRandomElem(getDiscoveredEndpoints()));
+    // Let's try someone else, starting with whoever's most likely to be there.
+    if (getState() == State.DISCOVERING) {
+      List<Endpoint> candidates = getConnectionCandidates();
+      if (!candidates.isEmpty()) {
+        connectToEndpoint(candidates.get(0));
+      }
     }
   }
 
@@ -311,6 +354,17 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
       mCurrentAnimator.cancel();
     }
 
+    // Keep the microphone and speaker warm for as long as there's someone to talk to.
+    if (newState == State.CONNECTED) {
+      mCaptureEngine.start();
+      mRecorder.start();
+      mAudioMixer.start();
+    } else if (oldState == State.CONNECTED) {
+      mAudioMixer.stop();
+      mRecorder.stop();
+      mCaptureEngine.stop();
+    }
+
     // Update Nearby Connections to the new state.
     switch (newState) {
       case DISCOVERING:
@@ -539,7 +593,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   protected void onReceive(Endpoint endpoint, Payload payload) {
     if (payload.getType() == Payload.Type.STREAM) {
       AudioPlayer player =
-          new AudioPlayer(payload.asStream().asInputStream()) {
+          new AudioPlayer(payload.asStream().asInputStream(), mAudioMixer) {
             @WorkerThread
             @Override
             protected void onFinish() {
@@ -554,6 +608,9 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
                   });
             }
           };
+      if (MEASURE_LATENCY) {
+        player.setLatencyMonitor(new LatencyMonitor());
+      }
       mAudioPlayers.add(player);
       player.start();
     }
@@ -566,6 +623,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
       player.stop();
     }
     mAudioPlayers.clear();
+    mAudioMixer.stop();
   }
 
   /** @return True if currently playing. */
@@ -573,35 +631,44 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     return !mAudioPlayers.isEmpty();
   }
 
-  /** Starts recording sound from the microphone and streaming it to all connected devices. */
-  private void startRecording() {
-    logV("startRecording()");
+  /**
+   * Opens the stream our audio will reach a newly connected endpoint through. It stays open until
+   * the endpoint disconnects, and carries everything we say in the meantime.
+   */
+  private void openStreamSession(Endpoint endpoint) {
     try {
       ParcelFileDescriptor[] payloadPipe = ParcelFileDescriptor.createPipe();
 
       // Send the first half of the payload (the read side) to Nearby Connections.
-      send(Payload.fromStream(payloadPipe[0]));
+      send(Payload.fromStream(payloadPipe[0]), endpoint);
 
       // Use the second half of the payload (the write side) in AudioRecorder.
-      mRecorder = new AudioRecorder(payloadPipe[1]);
-      mRecorder.start();
+      mRecorder.addSession(endpoint.getId(), payloadPipe[1]);
     } catch (IOException e) {
-      logE("startRecording() failed", e);
+      logE("openStreamSession() failed", e);
     }
   }
 
+  /**
+   * Starts streaming sound from the microphone to all connected devices.
+   *
+   * @param pressedAtMs When the user asked to talk, on the {@link
+   *     android.os.SystemClock#elapsedRealtime()} clock.
+   */
+  private void startRecording(long pressedAtMs) {
+    logV("startRecording()");
+    mRecorder.startTalking(pressedAtMs);
+  }
+
   /** Stops streaming sound from the microphone. */
   private void stopRecording() {
     logV("stopRecording()");
-    if (mRecorder != null) {
-      mRecorder.stop();
-      mRecorder = null;
-    }
+    mRecorder.stopTalking();
   }
 
   /** @return True if currently streaming from the microphone. */
   private boolean isRecording() {
-    return mRecorder != null && mRecorder.isRecording();
+    return mRecorder.isTalking();
   }
 
   /** {@see ConnectionsActivity#getRequiredPermissions()} */
@@ -659,43 +726,37 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   @Override
   protected void logV(String msg) {
     super.logV(msg);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_verbose)));
+    appendToLogs(Log.VERBOSE, msg);
   }
 
   @Override
   protected void logD(String msg) {
     super.logD(msg);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_debug)));
+    appendToLogs(Log.DEBUG, msg);
   }
 
   @Override
   protected void logW(String msg) {
     super.logW(msg);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_warning)));
+    appendToLogs(Log.WARN, msg);
   }
 
   @Override
   protected void logW(String msg, Throwable e) {
     super.logW(msg, e);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_warning)));
+    appendToLogs(Log.WARN, msg);
   }
 
   @Override
   protected void logE(String msg, Throwable e) {
     super.logE(msg, e);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_error)));
-  }
-
-  private void appendToLogs(CharSequence msg) {
-    mDebugLogView.append("\n");
-    mDebugLogView.append(DateFormat.format("hh:mm", System.currentTimeMillis()) + ": ");
-    mDebugLogView.append(msg);
+    appendToLogs(Log.ERROR, msg);
   }
 
-  private static CharSequence toColor(String msg, int color) {
-    SpannableString spannable = new SpannableString(msg);
-    spannable.setSpan(new ForegroundColorSpan(color), 0, msg.length(), 0);
-    return spannable;
+  private void appendToLogs(int level, String msg) {
+    if (mLogSink != null) {
+      mLogSink.add(level, msg);
+    }
   }
 
   private static String generateRandomName() {
@@ -707,11 +768,6 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     return name;
   }
 
-  @SuppressWarnings("unchecked")
-  private static <T> T pickRandomElem(Collection<T> collection) {
-    return (T) collection.toArray()[new Random().nextInt(collection.size())];
-  }
-
   /**
    * Provides an implementation of Animator.AnimatorListener so that we only have to override the
    * method(s) we're interested in.
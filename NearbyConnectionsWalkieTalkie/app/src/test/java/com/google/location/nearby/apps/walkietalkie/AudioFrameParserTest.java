@@ -0,0 +1,95 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+/** Tests for {@link AudioFrameParser}, reading streams built up in memory. */
+public class AudioFrameParserTest {
+  private static final int SAMPLE_RATE = 16000;
+
+  private final ByteArrayOutputStream mStream = new ByteArrayOutputStream();
+
+  @Test
+  public void readsFramesInOrder() throws IOException {
+    writeFrame(0, 40);
+    writeFrame(1, 40);
+    AudioFrameParser parser = parse();
+
+    assertTrue(parser.next());
+    assertEquals(0, parser.getSeq());
+    assertEquals(40, parser.getPayloadLength());
+    assertEquals(SAMPLE_RATE, parser.getSampleRate());
+    assertTrue(parser.next());
+    assertEquals(1, parser.getSeq());
+    assertFalse(parser.next());
+    assertEquals(0, parser.getResyncs());
+  }
+
+  @Test
+  public void skipsCorruptedBytes() throws IOException {
+    writeFrame(0, 40);
+    mStream.write(new byte[] {'W', 'T', 1, 2, 3});
+    writeFrame(1, 40);
+    AudioFrameParser parser = parse();
+
+    assertTrue(parser.next());
+    assertTrue(parser.next());
+    assertEquals(1, parser.getSeq());
+    assertEquals(1, parser.getResyncs());
+    assertEquals(5, parser.getSkippedBytes());
+  }
+
+  @Test
+  public void frameCutOffNearTheEndDoesNotHideTheFramesAfterIt() throws IOException {
+    // The header of a frame whose payload never made it, claiming more than is left in the stream.
+    byte[] frame = new byte[AudioFrame.MAX_FRAME_SIZE];
+    AudioFrame.writeHeader(frame, 0, 0, 0, 0, SAMPLE_RATE, AudioFrame.MAX_PAYLOAD_SIZE);
+    mStream.write(frame, 0, AudioFrame.HEADER_SIZE + 10);
+    writeFrame(1, 40);
+    writeFrame(2, 40);
+    AudioFrameParser parser = parse();
+
+    assertTrue(parser.next());
+    assertEquals(1, parser.getSeq());
+    assertTrue(parser.next());
+    assertEquals(2, parser.getSeq());
+    assertFalse(parser.next());
+    assertEquals(1, parser.getResyncs());
+  }
+
+  @Test
+  public void truncatedLastFrameEndsTheStream() throws IOException {
+    writeFrame(0, 40);
+    byte[] frame = frame(1, 40);
+    mStream.write(frame, 0, AudioFrame.HEADER_SIZE + 20);
+    AudioFrameParser parser = parse();
+
+    assertTrue(parser.next());
+    assertFalse(parser.next());
+    assertFalse(parser.next());
+  }
+
+  private AudioFrameParser parse() {
+    return new AudioFrameParser(new ByteArrayInputStream(mStream.toByteArray()));
+  }
+
+  private void writeFrame(int seq, int length) {
+    mStream.write(frame(seq, length), 0, AudioFrame.HEADER_SIZE + length);
+  }
+
+  /** Returns a frame whose payload bytes all hold its sequence number. */
+  private static byte[] frame(int seq, int length) {
+    byte[] frame = new byte[AudioFrame.HEADER_SIZE + length];
+    for (int i = 0; i < length; i++) {
+      frame[AudioFrame.HEADER_SIZE + i] = (byte) seq;
+    }
+    AudioFrame.writeHeader(frame, 0, 0, seq, 1000 + seq * 20, SAMPLE_RATE, length);
+    return frame;
+  }
+}
@@ -0,0 +1,116 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link FileCompressor}, on files in a temporary directory. */
+public class FileCompressorTest {
+  private File mDirectory;
+
+  @Before
+  public void setUp() throws IOException {
+    mDirectory = File.createTempFile("FileCompressorTest", "");
+    assertTrue(mDirectory.delete());
+    assertTrue(mDirectory.mkdir());
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = mDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    mDirectory.delete();
+  }
+
+  @Test
+  public void textIsCompressedAndDecodesToTheOriginal() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      text.append("Line ").append(i).append(": walkie talkie log\n");
+    }
+    byte[] original = text.toString().getBytes("UTF-8");
+    File source = write("log.txt", original);
+    assertTrue(FileCompressor.isWorthCompressing(source));
+
+    File compressed = new File(mDirectory, "log.txt.z");
+    long size = FileCompressor.compress(source, compressed);
+    assertTrue(size < original.length / 4);
+
+    InputStream in =
+        FileCompressor.decode(new FileInputStream(compressed), FileCompressor.ENCODING_DEFLATE);
+    assertArrayEquals(original, read(in));
+  }
+
+  @Test
+  public void randomBytesAreNotWorthCompressing() throws IOException {
+    byte[] noise = new byte[200 * 1024];
+    new Random(1).nextBytes(noise);
+    assertFalse(FileCompressor.isWorthCompressing(write("noise.bin", noise)));
+  }
+
+  @Test
+  public void jpegIsNotWorthCompressing() throws IOException {
+    // A JPEG signature ahead of text that would otherwise compress well.
+    byte[] jpeg = new byte[64 * 1024];
+    jpeg[0] = (byte) 0xFF;
+    jpeg[1] = (byte) 0xD8;
+    jpeg[2] = (byte) 0xFF;
+    assertFalse(FileCompressor.isWorthCompressing(write("picture.jpg", jpeg)));
+  }
+
+  @Test
+  public void smallFileIsNotWorthCompressing() throws IOException {
+    assertFalse(FileCompressor.isWorthCompressing(write("small.txt", new byte[100])));
+  }
+
+  @Test
+  public void unencodedFileDecodesAsItIs() throws IOException {
+    byte[] original = {1, 2, 3, 4};
+    File source = write("raw.bin", original);
+    InputStream in =
+        FileCompressor.decode(new FileInputStream(source), FileCompressor.ENCODING_NONE);
+    assertArrayEquals(original, read(in));
+  }
+
+  @Test(expected = IOException.class)
+  public void unknownEncodingIsRejected() throws IOException {
+    FileCompressor.decode(new FileInputStream(write("raw.bin", new byte[1])), 7);
+  }
+
+  private File write(String name, byte[] contents) throws IOException {
+    File file = new File(mDirectory, name);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  /** Reads what's left of a stream, and closes it. */
+  private static byte[] read(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      FileCompressor.copy(in, out);
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link JitterBuffer}. Time is simulated, so every arrival is exactly when we say. */
+public class JitterBufferTest {
+  private static final int FRAME_DURATION_MS = 20;
+  private static final int FRAME_SAMPLES = 160;
+
+  /** The shortest playout delay the buffer runs at. Mirrors JitterBuffer.MIN_DEPTH. */
+  private static final int MIN_DEPTH = 2;
+
+  /** How many frames the buffer holds. Mirrors JitterBuffer.CAPACITY. */
+  private static final int CAPACITY = 64;
+
+  /** How many clean frames it takes to ease the delay down. Mirrors JitterBuffer.DECAY_FRAMES. */
+  private static final int DECAY_FRAMES = 250;
+
+  private final short[] mOut = new short[AudioBuffer.MAX_FRAME_SAMPLES];
+  private JitterBuffer mBuffer;
+
+  @Before
+  public void setUp() {
+    mBuffer = new JitterBuffer(FRAME_DURATION_MS);
+  }
+
+  @Test
+  public void waitsForTargetDepthBeforePlaying() {
+    assertTrue(put(0, 0));
+    assertEquals(JitterBuffer.EMPTY, mBuffer.take(mOut, 0));
+
+    assertTrue(put(1, FRAME_DURATION_MS));
+    assertEquals(FRAME_SAMPLES, mBuffer.take(mOut, 0));
+    assertEquals(0, mOut[0]);
+    assertEquals(FRAME_SAMPLES, mBuffer.take(mOut, 0));
+    assertEquals(1, mOut[0]);
+    assertEquals(0, mBuffer.getUnderruns());
+  }
+
+  @Test
+  public void steadyArrivalsKeepTheMinimumDepth() {
+    int seq = playSteadily(0, 100);
+    assertEquals(MIN_DEPTH, mBuffer.getTargetDepth());
+    assertEquals(0f, mBuffer.getJitterMillis(), 0f);
+    assertEquals(0, mBuffer.getUnderruns());
+    assertEquals(0, mBuffer.getLostFrames());
+    assertTrue(seq > 0);
+  }
+
+  @Test
+  public void jitterRaisesTargetDepth() {
+    // Frames arrive in pairs, 40 ms apart, rather than one every 20 ms.
+    for (int seq = 0; seq < 200; seq++) {
+      put(seq, (seq / 2) * 2L * FRAME_DURATION_MS);
+    }
+    assertTrue(mBuffer.getJitterMillis() > 5);
+    assertTrue(mBuffer.getTargetDepth() > MIN_DEPTH);
+  }
+
+  @Test
+  public void underrunRaisesTargetDepthAndDecaysAfterCleanPlayback() {
+    int seq = playSteadily(0, 10);
+    // Drain what's buffered, then run dry in the middle of the spurt.
+    while (mBuffer.take(mOut, 0) > 0) {}
+    assertEquals(1, mBuffer.getUnderruns());
+    assertEquals(MIN_DEPTH + 1, mBuffer.getTargetDepth());
+
+    // Rebuffer to the new target and play cleanly until the extra delay is let go. Arrivals stay
+    // on schedule, so jitter has nothing to do with it.
+    for (int i = 0; i < MIN_DEPTH; i++) {
+      putOnSchedule(seq++);
+      assertEquals(JitterBuffer.EMPTY, mBuffer.take(mOut, 0));
+    }
+    putOnSchedule(seq++);
+    for (int i = 0; i < DECAY_FRAMES; i++) {
+      assertEquals(FRAME_SAMPLES, mBuffer.take(mOut, 0));
+      putOnSchedule(seq++);
+    }
+    assertEquals(MIN_DEPTH, mBuffer.getTargetDepth());
+    assertEquals(1, mBuffer.getUnderruns());
+  }
+
+  @Test
+  public void runningDryAfterSpurtEndsIsNotAnUnderrun() {
+    playSteadily(0, 10);
+    mBuffer.endTalkSpurt();
+    while (mBuffer.take(mOut, 0) > 0) {}
+    assertEquals(JitterBuffer.EMPTY, mBuffer.take(mOut, 0));
+    assertEquals(0, mBuffer.getUnderruns());
+  }
+
+  @Test
+  public void runningDryDuringSilenceIsNotAnUnderrun() {
+    int seq = playSteadily(0, 10);
+    mBuffer.putSilence(seq, FRAME_SAMPLES, seq * (long) FRAME_DURATION_MS, false);
+    // Play out the audio, then the marker, then keep time with the quiet talker.
+    for (int i = 0; i < 20; i++) {
+      assertEquals(FRAME_SAMPLES, mBuffer.take(mOut, 0));
+    }
+    assertEquals(0, mBuffer.getUnderruns());
+    assertEquals(0, mBuffer.getLostFrames());
+    assertTrue(mBuffer.getSilentFrames() > 0);
+  }
+
+  @Test
+  public void missingFrameIsReportedLost() {
+    put(0, 0);
+    put(2, 2 * FRAME_DURATION_MS);
+    put(3, 3 * FRAME_DURATION_MS);
+    assertEquals(FRAME_SAMPLES, mBuffer.take(mOut, 0));
+    assertEquals(JitterBuffer.LOST, mBuffer.take(mOut, 0));
+    assertEquals(1, mBuffer.getLastTakenSeq());
+    assertEquals(FRAME_SAMPLES, mBuffer.take(mOut, 0));
+    assertEquals(2, mOut[0]);
+    assertEquals(1, mBuffer.getLostFrames());
+  }
+
+  @Test
+  public void lateFrameIsDropped() {
+    put(0, 0);
+    put(2, 2 * FRAME_DURATION_MS);
+    put(3, 3 * FRAME_DURATION_MS);
+    mBuffer.take(mOut, 0);
+    mBuffer.take(mOut, 0);
+
+    // Frame 1's turn has passed.
+    assertFalse(put(1, 4 * FRAME_DURATION_MS));
+    assertEquals(1, mBuffer.getLateDrops());
+    assertEquals(FRAME_SAMPLES, mBuffer.take(mOut, 0));
+    assertEquals(2, mOut[0]);
+  }
+
+  @Test
+  public void duplicateFrameIsHeldOnce() {
+    put(0, 0);
+    put(1, FRAME_DURATION_MS);
+    assertTrue(put(1, 2 * FRAME_DURATION_MS));
+    assertEquals(MIN_DEPTH, mBuffer.getDepth());
+
+    mBuffer.endTalkSpurt();
+    assertEquals(FRAME_SAMPLES, mBuffer.take(mOut, 0));
+    assertEquals(FRAME_SAMPLES, mBuffer.take(mOut, 0));
+    assertEquals(1, mOut[0]);
+    assertEquals(JitterBuffer.EMPTY, mBuffer.take(mOut, 0));
+    assertEquals(0, mBuffer.getLostFrames());
+  }
+
+  @Test
+  public void frameTooFarAheadDiscardsTheOldest() {
+    for (int seq = 0; seq < 4; seq++) {
+      put(seq, seq * FRAME_DURATION_MS);
+    }
+    // Playback can't have reached 0..6 yet, but the buffer only spans CAPACITY frames.
+    int far = CAPACITY + 6;
+    assertTrue(put(far, 5 * FRAME_DURATION_MS));
+    assertEquals(4, mBuffer.getDiscards());
+    assertEquals(CAPACITY, mBuffer.getDepth());
+
+    // Everything before the new window is gone, and counts as late.
+    assertFalse(put(far - CAPACITY, 6 * FRAME_DURATION_MS));
+    assertEquals(1, mBuffer.getLateDrops());
+    assertTrue(put(far - CAPACITY + 1, 6 * FRAME_DURATION_MS));
+  }
+
+  /**
+   * Adds frames one every frame duration, taking one each time once playback's under way.
+   *
+   * @return The sequence number of the next frame.
+   */
+  private int playSteadily(int seq, int frames) {
+    for (int i = 0; i < frames; i++) {
+      putOnSchedule(seq++);
+      mBuffer.take(mOut, 0);
+    }
+    return seq;
+  }
+
+  /** Adds a frame just when it would arrive on a perfect link. */
+  private boolean putOnSchedule(int seq) {
+    return put(seq, seq * (long) FRAME_DURATION_MS);
+  }
+
+  /** Adds a frame whose samples all hold its sequence number. */
+  private boolean put(int seq, long arrivalMs) {
+    short[] pcm = new short[FRAME_SAMPLES];
+    Arrays.fill(pcm, (short) seq);
+    return mBuffer.put(seq, pcm, 0, FRAME_SAMPLES, arrivalMs, false);
+  }
+}
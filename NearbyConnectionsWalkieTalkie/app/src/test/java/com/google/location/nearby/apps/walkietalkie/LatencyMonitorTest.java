@@ -0,0 +1,218 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link LatencyMonitor}, fed by a real {@link AudioPlayer}. Frames are written into an
+ * in-memory pipe for the player to read, and its audio is pulled out through {@link
+ * AudioPlayer#read(short[], int)} as {@link AudioMixer} does, all against a simulated clock shared
+ * by the talker and listener, so every mouth to ear delay is known exactly.
+ */
+public class LatencyMonitorTest {
+  private static final int SAMPLE_RATE = 16000;
+  private static final int FRAME_DURATION_MS = AudioBuffer.FRAME_DURATION_MS;
+  private static final int FRAME_SAMPLES = SAMPLE_RATE * FRAME_DURATION_MS / 1000;
+
+  /** How finely the monitor measures delay, in ms. Mirrors LatencyMonitor.RESOLUTION_MS. */
+  private static final int RESOLUTION_MS = 2;
+
+  /** How long we wait for the player's reader thread to catch up, in ms. */
+  private static final long TIMEOUT_MS = 5000;
+
+  private static final String MOUTH_TO_EAR = "audio.mouthToEarMs";
+
+  private final AudioCodec mEncoder = new AdpcmCodec();
+  private final byte[] mFrame = new byte[AudioFrame.MAX_FRAME_SIZE];
+  private final short[] mPcm = new short[AudioBuffer.MAX_FRAME_SAMPLES];
+  private final short[] mOut = new short[AudioBuffer.MAX_FRAME_SAMPLES];
+
+  /** The simulated clock, in ms. The player reads it on its own thread. */
+  private volatile long mNowMs;
+
+  /** Guards {@link #mIdleReads}. */
+  private final Object mLock = new Object();
+
+  /** How many times the player has gone to read the pipe and found it empty. */
+  private int mIdleReads;
+
+  private PipedOutputStream mPipe;
+  private AudioPlayer mPlayer;
+  private LatencyMonitor mMonitor;
+  private int mSeq;
+
+  @Before
+  public void setUp() throws IOException {
+    PipedInputStream input = new PipedInputStream(4 * AudioFrame.MAX_FRAME_SIZE);
+    mPipe = new PipedOutputStream(input);
+    // Talker and listener share a clock, as in a loopback.
+    mMonitor = new LatencyMonitor(0);
+    mPlayer =
+        new AudioPlayer(new IdleCountingStream(input), new TestMixer()) {
+          @Override
+          long elapsedRealtime() {
+            return mNowMs;
+          }
+        };
+    mPlayer.setLatencyMonitor(mMonitor);
+    mPlayer.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    mPipe.close();
+    mPlayer.stop();
+  }
+
+  @Test
+  public void recordsMouthToEarDelay() throws IOException {
+    long before = getRecordedCount();
+
+    // The jitter buffer holds two frames, so each frame is heard on the first tick after the one
+    // behind it arrives: 30 ms in transit, 20 ms waiting for the next frame, and 10 ms for a tick.
+    transmit(1000, 30, 30);
+    assertEquals(1, mMonitor.getTransmissions());
+    assertEquals(60, mMonitor.getPercentileMillis(50), RESOLUTION_MS);
+    assertEquals(60, mMonitor.getPercentileMillis(99), RESOLUTION_MS);
+
+    // A slower link for the second spurt: 70 ms in transit, then the same 20 and 10 ms.
+    transmit(3000, 10, 70);
+    assertEquals(2, mMonitor.getTransmissions());
+    assertEquals(60, mMonitor.getPercentileMillis(50), RESOLUTION_MS);
+    assertEquals(100, mMonitor.getPercentileMillis(95), RESOLUTION_MS);
+    assertEquals(100, mMonitor.getPercentileMillis(100));
+
+    assertEquals(40, getRecordedCount() - before);
+    assertEquals(0, mPlayer.getJitterBuffer().getUnderruns());
+    assertEquals(0, mPlayer.getJitterBuffer().getLostFrames());
+  }
+
+  @Test
+  public void spurtWithNothingPlayedIsNotCounted() {
+    mMonitor.onTransmissionEnd();
+    assertEquals(0, mMonitor.getTransmissions());
+    assertEquals(0, mMonitor.getPercentileMillis(50));
+  }
+
+  /**
+   * Sends a talk spurt and plays it out, with a tick every frame duration from when it starts.
+   * On each tick, everything that has arrived is read by the player, then the mixer asks it for a
+   * frame of audio.
+   *
+   * @param startMs When the first frame is captured.
+   * @param frames How many frames of audio to send.
+   * @param transitMs How long every frame takes to arrive.
+   */
+  private void transmit(long startMs, int frames, long transitMs) throws IOException {
+    int sent = 0;
+    for (long nowMs = startMs; ; nowMs += FRAME_DURATION_MS) {
+      mNowMs = nowMs;
+      while (sent < frames && startMs + sent * FRAME_DURATION_MS + transitMs <= nowMs) {
+        int flags = sent == 0 ? AudioFrame.FLAG_TALK_START : 0;
+        send(flags, startMs + sent * FRAME_DURATION_MS);
+        sent++;
+        if (sent == frames) {
+          send(AudioFrame.FLAG_TALK_END, startMs + sent * FRAME_DURATION_MS);
+        }
+      }
+
+      int len = mPlayer.read(mOut, FRAME_SAMPLES);
+      if (len == 0 && sent == frames) {
+        // The player has played out the spurt, and told the monitor it's over.
+        return;
+      }
+      assertTrue(len == 0 || len == FRAME_SAMPLES);
+    }
+  }
+
+  /**
+   * Encodes a frame of audio, or a header-only TALK_END frame, into the pipe, and waits for the
+   * player to read it.
+   */
+  private void send(int flags, long captureMs) throws IOException {
+    int length = 0;
+    if ((flags & AudioFrame.FLAG_TALK_END) == 0) {
+      for (int i = 0; i < FRAME_SAMPLES; i++) {
+        mPcm[i] = (short) (4000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+      }
+      length = mEncoder.encode(mPcm, 0, FRAME_SAMPLES, mFrame, AudioFrame.HEADER_SIZE);
+    }
+    AudioFrame.writeHeader(mFrame, 0, flags, mSeq++, captureMs, SAMPLE_RATE, length);
+    synchronized (mLock) {
+      int idleReads = mIdleReads;
+      // The pipe holds the whole frame, so the player sees all of it at once.
+      mPipe.write(mFrame, 0, AudioFrame.HEADER_SIZE + length);
+      // Wakes the player now, rather than when it next polls the pipe.
+      mPipe.flush();
+      long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+      while (mIdleReads == idleReads) {
+        long waitMs = deadlineMs - System.currentTimeMillis();
+        if (waitMs <= 0) {
+          fail("The player didn't read frame " + (mSeq - 1));
+        }
+        try {
+          mLock.wait(waitMs);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    }
+  }
+
+  /** Returns how many delays the app-wide mouth to ear distribution has recorded. */
+  private static long getRecordedCount() {
+    return MetricsRegistry.get().snapshot().getHistogram(MOUTH_TO_EAR).getCount();
+  }
+
+  /**
+   * Tells us each time the player has dealt with everything in the pipe and goes back for more, so
+   * we know it has caught up before we move the clock on.
+   */
+  private class IdleCountingStream extends FilterInputStream {
+    IdleCountingStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (in.available() == 0) {
+        synchronized (mLock) {
+          mIdleReads++;
+          mLock.notifyAll();
+        }
+      }
+      return super.read(b, off, len);
+    }
+  }
+
+  /**
+   * A mixer that leaves the mixing to the test, playing at our sample rate with no output latency,
+   * so it never opens an {@link android.media.AudioTrack}.
+   */
+  private static class TestMixer extends AudioMixer {
+    @Override
+    boolean add(AudioPlayer player) {
+      return true;
+    }
+
+    @Override
+    public int getSampleRate() {
+      return SAMPLE_RATE;
+    }
+
+    @Override
+    public int getOutputLatencyMillis() {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PacketLossConcealer}. A synthetic vowel is cut into frames, some are dropped
+ * according to a loss pattern, and the concealed result is compared with the original and with
+ * simply playing silence in the gaps.
+ */
+public class PacketLossConcealerTest {
+  private static final int SAMPLE_RATE = 16000;
+  private static final int FRAME_DURATION_MS = 20;
+  private static final int FRAME_SAMPLES = SAMPLE_RATE * FRAME_DURATION_MS / 1000;
+  private static final int FRAMES = 500;
+
+  @Test
+  public void randomLoss() {
+    boolean[] lost = new boolean[FRAMES];
+    Random random = new Random(1);
+    for (int i = 1; i < FRAMES; i++) {
+      lost[i] = random.nextFloat() < 0.08f;
+    }
+    check(lost, 8);
+  }
+
+  @Test
+  public void burstLoss() {
+    // Three frames in a row every 25, longer than the fade for the last of them.
+    boolean[] lost = new boolean[FRAMES];
+    for (int i = 10; i < FRAMES; i += 25) {
+      lost[i] = true;
+      lost[i + 1] = true;
+      lost[i + 2] = true;
+    }
+    check(lost, 2);
+  }
+
+  @Test
+  public void singleFrameLoss() {
+    boolean[] lost = new boolean[FRAMES];
+    for (int i = 7; i < FRAMES; i += 13) {
+      lost[i] = true;
+    }
+    check(lost, 8);
+  }
+
+  @Test
+  public void nothingToConcealBeforeTheFirstFrame() {
+    PacketLossConcealer concealer = new PacketLossConcealer(FRAME_DURATION_MS);
+    assertEquals(0, concealer.conceal(new short[FRAME_SAMPLES], 0));
+    assertEquals(0, concealer.getConcealedFrames());
+  }
+
+  /**
+   * Plays the vowel with the given frames lost, and checks that concealing beats silence by at
+   * least the given margin and leaves no jumps at the edges of the gaps.
+   */
+  private static void check(boolean[] lost, double minGainDb) {
+    short[] original = vowel(FRAMES * FRAME_SAMPLES);
+    short[] concealed = new short[original.length];
+    short[] zeroFilled = new short[original.length];
+    PacketLossConcealer concealer = new PacketLossConcealer(FRAME_DURATION_MS);
+
+    int lostFrames = 0;
+    for (int frame = 0; frame < FRAMES; frame++) {
+      int offset = frame * FRAME_SAMPLES;
+      if (lost[frame]) {
+        assertEquals(FRAME_SAMPLES, concealer.conceal(concealed, offset));
+        lostFrames++;
+      } else {
+        System.arraycopy(original, offset, concealed, offset, FRAME_SAMPLES);
+        System.arraycopy(original, offset, zeroFilled, offset, FRAME_SAMPLES);
+        concealer.onFrame(concealed, offset, FRAME_SAMPLES);
+      }
+    }
+    assertEquals(lostFrames, concealer.getConcealedFrames());
+
+    double concealedSnr = snr(original, concealed);
+    double zeroFilledSnr = snr(original, zeroFilled);
+    assertTrue(
+        "Concealed " + concealedSnr + " dB, zero-filled " + zeroFilledSnr + " dB",
+        concealedSnr - zeroFilledSnr >= minGainDb);
+
+    // Going into or out of a gap shouldn't jump any further than the vowel itself ever does from
+    // one sample to the next, give or take a little.
+    int maxStep = maxStep(original, 1, original.length);
+    for (int frame = 1; frame < FRAMES; frame++) {
+      if (lost[frame] != lost[frame - 1]) {
+        int seam = frame * FRAME_SAMPLES;
+        int step = maxStep(concealed, seam - 2, seam + 3);
+        assertTrue(
+            "Step of " + step + " at frame " + frame + ", vowel's largest is " + maxStep,
+            step <= maxStep * 1.5);
+      }
+    }
+  }
+
+  /** Returns a vowel-like tone around 150 Hz with a few harmonics and a slow wobble in pitch. */
+  private static short[] vowel(int samples) {
+    short[] pcm = new short[samples];
+    double phase = 0;
+    for (int i = 0; i < samples; i++) {
+      double t = (double) i / SAMPLE_RATE;
+      double pitch = 150 + 5 * Math.sin(2 * Math.PI * 3 * t);
+      phase += 2 * Math.PI * pitch / SAMPLE_RATE;
+      double value =
+          0.6 * Math.sin(phase) + 0.25 * Math.sin(2 * phase + 0.5) + 0.15 * Math.sin(3 * phase);
+      pcm[i] = (short) Math.round(value * 8000);
+    }
+    return pcm;
+  }
+
+  /** Returns the signal-to-noise ratio of a copy of a signal, in dB. */
+  private static double snr(short[] signal, short[] copy) {
+    double power = 0;
+    double noise = 0;
+    for (int i = 0; i < signal.length; i++) {
+      double error = signal[i] - copy[i];
+      power += (double) signal[i] * signal[i];
+      noise += error * error;
+    }
+    return 10 * Math.log10(power / noise);
+  }
+
+  /** Returns the largest difference between neighboring samples in [from - 1, to). */
+  private static int maxStep(short[] pcm, int from, int to) {
+    int max = 0;
+    for (int i = from; i < to; i++) {
+      max = Math.max(max, Math.abs(pcm[i] - pcm[i - 1]));
+    }
+    return max;
+  }
+}